@@ -16,11 +16,32 @@
  */
 package org.alfresco.extensions.bulkexport;
 
+import org.alfresco.extensions.bulkexport.controler.AclTable;
+import org.alfresco.extensions.bulkexport.controler.AdaptiveConcurrencyController;
+import org.alfresco.extensions.bulkexport.controler.AssociationTable;
 import org.alfresco.extensions.bulkexport.controler.CacheGeneratedException;
+import org.alfresco.extensions.bulkexport.controler.ClusterPartitioner;
+import org.alfresco.extensions.bulkexport.controler.DryRunEstimator;
 import org.alfresco.extensions.bulkexport.controler.Engine;
+import org.alfresco.extensions.bulkexport.controler.ExportRoot;
+import org.alfresco.extensions.bulkexport.controler.ExportTrace;
+import org.alfresco.extensions.bulkexport.controler.MemoryBudget;
+import org.alfresco.extensions.bulkexport.controler.RateGovernor;
+import org.alfresco.extensions.bulkexport.controler.ReadAhead;
+import org.alfresco.extensions.bulkexport.controler.RetryQueue;
+import org.alfresco.extensions.bulkexport.controler.VerificationReport;
 import org.alfresco.extensions.bulkexport.dao.AlfrescoExportDao;
 import org.alfresco.extensions.bulkexport.dao.AlfrescoExportDaoImpl;
+import org.alfresco.extensions.bulkexport.model.ContentCompression;
+import org.alfresco.extensions.bulkexport.model.ExportManifest;
 import org.alfresco.extensions.bulkexport.model.FileFolder;
+import org.alfresco.extensions.bulkexport.model.MetadataShards;
+import org.alfresco.extensions.bulkexport.model.RangedCopy;
+import org.alfresco.extensions.bulkexport.model.ResolutionCache;
+import org.alfresco.extensions.bulkexport.model.WriteBehind;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.domain.permissions.AclDAO;
 import org.alfresco.service.ServiceRegistry;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.apache.commons.lang.StringUtils;
@@ -30,7 +51,18 @@ import org.springframework.extensions.webscripts.AbstractWebScript;
 import org.springframework.extensions.webscripts.WebScriptRequest;
 import org.springframework.extensions.webscripts.WebScriptResponse;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * This class has a function to start the export process data contained in the repository.
@@ -45,6 +77,10 @@ public class Export extends AbstractWebScript
     /** Alfresco {@link ServiceRegistry} populated by Spring Framework. */
     protected ServiceRegistry serviceRegistry;
     
+    /** Low level DAOs populated by Spring Framework, used to export ACLs by id. */
+    protected NodeDAO nodeDAO;
+    protected AclDAO aclDAO;
+
     /** Data Access Object to Alfresco Repository. */
     protected AlfrescoExportDao dao;
     
@@ -78,6 +114,59 @@ public class Export extends AbstractWebScript
         boolean useNodeCache = false;
         int nbOfThreads = 1;
         int exportChunkSize = 10;
+        int clusterPartitions = 1;
+        String partitionBy = ClusterPartitioner.PARTITION_BY_HASH;
+        int leaseTimeout = 300;
+        boolean adaptiveThreads = false;
+        int adaptiveInterval = 10;
+        int maxNodesPerSecond = 0;
+        int maxKBPerSecond = 0;
+        int maxCallsPerSecond = 0;
+        String rateSchedule = req.getParameter("rateSchedule");
+        String compression = ContentCompression.NONE;
+        List<String> compressionSkip = null;
+        boolean writeManifest = false;
+        String manifestDigest = ExportManifest.DEFAULT_DIGEST;
+        boolean verify = false;
+        String verifyDigest = null;
+        String query = req.getParameter("query");
+        String queryLanguage = "fts-alfresco";
+        int queryPageSize = 1000;
+        boolean trace = false;
+        boolean folderFirst = true;
+        boolean contentOrder = false;
+        int rangedCopyMB = 1024;
+        int writeBehindThreads = 0;
+        int writeBehindMB = 64;
+        int writeBehindKB = 1024;
+        String fsync = WriteBehind.NONE;
+        int rangedCopyThreads = 4;
+        String metadataFormat = "xml";
+        boolean exportAcls = false;
+        boolean exportAssociations = false;
+        int assocCacheSize = 10000;
+        boolean exportClassification = false;
+        int scanRangeSize = 0;
+        int readAhead = 0;
+        int maxAttempts = 3;
+        int retryDelay = 1000;
+        boolean retryDeadLetters = false;
+        boolean dryRun = false;
+        int dryRunProbes = 0;
+        int dryRunSample = 1000;
+        int dryRunReadMB = 16;
+        List<String> rootNodeRefs = null;
+        boolean rootSubdirectories = true;
+        List<String> childAssocTypes = Arrays.asList("cm:contains");
+        List<String> ignoreTypes = new ArrayList<String>();
+        boolean pruneTypes = true;
+        boolean preloadClassification = false;
+        int classificationCacheSize = 10000;
+        boolean convertMetadata = false;
+        // no memory budget unless one of its limits is given
+        long maxInFlightMB = 0;
+        int maxInFlightNodes = 0;
+        int heapLimit = 0;
 
         if (req.getParameter("ignoreExported") != null)
         {
@@ -133,11 +222,498 @@ public class Export extends AbstractWebScript
             }
         }
 
+        // If more than one partition is given, the export is shared with the other cluster
+        // members running the same export on the same target
+        if (req.getParameter("clusterPartitions") != null)
+        {
+            if(StringUtils.isNumeric(req.getParameter("clusterPartitions")))
+            {
+                clusterPartitions = Integer.parseInt(req.getParameter("clusterPartitions"));
+            }
+        }
+
+        if (req.getParameter("partitionBy") != null)
+        {
+            if(req.getParameter("partitionBy").equals(ClusterPartitioner.PARTITION_BY_SUBTREE))
+            {
+                partitionBy = ClusterPartitioner.PARTITION_BY_SUBTREE;
+            }
+        }
+
+        if (req.getParameter("leaseTimeout") != null)
+        {
+            if(StringUtils.isNumeric(req.getParameter("leaseTimeout")))
+            {
+                leaseTimeout = Integer.parseInt(req.getParameter("leaseTimeout"));
+            }
+        }
+
+        // If set to true then nbOfThreads is an upper bound, the number of running threads
+        // is tuned from the observed throughput
+        if (req.getParameter("adaptiveThreads") != null)
+        {
+            if(req.getParameter("adaptiveThreads").equals("true"))
+            {
+                adaptiveThreads = true;
+            }
+        }
+
+        if (req.getParameter("adaptiveInterval") != null)
+        {
+            if(StringUtils.isNumeric(req.getParameter("adaptiveInterval")))
+            {
+                adaptiveInterval = Integer.parseInt(req.getParameter("adaptiveInterval"));
+            }
+        }
+
+        // Bounds on the data held by the workers at once, 0 means unlimited
+        if (req.getParameter("maxInFlightMB") != null)
+        {
+            if(StringUtils.isNumeric(req.getParameter("maxInFlightMB")))
+            {
+                maxInFlightMB = Long.parseLong(req.getParameter("maxInFlightMB"));
+            }
+        }
+
+        if (req.getParameter("maxInFlightNodes") != null)
+        {
+            if(StringUtils.isNumeric(req.getParameter("maxInFlightNodes")))
+            {
+                maxInFlightNodes = Integer.parseInt(req.getParameter("maxInFlightNodes"));
+            }
+        }
+
+        // Percentage of the heap, used after GC, above which the workers wait
+        if (req.getParameter("heapLimit") != null)
+        {
+            if(StringUtils.isNumeric(req.getParameter("heapLimit")))
+            {
+                heapLimit = Integer.parseInt(req.getParameter("heapLimit"));
+            }
+        }
+
+        // Limits on the load put on the repository, 0 means unlimited
+        if (req.getParameter("maxNodesPerSecond") != null)
+        {
+            if(StringUtils.isNumeric(req.getParameter("maxNodesPerSecond")))
+            {
+                maxNodesPerSecond = Integer.parseInt(req.getParameter("maxNodesPerSecond"));
+            }
+        }
+
+        if (req.getParameter("maxKBPerSecond") != null)
+        {
+            if(StringUtils.isNumeric(req.getParameter("maxKBPerSecond")))
+            {
+                maxKBPerSecond = Integer.parseInt(req.getParameter("maxKBPerSecond"));
+            }
+        }
+
+        if (req.getParameter("maxCallsPerSecond") != null)
+        {
+            if(StringUtils.isNumeric(req.getParameter("maxCallsPerSecond")))
+            {
+                maxCallsPerSecond = Integer.parseInt(req.getParameter("maxCallsPerSecond"));
+            }
+        }
+
+        // Compress content and metadata files on the fly: gzip, zstd or lz4
+        if (req.getParameter("compression") != null)
+        {
+            compression = req.getParameter("compression");
+        }
+
+        // Mimetypes not compressed (prefix* allowed), replaces the default list
+        if (req.getParameter("compressionSkip") != null)
+        {
+            compressionSkip = Arrays.asList(StringUtils.split(req.getParameter("compressionSkip"), ","));
+        }
+
+        // If set to true then a manifest with the digest of every exported content is written
+        if (req.getParameter("manifest") != null)
+        {
+            if(req.getParameter("manifest").equals("true"))
+            {
+                writeManifest = true;
+            }
+        }
+
+        if (req.getParameter("manifestDigest") != null)
+        {
+            manifestDigest = req.getParameter("manifestDigest");
+        }
+
+        // If set to true then nothing is exported, the export folder is compared with the repository
+        if (req.getParameter("verify") != null)
+        {
+            if(req.getParameter("verify").equals("true"))
+            {
+                verify = true;
+            }
+        }
+
+        // Digest algorithm used to compare contents while verifying, only sizes are compared if not given
+        if (req.getParameter("verifyDigest") != null)
+        {
+            verifyDigest = req.getParameter("verifyDigest");
+        }
+
+        // Language of the query selecting the nodes to export, fts-alfresco or cmis-alfresco
+        if (req.getParameter("queryLanguage") != null)
+        {
+            queryLanguage = req.getParameter("queryLanguage");
+        }
+
+        if (req.getParameter("queryPageSize") != null)
+        {
+            if(StringUtils.isNumeric(req.getParameter("queryPageSize")))
+            {
+                queryPageSize = Integer.parseInt(req.getParameter("queryPageSize"));
+            }
+        }
+
+        // If set to true then the time of every step of every node is written in the trace folder
+        if (req.getParameter("trace") != null)
+        {
+            if(req.getParameter("trace").equals("true"))
+            {
+                trace = true;
+            }
+        }
+
+        // If set to false then folders and documents are exported together instead of creating all the folders first
+        if (req.getParameter("folderFirst") != null)
+        {
+            if(req.getParameter("folderFirst").equals("false"))
+            {
+                folderFirst = false;
+            }
+        }
+
+        // If set to true then documents are exported in the order of their content in the content store
+        if (req.getParameter("contentOrder") != null)
+        {
+            if(req.getParameter("contentOrder").equals("true"))
+            {
+                contentOrder = true;
+            }
+        }
+
+        // Contents of at least rangedCopyMB are copied by rangedCopyThreads threads, 1 thread disables it
+        if (req.getParameter("rangedCopyMB") != null)
+        {
+            if(StringUtils.isNumeric(req.getParameter("rangedCopyMB")))
+            {
+                rangedCopyMB = Integer.parseInt(req.getParameter("rangedCopyMB"));
+            }
+        }
+
+        if (req.getParameter("rangedCopyThreads") != null)
+        {
+            if(StringUtils.isNumeric(req.getParameter("rangedCopyThreads")))
+            {
+                rangedCopyThreads = Integer.parseInt(req.getParameter("rangedCopyThreads"));
+            }
+        }
+
+        // Number of threads writing the metadata files and small contents behind the workers, 0 to write them inline
+        if (req.getParameter("writeBehind") != null)
+        {
+            if(StringUtils.isNumeric(req.getParameter("writeBehind")))
+            {
+                writeBehindThreads = Integer.parseInt(req.getParameter("writeBehind"));
+            }
+        }
+
+        // Most MB waiting for the writer threads, the workers wait when it is reached
+        if (req.getParameter("writeBehindMB") != null)
+        {
+            if(StringUtils.isNumeric(req.getParameter("writeBehindMB")) && Integer.parseInt(req.getParameter("writeBehindMB")) > 0)
+            {
+                writeBehindMB = Integer.parseInt(req.getParameter("writeBehindMB"));
+            }
+        }
+
+        // Contents of at most writeBehindKB are handed to the writer threads, larger ones are copied by the workers
+        if (req.getParameter("writeBehindKB") != null)
+        {
+            if(StringUtils.isNumeric(req.getParameter("writeBehindKB")))
+            {
+                writeBehindKB = Integer.parseInt(req.getParameter("writeBehindKB"));
+            }
+        }
+
+        // When the written files are forced to disk: none, file, batch or end
+        if (req.getParameter("fsync") != null)
+        {
+            fsync = req.getParameter("fsync");
+        }
+
+        // Format of the metadata: xml (one file per node), jsonl or csv (records in a few shard files)
+        if (req.getParameter("metadataFormat") != null)
+        {
+            metadataFormat = req.getParameter("metadataFormat");
+        }
+
+        // If set to true then nothing is exported, the metadata shards are converted to XML files
+        if (req.getParameter("convertMetadata") != null)
+        {
+            if(req.getParameter("convertMetadata").equals("true"))
+            {
+                convertMetadata = true;
+            }
+        }
+
+        // If set to true then the permissions of the nodes are exported in acls.tsv and acl-nodes.tsv
+        if (req.getParameter("exportAcls") != null)
+        {
+            if(req.getParameter("exportAcls").equals("true"))
+            {
+                exportAcls = true;
+            }
+        }
+
+        // If set to true then the peer and secondary child associations are exported in associations.tsv
+        if (req.getParameter("exportAssociations") != null)
+        {
+            if(req.getParameter("exportAssociations").equals("true"))
+            {
+                exportAssociations = true;
+            }
+        }
+
+        // Number of association target paths kept in cache
+        if (req.getParameter("assocCacheSize") != null)
+        {
+            if(StringUtils.isNumeric(req.getParameter("assocCacheSize")))
+            {
+                assocCacheSize = Integer.parseInt(req.getParameter("assocCacheSize"));
+            }
+        }
+
+        // If set to true then categories are exported as category paths and tags as tag names
+        if (req.getParameter("exportClassification") != null)
+        {
+            if(req.getParameter("exportClassification").equals("true"))
+            {
+                exportClassification = true;
+            }
+        }
+
+        // If set to true then all the categories and tags are resolved before exporting
+        if (req.getParameter("preloadClassification") != null)
+        {
+            if(req.getParameter("preloadClassification").equals("true"))
+            {
+                preloadClassification = true;
+            }
+        }
+
+        // Number of category paths and tag names kept in cache
+        if (req.getParameter("classificationCacheSize") != null)
+        {
+            if(StringUtils.isNumeric(req.getParameter("classificationCacheSize")))
+            {
+                classificationCacheSize = Integer.parseInt(req.getParameter("classificationCacheSize"));
+            }
+        }
+
+        // How the nodes to export are found: tree walks the tree from the root, idscan scans the node ids in parallel ranges
+        if (req.getParameter("discovery") != null)
+        {
+            if(req.getParameter("discovery").equals("idscan"))
+            {
+                scanRangeSize = 10000;
+            }
+        }
+
+        // Number of node ids per range of the id scan
+        if (req.getParameter("scanRangeSize") != null && scanRangeSize > 0)
+        {
+            if(StringUtils.isNumeric(req.getParameter("scanRangeSize")) && Integer.parseInt(req.getParameter("scanRangeSize")) > 0)
+            {
+                scanRangeSize = Integer.parseInt(req.getParameter("scanRangeSize"));
+            }
+        }
+
+        // Comma separated types of the child associations followed when walking the tree, all to follow every association
+        if (req.getParameter("childAssocTypes") != null)
+        {
+            if(req.getParameter("childAssocTypes").equals("all"))
+            {
+                childAssocTypes = null;
+            }
+            else
+            {
+                childAssocTypes = Arrays.asList(req.getParameter("childAssocTypes").split(","));
+            }
+        }
+
+        // Comma separated node types ignored on top of the default ones, e.g. cm:thumbnail
+        if (req.getParameter("ignoreTypes") != null && !req.getParameter("ignoreTypes").isEmpty())
+        {
+            ignoreTypes = Arrays.asList(req.getParameter("ignoreTypes").split(","));
+        }
+
+        // If set to false then every child is loaded to check its type, instead of asking only for the exported types
+        if (req.getParameter("pruneTypes") != null)
+        {
+            if(req.getParameter("pruneTypes").equals("false"))
+            {
+                pruneTypes = false;
+            }
+        }
+
+        // Number of nodes prefetched at once ahead of each worker, 0 to disable the read ahead
+        if (req.getParameter("readAhead") != null)
+        {
+            if(StringUtils.isNumeric(req.getParameter("readAhead")))
+            {
+                readAhead = Integer.parseInt(req.getParameter("readAhead"));
+            }
+        }
+
+        // Number of attempts made on a node before it is written to the dead letter file, 1 to never retry
+        if (req.getParameter("maxAttempts") != null)
+        {
+            if(StringUtils.isNumeric(req.getParameter("maxAttempts")) && Integer.parseInt(req.getParameter("maxAttempts")) > 0)
+            {
+                maxAttempts = Integer.parseInt(req.getParameter("maxAttempts"));
+            }
+        }
+
+        // Delay before the first retry of a failed node in milliseconds, doubled at each attempt
+        if (req.getParameter("retryDelay") != null)
+        {
+            if(StringUtils.isNumeric(req.getParameter("retryDelay")))
+            {
+                retryDelay = Integer.parseInt(req.getParameter("retryDelay"));
+            }
+        }
+
+        // If set to true then only the nodes of the dead letter file of a previous run are exported
+        if (req.getParameter("retryDeadLetters") != null)
+        {
+            if(req.getParameter("retryDeadLetters").equals("true"))
+            {
+                retryDeadLetters = true;
+            }
+        }
+
+        // Comma separated list of roots exported together with the same threads, instead of nodeRef
+        if (req.getParameter("nodeRefs") != null)
+        {
+            rootNodeRefs = new ArrayList<String>();
+            for (String root : req.getParameter("nodeRefs").split(","))
+            {
+                if (!root.trim().isEmpty())
+                {
+                    rootNodeRefs.add(root.trim());
+                }
+            }
+        }
+
+        // File of the server listing the roots exported together, one per line, instead of nodeRef
+        if (req.getParameter("nodeRefsFile") != null)
+        {
+            if (rootNodeRefs == null)
+            {
+                rootNodeRefs = new ArrayList<String>();
+            }
+            rootNodeRefs.addAll(readNodeRefs(new File(req.getParameter("nodeRefsFile"))));
+        }
+
+        // If set to false then the roots are all written in the export folder instead of a subdirectory each
+        if (req.getParameter("rootSubdirectories") != null)
+        {
+            if(req.getParameter("rootSubdirectories").equals("false"))
+            {
+                rootSubdirectories = false;
+            }
+        }
+
+        // If set to true then nothing is written, the size and duration of the export are estimated
+        if (req.getParameter("dryRun") != null)
+        {
+            if(req.getParameter("dryRun").equals("true"))
+            {
+                dryRun = true;
+            }
+        }
+
+        // Number of random probes of the tree for the dry run, 0 to discover all the nodes
+        if (req.getParameter("dryRunProbes") != null)
+        {
+            if(StringUtils.isNumeric(req.getParameter("dryRunProbes")))
+            {
+                dryRunProbes = Integer.parseInt(req.getParameter("dryRunProbes"));
+            }
+        }
+
+        // Number of nodes read by the dry run when all the nodes are discovered
+        if (req.getParameter("dryRunSample") != null)
+        {
+            if(StringUtils.isNumeric(req.getParameter("dryRunSample")) && Integer.parseInt(req.getParameter("dryRunSample")) > 0)
+            {
+                dryRunSample = Integer.parseInt(req.getParameter("dryRunSample"));
+            }
+        }
+
+        // Content read by the dry run in MB to measure the read throughput, 0 not to read any
+        if (req.getParameter("dryRunReadMB") != null)
+        {
+            if(StringUtils.isNumeric(req.getParameter("dryRunReadMB")))
+            {
+                dryRunReadMB = Integer.parseInt(req.getParameter("dryRunReadMB"));
+            }
+        }
+
         //init variables
-        dao = new AlfrescoExportDaoImpl(this.serviceRegistry);
+        AlfrescoExportDaoImpl daoImpl = new AlfrescoExportDaoImpl(this.serviceRegistry);
+        daoImpl.setAclDAOs(nodeDAO, aclDAO);
+        daoImpl.setDiscoveryFilter(childAssocTypes, ignoreTypes, pruneTypes);
+        ResolutionCache<NodeRef, String> classificationCache = null;
+        if (exportClassification)
+        {
+            classificationCache = new ResolutionCache<NodeRef, String>(classificationCacheSize);
+            daoImpl.setClassificationCache(classificationCache);
+        }
+        dao = daoImpl;
         fileFolder = new FileFolder(res, base, scapeExported);
+        if (!compression.equals(ContentCompression.NONE))
+        {
+            fileFolder.setCompression(new ContentCompression(compression, compressionSkip));
+        }
+        if (!metadataFormat.equals("xml") && !convertMetadata)
+        {
+            fileFolder.setMetadataShards(new MetadataShards(base, metadataFormat));
+        }
+        if (rangedCopyThreads > 1)
+        {
+            fileFolder.setRangedCopy(new RangedCopy(rangedCopyMB * 1024L * 1024L, rangedCopyThreads));
+        }
+        if ((writeBehindThreads > 0 || !fsync.equals(WriteBehind.NONE)) && !verify && !dryRun && !convertMetadata)
+        {
+            WriteBehind writeBehind = new WriteBehind(writeBehindThreads, writeBehindMB * 1024L * 1024L, writeBehindKB * 1024L, fsync);
+            writeBehind.setPendingFile(new File(base, "bulkexport-unsynced.txt"));
+            fileFolder.setWriteBehind(writeBehind);
+        }
         engine = new Engine(dao, fileFolder, exportVersions, revisionHead, useNodeCache, nbOfThreads, exportChunkSize);
+        engine.setFolderFirst(folderFirst);
+        engine.setContentOrder(contentOrder);
+        engine.setScanRangeSize(scanRangeSize);
+        if (maxInFlightMB > 0 || maxInFlightNodes > 0 || heapLimit > 0)
+        {
+            engine.setMemoryBudget(new MemoryBudget(maxInFlightMB * 1024 * 1024, maxInFlightNodes, heapLimit));
+        }
+        if (adaptiveThreads)
+        {
+            engine.setConcurrencyController(new AdaptiveConcurrencyController((nbOfThreads + 1) / 2, nbOfThreads, adaptiveInterval));
+        }
         
+        boolean throttled = maxNodesPerSecond > 0 || maxKBPerSecond > 0 || maxCallsPerSecond > 0
+                || new File(base, RateGovernor.RATES_FILE).exists();
+
         NodeRef nf = null;
 
 
@@ -146,8 +722,108 @@ public class Export extends AbstractWebScript
         try
         {
             nf = dao.getNodeRef(nodeRef);
-            engine.execute(nf);
-            res.getWriter().write("Export finished Successfully\n");
+            if (clusterPartitions > 1 && nf != null)
+            {
+                engine.setClusterPartitioner(new ClusterPartitioner(base, nf, clusterPartitions, partitionBy, leaseTimeout));
+            }
+            if (writeManifest)
+            {
+                // every cluster member writes its own manifest
+                String manifestName = clusterPartitions > 1
+                        ? "manifest-" + ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9.-]", "_")
+                        : "manifest";
+                engine.setManifest(new ExportManifest(base, manifestName, manifestDigest));
+            }
+            if (throttled)
+            {
+                engine.setRateGovernor(new RateGovernor(maxNodesPerSecond, maxKBPerSecond, maxCallsPerSecond, rateSchedule));
+            }
+            // after the rate governor, so ACLs and associations are read through the throttled DAO
+            if (exportAcls)
+            {
+                engine.setAclTable(new AclTable(base, engine.getDao()));
+            }
+            if (exportAssociations)
+            {
+                engine.setAssociationTable(new AssociationTable(base, engine.getDao(), new ResolutionCache<NodeRef, String>(assocCacheSize)));
+                engine.getStatistics().addCache("association target", engine.getAssociationTable().getPaths());
+            }
+            if (classificationCache != null)
+            {
+                if (preloadClassification)
+                {
+                    daoImpl.preloadClassification();
+                }
+                engine.getStatistics().addCache("classification", classificationCache);
+            }
+            // read before the retry queue appends the new failures to the file
+            Map<String, List<NodeRef>> deadLetters = null;
+            if (retryDeadLetters && !dryRun)
+            {
+                File deadLetterFile = new File(base, RetryQueue.DEAD_LETTER_FILE);
+                File previous = new File(base, "dead-letter-" + System.currentTimeMillis() + ".tsv");
+                if (!deadLetterFile.renameTo(previous))
+                {
+                    throw new IOException("Could not read dead letters from " + deadLetterFile.getPath());
+                }
+                deadLetters = RetryQueue.readDeadLetters(previous);
+            }
+            engine.setRetryQueue(new RetryQueue(base, maxAttempts, retryDelay));
+            if (readAhead > 0)
+            {
+                engine.setReadAhead(new ReadAhead(engine.getDao(), readAhead, Math.max(1, nbOfThreads / 4)));
+            }
+            if (trace && !dryRun)
+            {
+                engine.setTrace(new ExportTrace(base));
+            }
+            if (dryRun)
+            {
+                DryRunEstimator.Estimate estimate = engine.dryRun(nf, dryRunProbes, dryRunSample, dryRunReadMB * 1024L * 1024L);
+                res.getWriter().write("Dry run finished, nothing was written\n");
+                res.getWriter().write(estimate.toString());
+            }
+            else if (convertMetadata)
+            {
+                long count = new MetadataShards(base, MetadataShards.JSONL).convertToXml(fileFolder);
+                res.getWriter().write("Metadata conversion finished, " + count + " metadata files written\n");
+            }
+            else if (deadLetters != null)
+            {
+                engine.executeNodes(deadLetters);
+                int count = 0;
+                for (List<NodeRef> nodes : deadLetters.values())
+                {
+                    count += nodes.size();
+                }
+                res.getWriter().write("Export of " + count + " dead letters finished\n");
+            }
+            else if (rootNodeRefs != null)
+            {
+                List<ExportRoot> roots = createRoots(rootNodeRefs, rootSubdirectories);
+                engine.executeRoots(roots);
+                res.getWriter().write("Export of " + roots.size() + " roots finished\n");
+                for (ExportRoot root : roots)
+                {
+                    res.getWriter().write("   " + (root.getSubdirectory().isEmpty() ? "" : root.getSubdirectory() + ": ") + root + "\n");
+                }
+            }
+            else if (query != null)
+            {
+                engine.executeQuery(queryLanguage, query, queryPageSize);
+                res.getWriter().write("Export finished Successfully\n");
+            }
+            else if (verify)
+            {
+                VerificationReport report = engine.verify(nf, verifyDigest);
+                res.getWriter().write("Verification finished, " + report + "\n");
+                res.getWriter().write("   report: " + report.getReportFile().getPath() + "\n");
+            }
+            else
+            {
+                engine.execute(nf);
+                res.getWriter().write("Export finished Successfully\n");
+            }
         } 
         catch (CacheGeneratedException e)
         {
@@ -171,12 +847,67 @@ public class Export extends AbstractWebScript
             //
             res.getWriter().write("Performed Export with the following Parameters :\n");
             res.getWriter().write("   export folder   : " + base + "\n");
-            res.getWriter().write("   node to export  : " + nodeRef + "\n");
+            if (query != null)
+            {
+                res.getWriter().write("   query (" + queryLanguage + "): " + query + "\n");
+            }
+            else if (rootNodeRefs != null)
+            {
+                res.getWriter().write("   roots to export : " + rootNodeRefs.size() + (rootSubdirectories ? " (a subdirectory each)" : "") + "\n");
+            }
+            else
+            {
+                res.getWriter().write("   node to export  : " + nodeRef + "\n");
+            }
             res.getWriter().write("   ignore exported : " + scapeExported + "\n");
             res.getWriter().write("   export versions : " + exportVersions + "\n");
             res.getWriter().write("   bulk import revision scheme: " + !revisionHead + "\n");
-            res.getWriter().write("   Nb. of threads: " + nbOfThreads + "\n");
+            res.getWriter().write("   Nb. of threads: " + nbOfThreads + (adaptiveThreads ? " (adaptive)" : "") + "\n");
             res.getWriter().write("   Chunk size: " + exportChunkSize + "\n");
+            if (clusterPartitions > 1)
+            {
+                res.getWriter().write("   Cluster partitions: " + clusterPartitions + " by " + partitionBy + "\n");
+            }
+            if (fileFolder.getCompression() != null)
+            {
+                res.getWriter().write("   Compression: " + fileFolder.getCompression().getAlgorithm() + "\n");
+            }
+            if (writeManifest)
+            {
+                res.getWriter().write("   Manifest digest: " + manifestDigest + "\n");
+            }
+            if (throttled)
+            {
+                res.getWriter().write("   Rate limits: nodes/sec " + maxNodesPerSecond + ", KB/sec " + maxKBPerSecond
+                        + ", calls/sec " + maxCallsPerSecond + (rateSchedule != null ? " between " + rateSchedule : "") + "\n");
+            }
+            if (trace)
+            {
+                res.getWriter().write("   Trace: " + new File(base, "bulkexport-trace").getPath() + "\n");
+            }
+            if (engine.getAclTable() != null)
+            {
+                res.getWriter().write("ACLs: " + engine.getAclTable().getAclCount() + " for " + engine.getAclTable().getReferenceCount() + " nodes\n");
+            }
+            if (engine.getAssociationTable() != null)
+            {
+                res.getWriter().write("Associations: " + engine.getAssociationTable().getAssociationCount()
+                        + ", target paths " + engine.getAssociationTable().getPaths() + "\n");
+            }
+            res.getWriter().write("Retries: " + engine.getRetryQueue() + "\n");
+            if (fileFolder.getWriteBehind() != null)
+            {
+                res.getWriter().write("Write behind: " + fileFolder.getWriteBehind() + "\n");
+            }
+            if (engine.getReadAhead() != null)
+            {
+                res.getWriter().write("Read ahead: " + engine.getReadAhead() + "\n");
+            }
+            if (engine.getMemoryBudget() != null)
+            {
+                res.getWriter().write("Memory budget: " + engine.getMemoryBudget() + "\n");
+            }
+            res.getWriter().write("Nodes " + engine.getStatistics() + "\n");
 
             long duration = timer.elapsedTime();
             res.getWriter().write("Export elapsed time: minutes:" + duration / 60 + " , seconds: " + duration + "\n");
@@ -194,6 +925,82 @@ public class Export extends AbstractWebScript
     }
 
 
+    /**
+     * Create the roots of a multi-root export, each written in a subdirectory
+     * named after it unless they all share the export folder
+     *
+     * @param nodeRefs the roots, a root listed twice is exported once
+     * @param subdirectories true to write every root in its own subdirectory
+     * @return the roots
+     */
+    private List<ExportRoot> createRoots(List<String> nodeRefs, boolean subdirectories) throws Exception
+    {
+        List<ExportRoot> roots = new ArrayList<ExportRoot>();
+        Set<NodeRef> seen = new HashSet<NodeRef>();
+        Set<String> names = new HashSet<String>();
+        for (String nodeRef : nodeRefs)
+        {
+            NodeRef root = dao.getNodeRef(nodeRef);
+            if (root == null)
+            {
+                throw new IllegalArgumentException("Not a node reference: " + nodeRef);
+            }
+            if (!seen.add(root))
+            {
+                continue;
+            }
+
+            FileFolder rootFolder = fileFolder;
+            if (subdirectories)
+            {
+                String name = dao.getProperty(root, ContentModel.PROP_NAME);
+                name = name == null ? root.getId() : name.replaceAll("[\\\\/:*?\"<>|]", "_");
+                // two roots of the same name, e.g. the document libraries of two sites
+                if (!names.add(name))
+                {
+                    name = name + "-" + root.getId();
+                    names.add(name);
+                }
+                rootFolder = fileFolder.forSubdirectory(name);
+            }
+            roots.add(new ExportRoot(root, rootFolder));
+        }
+        return roots;
+    }
+
+
+    /**
+     * Read the roots listed in a file, one node reference per line. Empty
+     * lines and lines starting with # are skipped.
+     *
+     * @param file the file
+     * @return the node references
+     * @throws IOException
+     */
+    private List<String> readNodeRefs(File file) throws IOException
+    {
+        List<String> nodeRefs = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#"))
+                {
+                    nodeRefs.add(line);
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return nodeRefs;
+    }
+
+
     public ServiceRegistry getServiceRegistry() 
     {
         return serviceRegistry;
@@ -204,4 +1011,16 @@ public class Export extends AbstractWebScript
     {
         this.serviceRegistry = serviceRegistry;
     }
+
+
+    public void setNodeDAO(NodeDAO nodeDAO) 
+    {
+        this.nodeDAO = nodeDAO;
+    }
+
+
+    public void setAclDAO(AclDAO aclDAO) 
+    {
+        this.aclDAO = aclDAO;
+    }
 }
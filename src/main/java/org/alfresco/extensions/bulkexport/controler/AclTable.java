@@ -0,0 +1,169 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import org.alfresco.extensions.bulkexport.dao.AlfrescoExportDao;
+import org.alfresco.extensions.bulkexport.model.ShardedWriter;
+import org.alfresco.repo.security.permissions.AccessControlEntry;
+import org.alfresco.repo.security.permissions.AccessControlList;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Permissions of the exported nodes, exported by ACL id.
+ *
+ * Most nodes inherit one of a few shared ACLs, so a node only records the id
+ * of its ACL and every distinct ACL is read once and written once to the ACL
+ * table. Two files are written in the export folder:
+ * <pre>
+ * acls.tsv       aclId  inherits  authority  permission  access  position
+ * acl-nodes.tsv  path  nodeRef  aclId
+ * </pre>
+ * acls.tsv has one line per entry of an ACL, and a line without authority
+ * for an ACL without entries. The node references are appended by each
+ * worker to its own shard, merged in acl-nodes.tsv at the end of the job.
+ */
+public class AclTable {
+    Log log = LogFactory.getLog(AclTable.class);
+
+    private static final String ACL_HEADER = "aclId\tinherits\tauthority\tpermission\taccess\tposition\n";
+    private static final String NODE_HEADER = "path\tnodeRef\taclId\n";
+
+    private final AlfrescoExportDao dao;
+    private final File aclFile;
+    private final File nodeFile;
+    private final ShardedWriter nodes;
+
+    /** ACLs already written, or being written by another worker */
+    private final ConcurrentMap<Long, Boolean> written = new ConcurrentHashMap<Long, Boolean>();
+
+    private final AtomicLong references = new AtomicLong();
+    private Writer acls;
+
+    /**
+     * @param basePath export folder
+     * @param dao Data Access Object, able to read ACLs
+     */
+    public AclTable(String basePath, AlfrescoExportDao dao) {
+        this.dao = dao;
+        this.aclFile = new File(basePath, "acls.tsv");
+        this.nodeFile = new File(basePath, "acl-nodes.tsv");
+        this.nodes = new ShardedWriter(new File(basePath, "acl-nodes.parts"), "shard-", ".tsv");
+    }
+
+    /**
+     * Record the ACL of an exported node, and write the ACL the first time it is seen
+     *
+     * @param nodeRef node exported
+     * @param path path of the node, relative to the export folder
+     * @throws Exception
+     */
+    public void record(NodeRef nodeRef, String path) throws Exception {
+        Long aclId = this.dao.getAclId(nodeRef);
+        if (aclId != null && written.putIfAbsent(aclId, Boolean.TRUE) == null) {
+            try {
+                writeAcl(aclId, this.dao.getAccessControlList(aclId));
+            } catch (Exception e) {
+                // let the next node using it try again
+                written.remove(aclId);
+                throw e;
+            }
+        }
+
+        Writer writer = nodes.getWriter();
+        writer.write(path);
+        writer.write('\t');
+        writer.write(nodeRef.toString());
+        writer.write('\t');
+        writer.write(aclId != null ? aclId.toString() : "");
+        writer.write('\n');
+        references.incrementAndGet();
+    }
+
+    /**
+     * @return number of distinct ACLs written
+     */
+    public int getAclCount() {
+        return written.size();
+    }
+
+    /**
+     * @return number of nodes whose ACL was recorded
+     */
+    public long getReferenceCount() {
+        return references.get();
+    }
+
+    /**
+     * Close the ACL table and merge the node references. Must be called once
+     * all the workers are done.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if (acls != null) {
+            acls.close();
+            acls = null;
+        }
+        nodes.merge(nodeFile, NODE_HEADER);
+
+        log.info(getAclCount() + " ACLs written to " + aclFile.getPath() + " for " + getReferenceCount() + " nodes");
+    }
+
+    private synchronized void writeAcl(Long aclId, AccessControlList acl) throws IOException {
+        if (acls == null) {
+            acls = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(aclFile), "UTF-8"));
+            acls.write(ACL_HEADER);
+        }
+
+        String inherits = acl != null && acl.getProperties() != null && acl.getProperties().getInherits() != null
+                ? acl.getProperties().getInherits().toString() : "";
+        List<AccessControlEntry> entries = acl != null ? acl.getEntries() : null;
+        if (entries == null || entries.isEmpty()) {
+            acls.write(aclId + "\t" + inherits + "\t\t\t\t\n");
+            return;
+        }
+
+        for (AccessControlEntry entry : entries) {
+            acls.write(aclId.toString());
+            acls.write('\t');
+            acls.write(inherits);
+            acls.write('\t');
+            acls.write(entry.getAuthority());
+            acls.write('\t');
+            acls.write(entry.getPermission() != null ? entry.getPermission().getName() : "");
+            acls.write('\t');
+            acls.write(entry.getAccessStatus() != null ? entry.getAccessStatus().toString() : "");
+            acls.write('\t');
+            acls.write(entry.getPosition() != null ? entry.getPosition().toString() : "");
+            acls.write('\n');
+        }
+    }
+}
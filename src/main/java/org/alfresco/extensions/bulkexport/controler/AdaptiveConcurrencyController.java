@@ -0,0 +1,236 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Tunes the number of workers actually exporting nodes from the observed
+ * throughput (AIMD: additive increase, multiplicative decrease).
+ *
+ * The thread pool is sized to the configured maximum, but a worker must hold
+ * a permit while exporting a node, and only {@link #getLimit()} permits exist.
+ * At every interval the controller compares the nodes/sec, bytes/sec and
+ * average time per node of the last window with the previous one:
+ * <ul>
+ * <li>throughput went up and latency stays close to the best seen: one more worker</li>
+ * <li>throughput went down, or latency degraded past the tolerance: a quarter of the workers less</li>
+ * <li>otherwise the limit is kept</li>
+ * </ul>
+ * Every change is logged and published in the {@link ExportStatistics}.
+ */
+public class AdaptiveConcurrencyController {
+    Log log = LogFactory.getLog(AdaptiveConcurrencyController.class);
+
+    /** Throughput gain (ratio) considered as an improvement */
+    private static final double GAIN_THRESHOLD = 1.05;
+
+    /** Throughput loss (ratio) considered as a degradation */
+    private static final double LOSS_THRESHOLD = 0.90;
+
+    /** Latency, compared to the best seen, above which the repository is considered saturated */
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    /** Factor applied to the limit on decrease */
+    private static final double DECREASE_FACTOR = 0.75;
+
+    private final int minWorkers;
+    private final int maxWorkers;
+    private final int intervalSeconds;
+
+    private final WorkerPermits permits;
+    private volatile int limit;
+
+    private ScheduledExecutorService scheduler;
+    private ExportStatistics statistics;
+
+    private long lastTime;
+    private long lastNodes;
+    private long lastBytes;
+    private long lastNodeNanos;
+    private double lastNodesPerSecond = -1;
+    private double lastBytesPerSecond = -1;
+    private double bestLatency = Double.MAX_VALUE;
+
+    /**
+     * @param initialWorkers number of workers to start with
+     * @param maxWorkers upper bound, the size of the thread pool
+     * @param intervalSeconds time between two decisions
+     */
+    public AdaptiveConcurrencyController(int initialWorkers, int maxWorkers, int intervalSeconds) {
+        this.minWorkers = 1;
+        this.maxWorkers = Math.max(1, maxWorkers);
+        this.intervalSeconds = Math.max(1, intervalSeconds);
+        this.limit = Math.max(minWorkers, Math.min(initialWorkers, this.maxWorkers));
+        this.permits = new WorkerPermits(limit);
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+    /**
+     * Called by a worker before exporting a node, blocks while the limit is reached
+     */
+    public void acquire() throws InterruptedException {
+        permits.acquire();
+    }
+
+    /**
+     * Called by a worker after exporting a node
+     */
+    public void release() {
+        permits.release();
+    }
+
+    /**
+     * Start taking decisions from the given statistics
+     *
+     * @param statistics counters updated by the workers
+     */
+    public synchronized void start(ExportStatistics statistics) {
+        this.statistics = statistics;
+        this.lastTime = System.nanoTime();
+        this.lastNodes = statistics.getNodesProcessed();
+        this.lastBytes = statistics.getBytesExported();
+        this.lastNodeNanos = statistics.getNodeNanos();
+        statistics.setWorkerLimit(limit);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bulkexport-concurrency");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    adjust();
+                } catch (RuntimeException e) {
+                    log.warn("Concurrency adjustment failed", e);
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+
+        log.info("Adaptive concurrency started with " + limit + " workers (max " + maxWorkers + ")");
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Take one decision from the last window
+     */
+    synchronized void adjust() {
+        long now = System.nanoTime();
+        long nodes = statistics.getNodesProcessed();
+        long bytes = statistics.getBytesExported();
+        long nodeNanos = statistics.getNodeNanos();
+
+        double seconds = (now - lastTime) / 1e9;
+        long windowNodes = nodes - lastNodes;
+        if (seconds <= 0 || windowNodes == 0) {
+            // nothing finished in the window (e.g. one huge file), no signal to act on
+            return;
+        }
+
+        double nodesPerSecond = windowNodes / seconds;
+        double bytesPerSecond = (bytes - lastBytes) / seconds;
+        double latency = (nodeNanos - lastNodeNanos) / 1e6 / windowNodes;
+        bestLatency = Math.min(bestLatency, latency);
+
+        lastTime = now;
+        lastNodes = nodes;
+        lastBytes = bytes;
+        lastNodeNanos = nodeNanos;
+
+        int newLimit = limit;
+        String reason;
+        if (lastNodesPerSecond < 0) {
+            reason = "first window";
+            newLimit = limit + 1;
+        } else if (latency > bestLatency * LATENCY_TOLERANCE) {
+            reason = "latency " + format(latency) + "ms over " + LATENCY_TOLERANCE + "x best " + format(bestLatency) + "ms";
+            newLimit = (int) (limit * DECREASE_FACTOR);
+        } else if (nodesPerSecond < lastNodesPerSecond * LOSS_THRESHOLD && bytesPerSecond < lastBytesPerSecond * LOSS_THRESHOLD) {
+            reason = "throughput dropped";
+            newLimit = (int) (limit * DECREASE_FACTOR);
+        } else if (nodesPerSecond > lastNodesPerSecond * GAIN_THRESHOLD || bytesPerSecond > lastBytesPerSecond * GAIN_THRESHOLD) {
+            reason = "throughput increased";
+            newLimit = limit + 1;
+        } else {
+            reason = "throughput stable";
+        }
+
+        lastNodesPerSecond = nodesPerSecond;
+        lastBytesPerSecond = bytesPerSecond;
+
+        setLimit(Math.max(minWorkers, Math.min(maxWorkers, newLimit)));
+        log.info("Adaptive concurrency: " + format(nodesPerSecond) + " nodes/sec, " + format(bytesPerSecond / 1024) + " KB/sec, "
+                + format(latency) + " ms/node -> " + limit + " workers (" + reason + ")");
+    }
+
+    private void setLimit(int newLimit) {
+        int delta = newLimit - limit;
+        if (delta > 0) {
+            permits.release(delta);
+        } else if (delta < 0) {
+            permits.reducePermits(-delta);
+        }
+        limit = newLimit;
+        statistics.setWorkerLimit(newLimit);
+    }
+
+    private static String format(double value) {
+        return String.format("%.1f", value);
+    }
+
+    /**
+     * Semaphore whose number of permits can be lowered while permits are held
+     */
+    private static class WorkerPermits extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        WorkerPermits(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import org.alfresco.extensions.bulkexport.dao.AlfrescoExportDao;
+import org.alfresco.extensions.bulkexport.dao.NodeAssociation;
+import org.alfresco.extensions.bulkexport.model.ResolutionCache;
+import org.alfresco.extensions.bulkexport.model.ShardedWriter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Peer and secondary child associations of the exported nodes.
+ *
+ * The associations of a node are read with one call, and their targets are
+ * resolved to export paths through a {@link ResolutionCache} shared by all
+ * the workers, so a target referenced by many nodes (a template, a shared
+ * folder) is resolved once. One line per association is written in
+ * associations.tsv in the export folder:
+ * <pre>
+ * path  kind  type  targetPath  targetNodeRef
+ * </pre>
+ * where kind is peer, or parent for a secondary child association of which
+ * the node is the child, the target being the parent. Each worker appends to its own shard, merged
+ * at the end of the job.
+ */
+public class AssociationTable {
+    Log log = LogFactory.getLog(AssociationTable.class);
+
+    private static final String HEADER = "path\tkind\ttype\ttargetPath\ttargetNodeRef\n";
+
+    private final AlfrescoExportDao dao;
+    private final ResolutionCache<NodeRef, String> paths;
+    private final ResolutionCache.Resolver<NodeRef, String> pathResolver;
+    private final File file;
+    private final ShardedWriter shards;
+
+    private final AtomicLong associations = new AtomicLong();
+
+    /**
+     * @param basePath export folder
+     * @param dao Data Access Object
+     * @param paths cache of the target paths
+     */
+    public AssociationTable(String basePath, final AlfrescoExportDao dao, ResolutionCache<NodeRef, String> paths) {
+        this.dao = dao;
+        this.paths = paths;
+        this.pathResolver = new ResolutionCache.Resolver<NodeRef, String>() {
+            @Override
+            public String resolve(NodeRef target) throws Exception {
+                return dao.getPath(target);
+            }
+        };
+        this.file = new File(basePath, "associations.tsv");
+        this.shards = new ShardedWriter(new File(basePath, "associations.parts"), "shard-", ".tsv");
+    }
+
+    /**
+     * Record the associations of an exported node
+     *
+     * @param nodeRef node exported
+     * @param path path of the node, relative to the export folder
+     * @throws Exception
+     */
+    public void record(NodeRef nodeRef, String path) throws Exception {
+        List<NodeAssociation> nodeAssociations = this.dao.getAssociations(nodeRef);
+        if (nodeAssociations.isEmpty()) {
+            return;
+        }
+
+        Writer writer = shards.getWriter();
+        for (NodeAssociation association : nodeAssociations) {
+            writer.write(path);
+            writer.write('\t');
+            writer.write(association.kind);
+            writer.write('\t');
+            writer.write(association.type);
+            writer.write('\t');
+            writer.write(targetPath(association.target));
+            writer.write('\t');
+            writer.write(association.target.toString());
+            writer.write('\n');
+        }
+        associations.addAndGet(nodeAssociations.size());
+    }
+
+    /**
+     * @return cache of the target paths
+     */
+    public ResolutionCache<NodeRef, String> getPaths() {
+        return paths;
+    }
+
+    /**
+     * @return number of associations written
+     */
+    public long getAssociationCount() {
+        return associations.get();
+    }
+
+    /**
+     * Merge the shards in associations.tsv. Must be called once all the
+     * workers are done.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        shards.merge(file, HEADER);
+
+        log.info(getAssociationCount() + " associations written to " + file.getPath() + ", target paths " + paths);
+    }
+
+    /**
+     * Path of an association target, empty if it can not be resolved (e.g.
+     * a target the export user can not read)
+     */
+    private String targetPath(NodeRef target) {
+        try {
+            String path = paths.get(target, pathResolver);
+            return path != null ? path : "";
+        } catch (Exception e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Could not resolve the path of association target " + target, e);
+            }
+            return "";
+        }
+    }
+}
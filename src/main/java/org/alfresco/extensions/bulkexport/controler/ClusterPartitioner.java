@@ -0,0 +1,393 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Splits the work of one export between several Alfresco cluster members.
+ *
+ * The members never talk to each other, they coordinate through lease files
+ * written in the export target (which all of them must share). Every member
+ * discovers the same node list, then claims partitions one by one: a partition
+ * is claimed by atomically creating its lease file, the lease is renewed while
+ * the partition is exported and replaced by a done marker at the end. A lease
+ * not renewed within the lease timeout is considered abandoned and can be
+ * taken over by another member.
+ *
+ * A lease holds a token unique to the claim. An abandoned lease is taken over
+ * by atomically renaming a new lease, with a new token, over it. As two
+ * members may both take over the same lease, the owner checks its token
+ * before every renewal and before marking the partition done, and the export
+ * tasks check it between nodes: a member whose token was replaced has lost the
+ * partition and abandons it.
+ *
+ * A partition is exported at least once, not exactly once. A crashed owner's
+ * partition is only taken over by a member calling the webscript later, and
+ * from the takeover until the old owner sees its lease lost both members
+ * write the same nodes.
+ *
+ * Partitions are built deterministically so that every member computes the
+ * same ones:
+ * <ul>
+ * <li><b>hash</b>: by hash of the node id, spreads the work evenly</li>
+ * <li><b>subtree</b>: by contiguous slices of the discovered (depth first)
+ * list, keeps subtrees together on one member</li>
+ * </ul>
+ */
+public class ClusterPartitioner {
+    Log log = LogFactory.getLog(ClusterPartitioner.class);
+
+    public static final String PARTITION_BY_HASH = "hash";
+    public static final String PARTITION_BY_SUBTREE = "subtree";
+
+    /** Number of partitions the work is split in */
+    private int partitions;
+
+    /** Partitioning strategy, hash or subtree */
+    private String partitionBy;
+
+    /** Time after which a lease not renewed is considered abandoned */
+    private long leaseTimeoutMillis;
+
+    /** Folder of the export target holding leases, markers and progress files */
+    private File coordinationDir;
+
+    /** Name of this member as written in the lease and progress files */
+    private String memberName;
+
+    private ScheduledExecutorService heartbeat;
+
+    /** Token written in the lease of the partition claimed last */
+    private volatile String token;
+
+    /** True once the lease of the partition being exported was taken over by another member */
+    private volatile boolean lost;
+
+    /** Partition being exported, -1 when none */
+    private volatile int current = -1;
+
+    /** Most often the export tasks read the lease, in milliseconds */
+    private static final long LEASE_CHECK_MILLIS = 1000;
+    private final AtomicLong lastLeaseCheck = new AtomicLong();
+
+    /**
+     * @param basePath export target shared by all the members
+     * @param rootNode node being exported, used to name the coordination folder
+     * @param partitions number of partitions, usually the number of members
+     * @param partitionBy hash or subtree
+     * @param leaseTimeoutSeconds time after which a lease is considered abandoned
+     */
+    public ClusterPartitioner(String basePath, NodeRef rootNode, int partitions, String partitionBy, int leaseTimeoutSeconds) {
+        this.partitions = partitions;
+        this.partitionBy = partitionBy;
+        this.leaseTimeoutMillis = leaseTimeoutSeconds * 1000L;
+        this.coordinationDir = new File(basePath, rootNode.getId() + ".cluster");
+        this.memberName = ManagementFactory.getRuntimeMXBean().getName();
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public String getMemberName() {
+        return memberName;
+    }
+
+    /**
+     * Get the nodes of one partition
+     *
+     * @param nodes all the nodes to export, in discovery order
+     * @param partition partition number
+     * @return {@link List}
+     */
+    public List<NodeRef> partition(List<NodeRef> nodes, int partition) {
+        if (PARTITION_BY_SUBTREE.equals(partitionBy)) {
+            long size = nodes.size();
+            int from = (int) (size * partition / partitions);
+            int to = (int) (size * (partition + 1) / partitions);
+            return nodes.subList(from, to);
+        }
+
+        List<NodeRef> part = new ArrayList<NodeRef>();
+        for (NodeRef nodeRef : nodes) {
+            if ((nodeRef.getId().hashCode() & Integer.MAX_VALUE) % partitions == partition) {
+                part.add(nodeRef);
+            }
+        }
+        return part;
+    }
+
+    /**
+     * Claim the next partition nobody is working on
+     *
+     * @return the partition number, -1 if all the partitions are done or taken
+     * @throws IOException
+     */
+    public int claimNextPartition() throws IOException {
+        current = -1;
+        if (!coordinationDir.exists() && !coordinationDir.mkdirs() && !coordinationDir.exists()) {
+            throw new IOException("Could not create cluster coordination folder " + coordinationDir.getPath());
+        }
+
+        for (int partition = 0; partition < partitions; partition++) {
+            if (fileOf(partition, "done").exists()) {
+                continue;
+            }
+
+            File lease = fileOf(partition, "lease");
+            String claim = newToken();
+            if (lease.createNewFile()) {
+                writeToken(lease, claim);
+                return claimed(partition, claim);
+            }
+
+            long age = System.currentTimeMillis() - lease.lastModified();
+            if (lease.exists() && age > leaseTimeoutMillis) {
+                // the new lease replaces the old one in one step, a racing member is told by the token
+                File candidate = fileOf(partition, "lease." + UUID.randomUUID());
+                writeToken(candidate, claim);
+                try {
+                    Files.move(candidate.toPath(), lease.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    candidate.delete();
+                    throw e;
+                }
+                if (claim.equals(readToken(lease))) {
+                    log.warn("Took over abandoned lease on partition " + partition + " (not renewed for " + age / 1000 + "s)");
+                    return claimed(partition, claim);
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the lease of the partition being exported was taken over by another member
+     */
+    public boolean isLost() {
+        return lost;
+    }
+
+    /**
+     * Tell the export tasks whether they may go on with the partition being
+     * exported. The lease is read at most once every {@value #LEASE_CHECK_MILLIS}
+     * ms whatever the number of tasks asking.
+     *
+     * @return false once the lease was taken over by another member
+     */
+    public boolean holdsLease() {
+        int partition = current;
+        if (partition == -1) {
+            return true;
+        }
+        if (lost) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        long last = lastLeaseCheck.get();
+        if (now - last < LEASE_CHECK_MILLIS || !lastLeaseCheck.compareAndSet(last, now)) {
+            return true;
+        }
+        if (!ownsLease(partition)) {
+            lost = true;
+            log.warn("Lease on partition " + partition + " was taken over by another member, its tasks stop");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Renew the lease and publish the progress of a partition until
+     * {@link #stopHeartbeat()} is called
+     *
+     * @param partition partition number
+     * @param statistics statistics of the tasks exporting the partition
+     * @param total number of nodes in the partition
+     */
+    public void startHeartbeat(final int partition, final ExportStatistics statistics, final int total) {
+        startHeartbeat(partition, statistics, total, null);
+    }
+
+    /**
+     * Renew the lease and publish the progress of a partition until
+     * {@link #stopHeartbeat()} is called. If the lease was taken over by
+     * another member, it is not renewed any more and the exporting thread is
+     * interrupted.
+     *
+     * @param partition partition number
+     * @param statistics statistics of the tasks exporting the partition
+     * @param total number of nodes in the partition
+     * @param exporter thread exporting the partition, interrupted when the lease is lost, may be null
+     */
+    public void startHeartbeat(final int partition, final ExportStatistics statistics, final int total, final Thread exporter) {
+        heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bulkexport-lease-" + partition);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        long period = Math.max(1000L, leaseTimeoutMillis / 3);
+        heartbeat.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                if (lost) {
+                    return;
+                }
+                if (!ownsLease(partition)) {
+                    lost = true;
+                    log.warn("Lease on partition " + partition + " was taken over by another member, abandoning it");
+                    if (exporter != null) {
+                        exporter.interrupt();
+                    }
+                    return;
+                }
+                fileOf(partition, "lease").setLastModified(System.currentTimeMillis());
+                writeProgress(partition, statistics, total, false);
+            }
+        }, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    public void stopHeartbeat() {
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+            heartbeat = null;
+        }
+    }
+
+    /**
+     * Mark a partition as done and release its lease, unless the lease was
+     * taken over by another member
+     *
+     * @param partition partition number
+     * @param statistics statistics of the tasks that exported the partition
+     * @param total number of nodes in the partition
+     * @return false if the lease was lost, the partition is then left to its new owner
+     * @throws IOException
+     */
+    public boolean complete(int partition, ExportStatistics statistics, int total) throws IOException {
+        if (lost || !ownsLease(partition)) {
+            lost = true;
+            current = -1;
+            log.warn("Lease on partition " + partition + " was taken over by another member, not marking it done");
+            return false;
+        }
+        writeProgress(partition, statistics, total, true);
+        if (!fileOf(partition, "done").createNewFile()) {
+            log.warn("Partition " + partition + " was already marked as done");
+        }
+        current = -1;
+        fileOf(partition, "lease").delete();
+        return true;
+    }
+
+    /**
+     * Release the lease of a partition without marking it done, so another
+     * member can pick it up
+     *
+     * @param partition partition number
+     */
+    public void release(int partition) {
+        current = -1;
+        if (ownsLease(partition)) {
+            fileOf(partition, "lease").delete();
+        }
+    }
+
+    private File fileOf(int partition, String extension) {
+        return new File(coordinationDir, "partition-" + partition + "." + extension);
+    }
+
+    private String newToken() {
+        return memberName + " " + UUID.randomUUID();
+    }
+
+    private int claimed(int partition, String claim) {
+        token = claim;
+        lost = false;
+        current = partition;
+        return partition;
+    }
+
+    private boolean ownsLease(int partition) {
+        try {
+            return token != null && token.equals(readToken(fileOf(partition, "lease")));
+        } catch (IOException e) {
+            // a missing lease was released or is being replaced, it is not ours any more
+            return false;
+        }
+    }
+
+    private void writeToken(File lease, String claim) throws IOException {
+        OutputStream out = new FileOutputStream(lease);
+        try {
+            out.write((claim + "\n").getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private String readToken(File lease) throws IOException {
+        return new String(Files.readAllBytes(lease.toPath()), "UTF-8").trim();
+    }
+
+    private void writeProgress(int partition, ExportStatistics statistics, int total, boolean finished) {
+        Properties progress = new Properties();
+        progress.setProperty("member", memberName);
+        progress.setProperty("partition", String.valueOf(partition));
+        progress.setProperty("total", String.valueOf(total));
+        progress.setProperty("exported", String.valueOf(statistics.getNodesExported()));
+        progress.setProperty("failed", String.valueOf(statistics.getNodesFailed()));
+        progress.setProperty("nodesPerSecond", String.format("%.1f", statistics.getNodesPerSecond()));
+        progress.setProperty("finished", String.valueOf(finished));
+
+        try {
+            OutputStream out = new FileOutputStream(fileOf(partition, "progress"));
+            try {
+                progress.store(out, "Updated " + new Date());
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            log.warn("Could not write progress of partition " + partition, e);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import java.util.Comparator;
+
+/**
+ * Orders content URLs the way the file content store lays them out on disk.
+ *
+ * The URLs of the file content store look like
+ * store://2015/3/12/10/45/uuid.bin, where the numbers are the year, month,
+ * day, hour and minute folders. Runs of digits are compared as numbers so
+ * that 2015/3 comes before 2015/10, the rest is compared character by
+ * character. Null URLs (no content) come last.
+ */
+public class ContentUrlComparator implements Comparator<String> {
+
+    @Override
+    public int compare(String url1, String url2) {
+        if (url1 == null || url2 == null) {
+            return url1 == null ? (url2 == null ? 0 : 1) : -1;
+        }
+
+        int i1 = 0;
+        int i2 = 0;
+        while (i1 < url1.length() && i2 < url2.length()) {
+            char c1 = url1.charAt(i1);
+            char c2 = url2.charAt(i2);
+            if (isDigit(c1) && isDigit(c2)) {
+                int end1 = digitsEnd(url1, i1);
+                int end2 = digitsEnd(url2, i2);
+                int result = compareNumbers(url1, i1, end1, url2, i2, end2);
+                if (result != 0) {
+                    return result;
+                }
+                i1 = end1;
+                i2 = end2;
+            } else {
+                if (c1 != c2) {
+                    return c1 < c2 ? -1 : 1;
+                }
+                i1++;
+                i2++;
+            }
+        }
+        return (url1.length() - i1) - (url2.length() - i2);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int digitsEnd(String s, int start) {
+        int end = start;
+        while (end < s.length() && isDigit(s.charAt(end))) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Compare two runs of digits as numbers, without parsing them so any
+     * length is supported
+     */
+    private static int compareNumbers(String s1, int start1, int end1, String s2, int start2, int end2) {
+        while (start1 < end1 - 1 && s1.charAt(start1) == '0') {
+            start1++;
+        }
+        while (start2 < end2 - 1 && s2.charAt(start2) == '0') {
+            start2++;
+        }
+
+        int length1 = end1 - start1;
+        int length2 = end2 - start2;
+        if (length1 != length2) {
+            return length1 < length2 ? -1 : 1;
+        }
+        for (int i = 0; i < length1; i++) {
+            char c1 = s1.charAt(start1 + i);
+            char c2 = s2.charAt(start2 + i);
+            if (c1 != c2) {
+                return c1 < c2 ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+}
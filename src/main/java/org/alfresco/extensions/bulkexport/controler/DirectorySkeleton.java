@@ -0,0 +1,311 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import org.alfresco.extensions.bulkexport.dao.AlfrescoExportDao;
+import org.alfresco.extensions.bulkexport.model.ExportScratch;
+import org.alfresco.extensions.bulkexport.model.FileFolder;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * Folder tree of an export, created before any document is written.
+ *
+ * The planning tasks sort the nodes to export into folders and documents and
+ * resolve the path of the folders. The folders are then created level by
+ * level, each level in parallel: the parent of a folder always exists when
+ * it is created and no two threads create the same folder. Documents are
+ * exported afterwards and never have to check or create their parent.
+ *
+ * A folder failing is still created as a plain directory, so its documents
+ * are written, and retried with the failed documents; the retries check and
+ * create their parent folders.
+ */
+public class DirectorySkeleton {
+    Log log = LogFactory.getLog(DirectorySkeleton.class);
+
+    /**
+     * A folder to create, with its resolved path
+     */
+    static class Folder {
+        final NodeRef nodeRef;
+        final String path;
+
+        Folder(NodeRef nodeRef, String path) {
+            this.nodeRef = nodeRef;
+            this.path = path;
+        }
+    }
+
+    private final AlfrescoExportDao dao;
+    private final FileFolder fileFolder;
+    private final ExportStatistics statistics;
+
+    private final ConcurrentLinkedQueue<Folder> folders = new ConcurrentLinkedQueue<Folder>();
+    private final ConcurrentLinkedQueue<Document> documents = new ConcurrentLinkedQueue<Document>();
+
+    private RateGovernor rateGovernor;
+    private MemoryBudget memoryBudget;
+    private AclTable aclTable;
+    private AssociationTable associationTable;
+    private RetryQueue retryQueue;
+    private ExportTrace trace = ExportTrace.DISABLED;
+    private boolean contentOrder;
+
+    /**
+     * A document to export, with the URL of its content when sorting by content location
+     */
+    static class Document {
+        final NodeRef nodeRef;
+        final String contentUrl;
+
+        Document(NodeRef nodeRef, String contentUrl) {
+            this.nodeRef = nodeRef;
+            this.contentUrl = contentUrl;
+        }
+    }
+
+    /**
+     * @param dao Data Access Object
+     * @param fileFolder file and folder manager
+     * @param statistics counters updated for the folders exported
+     */
+    DirectorySkeleton(AlfrescoExportDao dao, FileFolder fileFolder, ExportStatistics statistics) {
+        this.dao = dao;
+        this.fileFolder = fileFolder;
+        this.statistics = statistics;
+    }
+
+    void setRateGovernor(RateGovernor rateGovernor) {
+        this.rateGovernor = rateGovernor;
+    }
+
+    void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    void setAclTable(AclTable aclTable) {
+        this.aclTable = aclTable;
+    }
+
+    void setAssociationTable(AssociationTable associationTable) {
+        this.associationTable = associationTable;
+    }
+
+    void setRetryQueue(RetryQueue retryQueue) {
+        this.retryQueue = retryQueue;
+    }
+
+    void setTrace(ExportTrace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Hand the documents out in content store order rather than tree order,
+     * so that their content is read nearly sequentially
+     *
+     * @param contentOrder true to sort the documents by content URL
+     */
+    void setContentOrder(boolean contentOrder) {
+        this.contentOrder = contentOrder;
+    }
+
+    /**
+     * Task sorting nodes into folders and documents
+     *
+     * @param nodes nodes to sort
+     * @return {@link Callable}
+     */
+    Callable<String> planTask(final List<NodeRef> nodes) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                AuthenticationUtil.setAdminUserAsFullyAuthenticatedUser();
+                try {
+                    for (NodeRef nodeRef : nodes) {
+                        plan(nodeRef);
+                    }
+                } finally {
+                    AuthenticationUtil.clearCurrentSecurityContext();
+                }
+                return "Planned " + nodes.size() + " nodes";
+            }
+        };
+    }
+
+    /**
+     * Task creating folders of the same level, with their metadata
+     *
+     * @param level folders to create, whose parents exist
+     * @return {@link Callable}
+     */
+    Callable<String> createTask(final List<Folder> level) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                AuthenticationUtil.setAdminUserAsFullyAuthenticatedUser();
+                try {
+                    ExportScratch scratch = ExportScratch.forCurrentThread();
+                    WriteFailureHandler writeFailures = new WriteFailureHandler(retryQueue, 1, fileFolder, statistics);
+                    for (Folder folder : level) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            break;
+                        }
+                        create(folder, scratch, writeFailures);
+                    }
+                } finally {
+                    AuthenticationUtil.clearCurrentSecurityContext();
+                }
+                return "Created " + level.size() + " folders";
+            }
+        };
+    }
+
+    /**
+     * Folders grouped by depth, shallowest first
+     *
+     * @return {@link List}
+     */
+    List<List<Folder>> levels() {
+        Map<Integer, List<Folder>> byDepth = new TreeMap<Integer, List<Folder>>();
+        for (Folder folder : folders) {
+            Integer depth = depth(folder.path);
+            List<Folder> level = byDepth.get(depth);
+            if (level == null) {
+                level = new ArrayList<Folder>();
+                byDepth.put(depth, level);
+            }
+            level.add(folder);
+        }
+        return new ArrayList<List<Folder>>(byDepth.values());
+    }
+
+    int getFolderCount() {
+        return folders.size();
+    }
+
+    /**
+     * @return the documents found while planning, sorted by content URL if asked for
+     */
+    List<NodeRef> getDocuments() {
+        List<Document> sorted = new ArrayList<Document>(documents);
+        if (contentOrder) {
+            final ContentUrlComparator comparator = new ContentUrlComparator();
+            Collections.sort(sorted, new Comparator<Document>() {
+                @Override
+                public int compare(Document document1, Document document2) {
+                    return comparator.compare(document1.contentUrl, document2.contentUrl);
+                }
+            });
+        }
+
+        List<NodeRef> nodes = new ArrayList<NodeRef>(sorted.size());
+        for (Document document : sorted) {
+            nodes.add(document.nodeRef);
+        }
+        return nodes;
+    }
+
+    private void plan(NodeRef nodeRef) {
+        try {
+            if (this.dao.isFolder(nodeRef)) {
+                long start = trace.start();
+                String path = this.dao.getPath(nodeRef);
+                trace.end(ExportTrace.PATH, nodeRef.getId(), 0, start);
+                folders.add(new Folder(nodeRef, path));
+            } else {
+                documents.add(new Document(nodeRef, contentOrder ? this.dao.getContentUrl(nodeRef) : null));
+            }
+        } catch (Exception e) {
+            log.error("Error planning Node: " + nodeRef.getId(), e);
+            // retried as a plain node once the documents are exported
+            if (retryQueue == null || !retryQueue.failed(nodeRef, 1, e, fileFolder, statistics)) {
+                statistics.nodeFailed();
+            }
+        }
+    }
+
+    private void create(Folder folder, ExportScratch scratch, WriteFailureHandler writeFailures) throws InterruptedException {
+        if (rateGovernor != null) {
+            rateGovernor.acquireNode();
+        }
+        if (memoryBudget != null) {
+            memoryBudget.acquireNode();
+        }
+
+        long nodeStart = System.nanoTime();
+        try {
+            long start = trace.start();
+            String type = this.dao.getType(folder.nodeRef);
+            List<String> aspects = this.dao.getAspectsAsString(folder.nodeRef, scratch);
+            Map<String, String> properties = this.dao.getPropertiesAsString(folder.nodeRef, scratch);
+            trace.end(ExportTrace.METADATA, folder.nodeRef.getId(), properties.size(), start);
+
+            start = trace.start();
+            boolean exported = this.fileFolder.isExported(folder.path);
+            this.fileFolder.createFolder(folder.path);
+            this.fileFolder.insertFileProperties(type, aspects, properties, folder.path, scratch, folder.nodeRef, writeFailures, exported);
+            trace.end(ExportTrace.XML, folder.nodeRef.getId(), 0, start);
+            if (aclTable != null) {
+                aclTable.record(folder.nodeRef, this.fileFolder.getSubdirectory() + folder.path);
+            }
+            if (associationTable != null) {
+                associationTable.record(folder.nodeRef, this.fileFolder.getSubdirectory() + folder.path);
+            }
+            statistics.nodeExported();
+        } catch (Exception e) {
+            log.error("Error creating folder " + folder.path + " of Node: " + folder.nodeRef.getId(), e);
+            // the documents under it are written without checking their parent
+            try {
+                this.fileFolder.createFolder(folder.path);
+            } catch (Exception createError) {
+                log.error("Could not create folder " + folder.path, createError);
+            }
+            // retried as a plain node once the documents are exported
+            if (retryQueue == null || !retryQueue.failed(folder.nodeRef, 1, e, fileFolder, statistics)) {
+                statistics.nodeFailed();
+            }
+        } finally {
+            statistics.addNodeTime(System.nanoTime() - nodeStart);
+            if (memoryBudget != null) {
+                memoryBudget.releaseNode();
+            }
+        }
+    }
+
+    private static int depth(String path) {
+        int depth = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                depth++;
+            }
+        }
+        return depth;
+    }
+}
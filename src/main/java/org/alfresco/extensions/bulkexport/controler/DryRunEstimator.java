@@ -0,0 +1,284 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import org.alfresco.extensions.bulkexport.dao.AlfrescoExportDao;
+import org.alfresco.extensions.bulkexport.dao.NodeRefRevision;
+import org.alfresco.extensions.bulkexport.model.ExportScratch;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+
+/**
+ * Estimates the cost of an export without writing anything.
+ *
+ * A sample of the nodes is read the way the export reads them (type,
+ * aspects, properties, path, content size and versions) and the totals are
+ * extrapolated from it. The sample is drawn either from the full list of the
+ * nodes, when discovery is affordable, or by random probes from the root to
+ * a leaf for huge trees: each node met on a probe stands for the product of
+ * the number of children of its ancestors (Knuth's estimator of the size of
+ * a tree), the average over the probes estimating the totals.
+ *
+ * The duration is predicted from the time the sample took per node and from
+ * the throughput of reading a few sampled contents, divided among the
+ * workers.
+ */
+public class DryRunEstimator {
+    Log log = LogFactory.getLog(DryRunEstimator.class);
+
+    /** Content read per sampled node at most to measure the throughput */
+    private static final long MAX_CONTENT_READ = 8 * 1024 * 1024;
+
+    private final AlfrescoExportDao dao;
+    private final boolean exportVersions;
+    private final int nbOfThreads;
+    private final long contentSampleBytes;
+    private final Random random = new Random();
+
+    /**
+     * Totals extrapolated from a sample
+     */
+    public static class Estimate {
+        double nodes;
+        double folders;
+        double documents;
+        double contentFiles;
+        double bytes;
+        final Map<String, Double> types = new TreeMap<String, Double>();
+        int sampled;
+        long sampleNanos;
+        long contentRead;
+        long contentNanos;
+        long elapsedMillis;
+        int threads;
+        boolean probed;
+
+        public long getNodes() {
+            return Math.round(nodes);
+        }
+
+        /**
+         * @return content and metadata files to be written
+         */
+        public long getFiles() {
+            // a metadata file per folder and per content file
+            return Math.round(folders + contentFiles * 2);
+        }
+
+        public long getBytes() {
+            return Math.round(bytes);
+        }
+
+        /**
+         * @return predicted duration of the export, in seconds
+         */
+        public long getSeconds() {
+            if (sampled == 0) {
+                return 0;
+            }
+            double metadataNanos = nodes * sampleNanos / sampled;
+            double contentNanosTotal = contentRead > 0 ? bytes * contentNanos / contentRead : 0;
+            return Math.round((metadataNanos + contentNanosTotal) / 1e9 / Math.max(1, threads));
+        }
+
+        public Map<String, Double> getTypes() {
+            return types;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            text.append(probed ? "Estimated by random probes" : "Estimated from full discovery")
+                    .append(", ").append(sampled).append(" nodes sampled in ").append(elapsedMillis).append(" ms\n");
+            text.append("   nodes     : ").append(getNodes())
+                    .append(" (").append(Math.round(folders)).append(" folders, ").append(Math.round(documents)).append(" documents)\n");
+            text.append("   files     : ").append(getFiles()).append("\n");
+            text.append("   bytes     : ").append(getBytes()).append(" (").append(getBytes() / (1024 * 1024)).append(" MB)\n");
+            text.append("   duration  : ").append(getSeconds()).append(" seconds with ").append(threads).append(" threads\n");
+            if (contentRead > 0) {
+                text.append(String.format("   read rate : %.1f MB/s per thread%n", contentRead / (contentNanos / 1e9) / (1024 * 1024)));
+            }
+            text.append("   types     :\n");
+            for (Map.Entry<String, Double> type : types.entrySet()) {
+                text.append("      ").append(type.getKey()).append(" ").append(Math.round(type.getValue())).append("\n");
+            }
+            return text.toString();
+        }
+    }
+
+    /**
+     * @param dao Data Access Object
+     * @param exportVersions true if the export would write every version
+     * @param nbOfThreads number of workers of the export
+     * @param contentSampleBytes content read in all to measure the read throughput, 0 not to read any
+     */
+    public DryRunEstimator(AlfrescoExportDao dao, boolean exportVersions, int nbOfThreads, long contentSampleBytes) {
+        this.dao = dao;
+        this.exportVersions = exportVersions;
+        this.nbOfThreads = nbOfThreads;
+        this.contentSampleBytes = contentSampleBytes;
+    }
+
+    /**
+     * Estimate from the full list of the nodes to export, reading a uniform
+     * sample of them
+     *
+     * @param nodes all the nodes to export
+     * @param sampleSize number of nodes read
+     * @return the estimate
+     * @throws Exception
+     */
+    public Estimate fromNodes(List<NodeRef> nodes, int sampleSize) throws Exception {
+        long start = System.currentTimeMillis();
+        Estimate estimate = newEstimate(false);
+
+        List<NodeRef> sample = nodes;
+        if (nodes.size() > sampleSize) {
+            sample = new ArrayList<NodeRef>(nodes);
+            Collections.shuffle(sample, random);
+            sample = sample.subList(0, sampleSize);
+        }
+        double weight = sample.isEmpty() ? 0 : (double) nodes.size() / sample.size();
+        for (NodeRef nodeRef : sample) {
+            measure(nodeRef, weight, estimate);
+        }
+
+        estimate.elapsedMillis = System.currentTimeMillis() - start;
+        return estimate;
+    }
+
+    /**
+     * Estimate by random walks from the root, without discovering the tree
+     *
+     * @param root root of the export
+     * @param probes number of walks
+     * @return the estimate
+     * @throws Exception
+     */
+    public Estimate fromProbes(NodeRef root, int probes) throws Exception {
+        long start = System.currentTimeMillis();
+        Estimate estimate = newEstimate(true);
+
+        for (int probe = 0; probe < probes; probe++) {
+            NodeRef nodeRef = root;
+            // number of nodes the current node stands for, averaged over the probes
+            double weight = 1.0 / probes;
+            while (nodeRef != null) {
+                boolean folder = measure(nodeRef, weight, estimate);
+                if (!folder) {
+                    break;
+                }
+                List<NodeRef> children = dao.getChildren(nodeRef);
+                if (children.isEmpty()) {
+                    break;
+                }
+                weight *= children.size();
+                nodeRef = children.get(random.nextInt(children.size()));
+            }
+        }
+
+        estimate.elapsedMillis = System.currentTimeMillis() - start;
+        return estimate;
+    }
+
+    private Estimate newEstimate(boolean probed) {
+        Estimate estimate = new Estimate();
+        estimate.threads = nbOfThreads;
+        estimate.probed = probed;
+        return estimate;
+    }
+
+    /**
+     * Read a node as the export would, and add what it stands for to the estimate
+     *
+     * @return true if the node is a folder
+     */
+    private boolean measure(NodeRef nodeRef, double weight, Estimate estimate) throws Exception {
+        ExportScratch scratch = ExportScratch.forCurrentThread();
+        long start = System.nanoTime();
+
+        boolean folder = dao.isFolder(nodeRef);
+        String type = dao.getType(nodeRef);
+        dao.getAspectsAsString(nodeRef, scratch);
+        dao.getPropertiesAsString(nodeRef, scratch);
+        dao.getPath(nodeRef);
+
+        estimate.nodes += weight;
+        Double count = estimate.types.get(type);
+        estimate.types.put(type, (count != null ? count : 0) + weight);
+
+        ContentReader reader = null;
+        if (folder) {
+            estimate.folders += weight;
+        } else {
+            estimate.documents += weight;
+            int versions = 1;
+            if (exportVersions) {
+                Map<String, NodeRefRevision> history = dao.getNodeRefHistory(nodeRef.toString());
+                if (history != null && !history.isEmpty()) {
+                    versions = history.size();
+                }
+            }
+            reader = dao.getContentReader(nodeRef);
+            if (reader != null) {
+                estimate.contentFiles += weight * versions;
+                // versions are assumed to be the size of the head
+                estimate.bytes += weight * versions * reader.getSize();
+            }
+        }
+        estimate.sampleNanos += System.nanoTime() - start;
+        estimate.sampled++;
+
+        if (reader != null && estimate.contentRead < contentSampleBytes && reader.getSize() > 0) {
+            readContent(reader, scratch, estimate);
+        }
+        return folder;
+    }
+
+    private void readContent(ContentReader reader, ExportScratch scratch, Estimate estimate) {
+        long start = System.nanoTime();
+        long read = 0;
+        try {
+            InputStream in = reader.getContentInputStream();
+            try {
+                byte[] buffer = scratch.getCopyBuffer();
+                int count;
+                while (read < MAX_CONTENT_READ && (count = in.read(buffer)) != -1) {
+                    read += count;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            log.debug("Could not read sampled content " + reader.getContentUrl(), e);
+            return;
+        }
+        estimate.contentNanos += System.nanoTime() - start;
+        estimate.contentRead += read;
+    }
+}
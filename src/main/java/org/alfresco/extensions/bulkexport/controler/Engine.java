@@ -17,14 +17,32 @@
 package org.alfresco.extensions.bulkexport.controler;
 
 import org.alfresco.extensions.bulkexport.dao.AlfrescoExportDao;
+import org.alfresco.extensions.bulkexport.model.ExportManifest;
 import org.alfresco.extensions.bulkexport.model.FileFolder;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -39,6 +57,9 @@ import java.util.concurrent.Future;
 public class Engine {
     Log log = LogFactory.getLog(Engine.class);
 
+    /** Name of the progress file of a multi-root export */
+    public static final String ROOTS_FILE = "roots.tsv";
+
     /** Data Access Object */
     private AlfrescoExportDao dao;
 
@@ -62,6 +83,48 @@ public class Engine {
     /** How many Nodes are exported per process*/
     private int exportChunkSize;
 
+    /** Splits the work between cluster members, null when exporting alone */
+    private ClusterPartitioner clusterPartitioner;
+
+    /** Tunes the number of running workers, null to always run nbOfThreads */
+    private AdaptiveConcurrencyController concurrencyController;
+
+    /** Limits the load put on the repository, null for no limit */
+    private RateGovernor rateGovernor;
+
+    /** Manifest of the exported files, null if not written */
+    private ExportManifest manifest;
+
+    /** Bounds the data held by the workers at once, null for no limit */
+    private MemoryBudget memoryBudget;
+
+    /** Permissions of the exported nodes, null to skip them */
+    private AclTable aclTable;
+
+    /** Associations of the exported nodes, null to skip them */
+    private AssociationTable associationTable;
+
+    /** Number of node ids per range when nodes are found by id scan, 0 to walk the tree */
+    private int scanRangeSize;
+
+    /** Warms the repository caches ahead of the workers, null to disable */
+    private ReadAhead readAhead;
+
+    /** Failed nodes waiting for another attempt, null to give up at once */
+    private RetryQueue retryQueue;
+
+    /** If true folders are all created before the documents are exported */
+    private boolean folderFirst = true;
+
+    /** If true documents are exported in content store order instead of tree order */
+    private boolean contentOrder;
+
+    /** Timing events of the job, disabled unless the job is traced */
+    private ExportTrace trace = ExportTrace.DISABLED;
+
+    /** Counters of the nodes handled by this member */
+    private ExportStatistics statistics = new ExportStatistics();
+
     /**
      * Engine Default Builder
      *
@@ -78,6 +141,217 @@ public class Engine {
         this.exportChunkSize = exportChunkSize;
     }
 
+    public void setClusterPartitioner(ClusterPartitioner clusterPartitioner) {
+        this.clusterPartitioner = clusterPartitioner;
+    }
+
+    /**
+     * Let the given controller decide how many of the nbOfThreads workers run
+     *
+     * @param concurrencyController
+     */
+    public void setConcurrencyController(AdaptiveConcurrencyController concurrencyController) {
+        this.concurrencyController = concurrencyController;
+    }
+
+    /**
+     * Throttle nodes, content bytes and repository calls with the given governor.
+     * Repository calls are throttled by wrapping the Data Access Object.
+     *
+     * @param rateGovernor
+     */
+    public void setRateGovernor(RateGovernor rateGovernor) {
+        this.rateGovernor = rateGovernor;
+        this.dao = new ThrottledExportDao(this.dao, rateGovernor);
+    }
+
+    /**
+     * Record every exported content, with its digest, in the given manifest
+     *
+     * @param manifest
+     */
+    public void setManifest(ExportManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * Make the workers wait for room in the given budget before reading
+     * nodes and holding files for the write-behind writers
+     *
+     * @param memoryBudget
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        if (fileFolder.getWriteBehind() != null) {
+            fileFolder.getWriteBehind().setBudget(memoryBudget);
+        }
+    }
+
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return the Data Access Object used by the workers, throttled if a rate governor is set
+     */
+    public AlfrescoExportDao getDao() {
+        return dao;
+    }
+
+    /**
+     * Export the permissions of the nodes, by ACL id
+     *
+     * @param aclTable table the ACLs are written to, null to skip permissions
+     */
+    public void setAclTable(AclTable aclTable) {
+        this.aclTable = aclTable;
+    }
+
+    public AclTable getAclTable() {
+        return aclTable;
+    }
+
+    /**
+     * Find the nodes to export by scanning the node database ids in
+     * parallel ranges instead of walking the tree, faster for a whole store
+     * or a whole site
+     *
+     * @param scanRangeSize number of ids per range, 0 to walk the tree
+     */
+    public void setScanRangeSize(int scanRangeSize) {
+        this.scanRangeSize = scanRangeSize;
+    }
+
+    /**
+     * Prefetch the nodes of every task a window ahead of the task
+     *
+     * @param readAhead prefetcher, null to disable
+     */
+    public void setReadAhead(ReadAhead readAhead) {
+        this.readAhead = readAhead;
+    }
+
+    public ReadAhead getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * Retry the failed nodes with a growing delay, and write those failing
+     * for good to a dead letter file
+     *
+     * @param retryQueue queue of the failed nodes, null to give up at once
+     */
+    public void setRetryQueue(RetryQueue retryQueue) {
+        this.retryQueue = retryQueue;
+    }
+
+    public RetryQueue getRetryQueue() {
+        return retryQueue;
+    }
+
+    /**
+     * Export the given nodes, e.g. those of a dead letter file, without
+     * looking for their children
+     *
+     * @param nodes nodes to export
+     */
+    public void executeNodes(List<NodeRef> nodes) throws Exception {
+        executeNodes(Collections.singletonMap("", nodes));
+    }
+
+    /**
+     * Export the given nodes, each to a subdirectory of the export folder,
+     * e.g. the roots of the nodes of a dead letter file
+     *
+     * @param nodes nodes to export by subdirectory, relative to the export folder, empty for the export folder itself
+     */
+    public void executeNodes(Map<String, List<NodeRef>> nodes) throws Exception {
+        startJob();
+        try {
+            for (Map.Entry<String, List<NodeRef>> subdirectory : nodes.entrySet()) {
+                log.info("Nodes to export" + (subdirectory.getKey().isEmpty() ? "" : " to " + subdirectory.getKey()) + " = " + subdirectory.getValue().size());
+                FileFolder subdirectoryFolder = subdirectory.getKey().isEmpty()
+                        ? fileFolder : fileFolder.forSubdirectory(subdirectory.getKey().substring(1));
+                exportNodes(subdirectory.getValue(), statistics, false, subdirectoryFolder);
+            }
+        } finally {
+            finishJob();
+        }
+    }
+
+    /**
+     * Export several trees with the same workers. At most nbOfThreads roots
+     * are discovered at a time, on the workers, and the nodes of a root are
+     * handed to the workers as soon as it is discovered, behind those of the
+     * roots discovered before. The progress of every root is logged, and
+     * written to {@value #ROOTS_FILE} in the export folder at the end.
+     *
+     * The roots are exported node by node, without the folder first phase
+     * nor cluster partitions, and discovered by walking their tree.
+     *
+     * @param roots the roots, each with the folder its nodes are written to
+     */
+    public void executeRoots(List<ExportRoot> roots) throws Exception {
+        log.info("Roots to export = " + roots.size());
+
+        startJob();
+        try {
+            exportRoots(roots);
+        } finally {
+            finishJob();
+            writeRootsReport(roots);
+        }
+    }
+
+    /**
+     * Export the peer and secondary child associations of the nodes
+     *
+     * @param associationTable table the associations are written to, null to skip them
+     */
+    public void setAssociationTable(AssociationTable associationTable) {
+        this.associationTable = associationTable;
+    }
+
+    public AssociationTable getAssociationTable() {
+        return associationTable;
+    }
+
+    /**
+     * Create the whole folder tree, breadth first, before exporting the
+     * documents. Not used for cluster exports, where the folders of a
+     * document may belong to the partition of another member.
+     *
+     * @param folderFirst false to export folders and documents together
+     */
+    public void setFolderFirst(boolean folderFirst) {
+        this.folderFirst = folderFirst;
+    }
+
+    /**
+     * Export the documents sorted by the URL of their content, so a file
+     * content store is read nearly sequentially. Output paths do not change.
+     * Only used with {@link #setFolderFirst(boolean)}, which knows the
+     * documents before exporting them.
+     *
+     * @param contentOrder true to sort documents by content URL
+     */
+    public void setContentOrder(boolean contentOrder) {
+        this.contentOrder = contentOrder;
+    }
+
+    /**
+     * Record timing events of every step of the job in the given trace
+     *
+     * @param trace
+     */
+    public void setTrace(ExportTrace trace) {
+        this.trace = trace;
+    }
+
+    public ExportStatistics getStatistics() {
+        return statistics;
+    }
+
     /**
      * Recursive method to export alfresco nodes to file system 
      *
@@ -88,13 +362,195 @@ public class Engine {
         // other else create file 
         log.debug("execute (noderef)");
 
+        startJob();
+        try {
+            doExecute(nodeRef);
+        } finally {
+            finishJob();
+        }
+        log.debug("execute (noderef) finished");
+    }
+
+    /**
+     * Export the nodes matching a repository query instead of a tree. The
+     * query is run page by page and each page is handed to the workers as
+     * soon as it is read, so only a few pages are held at once.
+     *
+     * @param language query language, e.g. fts-alfresco or cmis-alfresco
+     * @param query the query
+     * @param pageSize number of nodes read per page
+     */
+    public void executeQuery(String language, String query, int pageSize) throws Exception {
+        log.debug("executeQuery (" + language + ") " + query);
+
+        startJob();
+        try {
+            exportQueryResults(language, query, pageSize);
+        } finally {
+            finishJob();
+        }
+        log.debug("executeQuery finished");
+    }
+
+    private void startJob() {
+        if (rateGovernor != null) {
+            rateGovernor.start(fileFolder.basePath());
+        }
+    }
+
+    private void finishJob() {
+        if (fileFolder.getWriteBehind() != null) {
+            // first, the files still waiting are part of the export
+            try {
+                fileFolder.getWriteBehind().close();
+            } catch (IOException e) {
+                statistics.filesFailed(fileFolder.getWriteBehind().getUnhandledFailures());
+                log.error("Could not write every file", e);
+            }
+        }
+        if (manifest != null) {
+            // merged even after a failure, the manifest then lists what was exported
+            try {
+                manifest.merge();
+            } catch (IOException e) {
+                log.error("Could not write manifest " + manifest.getManifestFile().getPath(), e);
+            }
+        }
+        if (rateGovernor != null) {
+            rateGovernor.stop();
+        }
+        if (aclTable != null) {
+            try {
+                aclTable.close();
+            } catch (IOException e) {
+                log.error("Could not write ACL node references", e);
+            }
+        }
+        if (associationTable != null) {
+            try {
+                associationTable.close();
+            } catch (IOException e) {
+                log.error("Could not write associations", e);
+            }
+        }
+        if (fileFolder.getMetadataShards() != null) {
+            try {
+                fileFolder.getMetadataShards().merge();
+            } catch (IOException e) {
+                log.error("Could not write metadata index " + fileFolder.getMetadataShards().getIndexFile().getPath(), e);
+            }
+        }
+        trace.close();
+        if (fileFolder.getRangedCopy() != null) {
+            fileFolder.getRangedCopy().shutdown();
+        }
+        if (memoryBudget != null) {
+            log.info("Memory budget " + memoryBudget);
+        }
+        if (retryQueue != null) {
+            try {
+                retryQueue.close();
+            } catch (IOException e) {
+                log.error("Could not write dead letters", e);
+            }
+            log.info("Retries: " + retryQueue);
+        }
+        if (readAhead != null) {
+            readAhead.shutdown();
+            log.info("Read ahead " + readAhead);
+        }
+    }
+
+    private void doExecute(NodeRef nodeRef) throws Exception {
         if (!this.dao.isNodeIgnored(nodeRef.toString())) {
             log.info("Find all nodes to export (no history)");
             List<NodeRef> allNodes = getNodesToExport(nodeRef);
             log.info("Nodes to export = " + allNodes.size());
-            exportNodes(allNodes);
+            if (clusterPartitioner != null) {
+                exportPartitions(allNodes);
+            } else if (folderFirst) {
+                exportFolderFirst(allNodes);
+            } else {
+                exportNodes(allNodes, statistics, false);
+            }
         }
-        log.debug("execute (noderef) finished");
+    }
+
+    /**
+     * Compare the nodes under the given node with what was exported in the
+     * export folder, using the same export options
+     *
+     * @param nodeRef root of the exported nodes
+     * @param digestAlgorithm algorithm used to compare contents, null to compare sizes only
+     * @return the report of the verification
+     */
+    public VerificationReport verify(NodeRef nodeRef, String digestAlgorithm) throws Exception {
+        log.info("Find all nodes to verify");
+        List<NodeRef> nodes = null;
+        if (useNodeCache) {
+            nodes = retrieveNodeListFromCache(nodeRef);
+        }
+        if (nodes == null) {
+            nodes = discoverNodes(nodeRef);
+        }
+        log.info("Nodes to verify = " + nodes.size());
+
+        VerificationReport report = new VerificationReport(new File(fileFolder.basePath(), nodeRef.getId() + ".verify.tsv"));
+        ExecutorService threadPool = Executors.newFixedThreadPool(nbOfThreads);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            int lowerLimitNodeNumber = 0;
+            int taskNumber = 1;
+            while (lowerLimitNodeNumber < nodes.size()) {
+                int upperLimitNodeNumber = calculateNextUpperLimitNodeNumber(lowerLimitNodeNumber, nodes.size());
+                futures.add(threadPool.submit(new NodeVerifyTask(nodes.subList(lowerLimitNodeNumber, upperLimitNodeNumber), exportVersions,
+                        revisionHead, dao, fileFolder, taskNumber++, report, digestAlgorithm)));
+                lowerLimitNodeNumber = upperLimitNodeNumber;
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            report.unexpectedFiles(fileFolder.basePath(), dao.getPath(nodeRef));
+        } finally {
+            threadPool.shutdownNow();
+            report.close();
+        }
+
+        log.info("Verification finished, " + report + ", report written to " + report.getReportFile().getPath());
+        return report;
+    }
+
+    /**
+     * Estimate the export of the nodes under the given node without writing
+     * anything
+     *
+     * @param nodeRef root of the nodes to export
+     * @param probes number of random probes of the tree, 0 to discover all the nodes
+     * @param sampleSize number of nodes read when all the nodes are discovered
+     * @param contentSampleBytes content read to measure the read throughput
+     * @return the estimate
+     */
+    public DryRunEstimator.Estimate dryRun(NodeRef nodeRef, int probes, int sampleSize, long contentSampleBytes) throws Exception {
+        DryRunEstimator estimator = new DryRunEstimator(dao, exportVersions, nbOfThreads, contentSampleBytes);
+        DryRunEstimator.Estimate estimate;
+        if (probes > 0) {
+            log.info("Estimate the export by " + probes + " probes");
+            estimate = estimator.fromProbes(nodeRef, probes);
+        } else {
+            log.info("Find all nodes to estimate");
+            List<NodeRef> nodes = null;
+            if (useNodeCache) {
+                nodes = retrieveNodeListFromCache(nodeRef);
+            }
+            if (nodes == null) {
+                nodes = discoverNodes(nodeRef);
+            }
+            estimate = estimator.fromNodes(nodes, sampleSize);
+        }
+        log.info("Dry run finished, " + estimate.getNodes() + " nodes, " + estimate.getBytes() + " bytes, "
+                + estimate.getSeconds() + " seconds estimated");
+        return estimate;
     }
 
     private List<NodeRef> getNodesToExport(NodeRef rootNode) throws Exception {
@@ -104,7 +560,7 @@ public class Engine {
         }
 
         if (nodes == null) {
-            nodes = findAllNodes(rootNode);
+            nodes = discoverNodes(rootNode);
             storeNodeListToCache(rootNode, nodes);
             if (useNodeCache) {
                 log.info("Generated Cached Node list");
@@ -146,6 +602,20 @@ public class Engine {
         return list;
     }
 
+    /**
+     * Find all the nodes to export under a node, by id scan or by walking the tree
+     *
+     * @param rootNode
+     */
+    private List<NodeRef> discoverNodes(NodeRef rootNode) throws Exception {
+        if (scanRangeSize > 0) {
+            NodeRangeScanner scanner = new NodeRangeScanner(dao, rootNode, nbOfThreads, scanRangeSize);
+            scanner.setTrace(trace);
+            return scanner.scan();
+        }
+        return findAllNodes(rootNode);
+    }
+
     /**
      * Recursive find of all item head nodes from a given node ref
      *
@@ -159,7 +629,9 @@ public class Engine {
             if (!this.dao.isNodeIgnored(nodeRef.toString())) {
                 if (this.dao.isFolder(nodeRef)) {
                     nodes.add(nodeRef); // add folder as well
+                    long start = trace.start();
                     List<NodeRef> children = this.dao.getChildren(nodeRef);
+                    trace.end(ExportTrace.DISCOVERY, nodeRef.getId(), children.size(), start);
                     for (NodeRef child : children) {
                         nodes.addAll(this.findAllNodes(child));
                     }
@@ -178,11 +650,113 @@ public class Engine {
 
 
     /**
-     * Creates Thread Pool and Tasks with dispatch nodes
+     * Export the partitions this member manages to claim, one after the other,
+     * until every partition is done or taken by another member
+     *
+     * @param allNodes all the nodes to export, in discovery order
+     */
+    private void exportPartitions(List<NodeRef> allNodes) throws Exception {
+        int partition;
+        while ((partition = clusterPartitioner.claimNextPartition()) != -1) {
+            List<NodeRef> nodes = clusterPartitioner.partition(allNodes, partition);
+            log.info("Member " + clusterPartitioner.getMemberName() + " claimed partition " + partition + "/"
+                    + clusterPartitioner.getPartitions() + " with " + nodes.size() + " nodes");
+
+            ExportStatistics partitionStatistics = new ExportStatistics();
+            // the heartbeat interrupts this thread if another member takes the partition over
+            clusterPartitioner.startHeartbeat(partition, partitionStatistics, nodes.size(), Thread.currentThread());
+            try {
+                exportNodes(nodes, partitionStatistics, false);
+            } catch (InterruptedException e) {
+                clusterPartitioner.stopHeartbeat();
+                if (!clusterPartitioner.isLost()) {
+                    clusterPartitioner.release(partition);
+                    throw e;
+                }
+                log.warn("Partition " + partition + " abandoned, taken over by another member, " + partitionStatistics);
+                continue;
+            } catch (Exception e) {
+                clusterPartitioner.stopHeartbeat();
+                clusterPartitioner.release(partition);
+                throw e;
+            }
+            clusterPartitioner.stopHeartbeat();
+            if (clusterPartitioner.isLost()) {
+                // interrupted too late to stop the export
+                Thread.interrupted();
+            }
+            if (clusterPartitioner.complete(partition, partitionStatistics, nodes.size())) {
+                log.info("Partition " + partition + " finished, " + partitionStatistics);
+            } else {
+                log.warn("Partition " + partition + " exported but taken over by another member, " + partitionStatistics);
+            }
+        }
+        log.info("No partition left to claim for member " + clusterPartitioner.getMemberName());
+    }
+
+    /**
+     * Export in two phases: first the folder tree, created level by level
+     * with the threads of the pool, then the documents, which can be written
+     * without checking their parent folders
+     *
+     * @param allNodes all the nodes to export
+     */
+    private void exportFolderFirst(List<NodeRef> allNodes) throws InterruptedException, ExecutionException {
+        DirectorySkeleton skeleton = new DirectorySkeleton(dao, fileFolder, statistics);
+        skeleton.setRateGovernor(rateGovernor);
+        skeleton.setMemoryBudget(memoryBudget);
+        skeleton.setAclTable(aclTable);
+        skeleton.setAssociationTable(associationTable);
+        skeleton.setRetryQueue(retryQueue);
+        skeleton.setTrace(trace);
+        skeleton.setContentOrder(contentOrder);
+
+        ExecutorService threadPool = Executors.newFixedThreadPool(nbOfThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (List<NodeRef> chunk : split(allNodes)) {
+                futures.add(threadPool.submit(skeleton.planTask(chunk)));
+            }
+            waitFor(futures);
+
+            List<List<DirectorySkeleton.Folder>> levels = skeleton.levels();
+            log.info("Creating " + skeleton.getFolderCount() + " folders on " + levels.size() + " levels");
+            for (List<DirectorySkeleton.Folder> level : levels) {
+                for (List<DirectorySkeleton.Folder> chunk : split(level)) {
+                    futures.add(threadPool.submit(skeleton.createTask(chunk)));
+                }
+                waitFor(futures);
+            }
+        } finally {
+            threadPool.shutdownNow();
+        }
+
+        List<NodeRef> documents = skeleton.getDocuments();
+        log.info("Folders created, " + statistics + ", exporting " + documents.size() + " documents");
+        fileFolder.setParentsCreated(true);
+        try {
+            exportNodes(documents, statistics, true);
+        } finally {
+            fileFolder.setParentsCreated(false);
+        }
+    }
+
+    /**
+     * Creates Thread Pool and Tasks with dispatch nodes, and waits for all
+     * of them to finish
      *
      * @param nodesToExport
+     * @param taskStatistics counters updated by the tasks
+     * @param documentsOnly true if the nodes are documents whose folders exist
      */
-    private void exportNodes(final List<NodeRef> nodesToExport) throws InterruptedException, ExecutionException {
+    private void exportNodes(final List<NodeRef> nodesToExport, ExportStatistics taskStatistics, boolean documentsOnly) throws InterruptedException, ExecutionException {
+        exportNodes(nodesToExport, taskStatistics, documentsOnly, fileFolder);
+    }
+
+    /**
+     * @param taskFileFolder where the nodes are written
+     */
+    private void exportNodes(final List<NodeRef> nodesToExport, ExportStatistics taskStatistics, boolean documentsOnly, FileFolder taskFileFolder) throws InterruptedException, ExecutionException {
         ExecutorService threadPool = Executors.newFixedThreadPool(nbOfThreads);
         List<Future<?>> futures = new ArrayList<>();
 
@@ -200,15 +774,295 @@ public class Engine {
             previousLowerLimitNodeNumber = upperLimitNodeNumber;
 
             List<NodeRef> nodesForCurrentThread = nodesToExport.subList(lowerLimitNodeNumber, upperLimitNodeNumber);
-            futures.add(threadPool.submit(new NodeExportTask(nodesForCurrentThread, exportVersions, revisionHead, dao, fileFolder, taskNumber)));
+            NodeExportTask task = createExportTask(nodesForCurrentThread, taskNumber, taskStatistics, taskFileFolder);
+            task.setDocumentsOnly(documentsOnly);
+            futures.add(threadPool.submit(task));
         }
 
-        boolean exportTerminated = false;
+        if (concurrencyController != null) {
+            concurrencyController.start(taskStatistics);
+        }
 
-        for (Future<?> future : futures) {
-            exportTerminated &= future.isDone();
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            exportRetries(threadPool, taskStatistics);
+        } finally {
+            if (concurrencyController != null) {
+                concurrencyController.stop();
+            }
+            threadPool.shutdownNow();
         }
 
+        if (taskStatistics != statistics) {
+            statistics.add(taskStatistics);
+        }
+        log.info("Export of " + nodesToExport.size() + " nodes finished, " + taskStatistics);
+    }
+
+    /**
+     * Export the failed nodes again as they become due, until none is left
+     * waiting: a retry failing again is queued with a longer delay, or goes
+     * to the dead letter file. The files waiting for the write-behind
+     * writers are written before giving up, a node whose file fails being
+     * queued as well.
+     *
+     * @param threadPool pool of the workers, idle by now
+     * @param taskStatistics statistics of the nodes retried
+     */
+    private void exportRetries(ExecutorService threadPool, ExportStatistics taskStatistics) throws InterruptedException, ExecutionException {
+        if (retryQueue == null) {
+            return;
+        }
+        // a retried document may be under a folder of the folder first phase
+        // which failed and is retried as well: its parents are checked
+        fileFolder.setParentsCreated(false);
+
+        List<Future<?>> pending = new ArrayList<>();
+        int taskNumber = 1;
+        while (true) {
+            for (Iterator<Future<?>> it = pending.iterator(); it.hasNext(); ) {
+                Future<?> future = it.next();
+                if (future.isDone()) {
+                    future.get();
+                    it.remove();
+                }
+            }
+            if (retryQueue.isEmpty() && pending.isEmpty()) {
+                if (fileFolder.getWriteBehind() == null) {
+                    break;
+                }
+                fileFolder.getWriteBehind().flush();
+                if (retryQueue.isEmpty()) {
+                    break;
+                }
+            }
+
+            RetryQueue.Retry retry = retryQueue.poll(100);
+            if (retry != null) {
+                NodeExportTask task = createExportTask(Collections.singletonList(retry.getNodeRef()), taskNumber++,
+                        retry.getStatistics() != null ? retry.getStatistics() : taskStatistics,
+                        retry.getFileFolder() != null ? retry.getFileFolder() : fileFolder);
+                task.setRetryQueue(retryQueue, retry.getAttempt());
+                pending.add(threadPool.submit(task));
+            }
+        }
+    }
+
+    private void exportRoots(List<ExportRoot> roots) throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(nbOfThreads);
+        CompletionService<ExportRoot> completion = new ExecutorCompletionService<ExportRoot>(threadPool);
+
+        if (concurrencyController != null) {
+            concurrencyController.start(statistics);
+        }
+
+        try {
+            Iterator<ExportRoot> waiting = roots.iterator();
+            int pending = 0;
+            while (pending < nbOfThreads && waiting.hasNext()) {
+                completion.submit(createDiscoveryTask(waiting.next()));
+                pending++;
+            }
+
+            int taskNumber = 1;
+            int finished = 0;
+            while (pending > 0) {
+                ExportRoot root = completion.take().get();
+                pending--;
+
+                if (root.getStatus() == ExportRoot.Status.EXPORTING) {
+                    if (root.taskFinished()) {
+                        log.info("Root " + (++finished) + "/" + roots.size() + " finished: " + root);
+                    }
+                    continue;
+                }
+
+                // a discovery is over, the next root can be discovered
+                if (waiting.hasNext()) {
+                    completion.submit(createDiscoveryTask(waiting.next()));
+                    pending++;
+                }
+                if (root.getStatus() == ExportRoot.Status.FAILED) {
+                    log.error("Root " + (++finished) + "/" + roots.size() + " not exported: " + root, root.getError());
+                    continue;
+                }
+
+                List<List<NodeRef>> chunks = split(root.takeNodes());
+                root.exporting(chunks.size());
+                log.info("Root " + root.getNodeRef() + " discovered, " + root.getNodeCount() + " nodes to export in "
+                        + chunks.size() + " tasks");
+                if (chunks.isEmpty()) {
+                    log.info("Root " + (++finished) + "/" + roots.size() + " finished: " + root);
+                }
+                for (List<NodeRef> chunk : chunks) {
+                    final NodeExportTask task = createExportTask(chunk, taskNumber++, root.getStatistics(), root.getFileFolder());
+                    final ExportRoot owner = root;
+                    completion.submit(new Callable<ExportRoot>() {
+                        @Override
+                        public ExportRoot call() throws Exception {
+                            task.call();
+                            return owner;
+                        }
+                    });
+                    pending++;
+                }
+            }
+            exportRetries(threadPool, statistics);
+        } finally {
+            if (concurrencyController != null) {
+                concurrencyController.stop();
+            }
+            threadPool.shutdownNow();
+        }
+
+        log.info("Export of " + roots.size() + " roots finished, " + statistics);
+    }
+
+    /**
+     * Discovery of a root, run by a worker. A failed discovery fails the
+     * root only.
+     */
+    private Callable<ExportRoot> createDiscoveryTask(final ExportRoot root) {
+        root.discovering(statistics);
+        return new Callable<ExportRoot>() {
+            @Override
+            public ExportRoot call() throws Exception {
+                AuthenticationUtil.setAdminUserAsFullyAuthenticatedUser();
+                try {
+                    List<NodeRef> nodes = null;
+                    if (useNodeCache) {
+                        nodes = retrieveNodeListFromCache(root.getNodeRef());
+                    }
+                    if (nodes == null) {
+                        nodes = findAllNodes(root.getNodeRef());
+                    }
+                    root.discovered(nodes);
+                } catch (Exception e) {
+                    root.discoveryFailed(e);
+                } finally {
+                    AuthenticationUtil.clearCurrentSecurityContext();
+                }
+                return root;
+            }
+        };
+    }
+
+    /**
+     * Write the state of every root, one per line:
+     * nodeRef, subdirectory, status, nodes, exported, failed, bytes
+     */
+    private void writeRootsReport(List<ExportRoot> roots) {
+        File file = new File(fileFolder.basePath(), ROOTS_FILE);
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                for (ExportRoot root : roots) {
+                    ExportStatistics rootStatistics = root.getStatistics();
+                    writer.write(root.getNodeRef() + "\t" + root.getSubdirectory() + "\t" + root.getStatus() + "\t" + root.getNodeCount()
+                            + "\t" + (rootStatistics != null ? rootStatistics.getNodesExported() : 0)
+                            + "\t" + (rootStatistics != null ? rootStatistics.getNodesFailed() : 0)
+                            + "\t" + (rootStatistics != null ? rootStatistics.getBytesExported() : 0) + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            log.error("Could not write root progress " + file.getPath(), e);
+        }
+    }
+
+    /**
+     * Read the query results page by page and dispatch them to the workers,
+     * waiting for older tasks before reading more pages when the workers are
+     * behind
+     */
+    private void exportQueryResults(String language, String query, int pageSize) throws Exception {
+        ExecutorService threadPool = Executors.newFixedThreadPool(nbOfThreads);
+        LinkedList<Future<?>> futures = new LinkedList<>();
+        int maxPendingTasks = nbOfThreads * 2;
+
+        if (concurrencyController != null) {
+            concurrencyController.start(statistics);
+        }
+
+        try {
+            int skipCount = 0;
+            int taskNumber = 1;
+            List<NodeRef> page;
+            do {
+                page = this.dao.findNodes(language, query, skipCount, pageSize);
+                skipCount += page.size();
+                log.info("Query page read, " + page.size() + " nodes (" + skipCount + " so far)");
+
+                int lowerLimitNodeNumber = 0;
+                while (lowerLimitNodeNumber < page.size()) {
+                    int upperLimitNodeNumber = calculateNextUpperLimitNodeNumber(lowerLimitNodeNumber, page.size());
+                    futures.add(threadPool.submit(createExportTask(page.subList(lowerLimitNodeNumber, upperLimitNodeNumber), taskNumber++, statistics)));
+                    lowerLimitNodeNumber = upperLimitNodeNumber;
+                }
+
+                while (futures.size() > maxPendingTasks) {
+                    futures.removeFirst().get();
+                }
+            } while (page.size() == pageSize);
+
+            while (!futures.isEmpty()) {
+                futures.removeFirst().get();
+            }
+            exportRetries(threadPool, statistics);
+        } finally {
+            if (concurrencyController != null) {
+                concurrencyController.stop();
+            }
+            threadPool.shutdownNow();
+        }
+
+        log.info("Export of query results finished, " + statistics);
+    }
+
+    private NodeExportTask createExportTask(List<NodeRef> nodes, int taskNumber, ExportStatistics taskStatistics) {
+        return createExportTask(nodes, taskNumber, taskStatistics, fileFolder);
+    }
+
+    private NodeExportTask createExportTask(List<NodeRef> nodes, int taskNumber, ExportStatistics taskStatistics, FileFolder taskFileFolder) {
+        NodeExportTask task = new NodeExportTask(nodes, exportVersions, revisionHead, dao, taskFileFolder, taskNumber, taskStatistics);
+        task.setConcurrencyController(concurrencyController);
+        task.setRateGovernor(rateGovernor);
+        task.setManifest(manifest);
+        task.setMemoryBudget(memoryBudget);
+        task.setAclTable(aclTable);
+        task.setAssociationTable(associationTable);
+        task.setReadAhead(readAhead);
+        task.setRetryQueue(retryQueue, 1);
+        task.setTrace(trace);
+        task.setClusterPartitioner(clusterPartitioner);
+        return task;
+    }
+
+    /**
+     * Split a list in chunks of exportChunkSize elements
+     */
+    private <T> List<List<T>> split(List<T> list) {
+        List<List<T>> chunks = new ArrayList<List<T>>();
+        int lowerLimit = 0;
+        while (lowerLimit < list.size()) {
+            int upperLimit = calculateNextUpperLimitNodeNumber(lowerLimit, list.size());
+            chunks.add(list.subList(lowerLimit, upperLimit));
+            lowerLimit = upperLimit;
+        }
+        return chunks;
+    }
+
+    /**
+     * Wait for the given tasks and forget them
+     */
+    private void waitFor(List<Future<?>> futures) throws InterruptedException, ExecutionException {
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        futures.clear();
     }
 
     private int calculateNextLowerLimitNodeNumber(int previousLowerLimitNodeNumber, int upperLimitNodeNumber) {
@@ -0,0 +1,149 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import org.alfresco.extensions.bulkexport.model.FileFolder;
+import org.alfresco.service.cmr.repository.NodeRef;
+
+import java.util.List;
+
+
+/**
+ * One root of a multi-root export and its progress.
+ *
+ * The root goes through discovery, then its nodes are exported by the
+ * workers shared with the other roots. Its counters are also counted in the
+ * counters of the job.
+ */
+public class ExportRoot {
+
+    /** States of a root, in order */
+    public enum Status {
+        WAITING, DISCOVERING, EXPORTING, FINISHED, FAILED
+    }
+
+    private final NodeRef nodeRef;
+    private final FileFolder fileFolder;
+    private ExportStatistics statistics;
+
+    private volatile Status status = Status.WAITING;
+    private volatile List<NodeRef> nodes;
+    private volatile int nodeCount;
+    private volatile Exception error;
+    private int pendingTasks;
+
+    /**
+     * @param nodeRef root of the nodes to export
+     * @param fileFolder where the nodes of the root are written
+     */
+    public ExportRoot(NodeRef nodeRef, FileFolder fileFolder) {
+        this.nodeRef = nodeRef;
+        this.fileFolder = fileFolder;
+    }
+
+    public NodeRef getNodeRef() {
+        return nodeRef;
+    }
+
+    public FileFolder getFileFolder() {
+        return fileFolder;
+    }
+
+    public ExportStatistics getStatistics() {
+        return statistics;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return number of nodes found by discovery
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return cause of the failure of the discovery, null if it did not fail
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    void discovering(ExportStatistics jobStatistics) {
+        statistics = new ExportStatistics(jobStatistics);
+        status = Status.DISCOVERING;
+    }
+
+    void discovered(List<NodeRef> nodes) {
+        this.nodes = nodes;
+        this.nodeCount = nodes.size();
+    }
+
+    void discoveryFailed(Exception error) {
+        this.error = error;
+        status = Status.FAILED;
+    }
+
+    /**
+     * @return the discovered nodes, held until they are handed to the workers
+     */
+    List<NodeRef> takeNodes() {
+        List<NodeRef> taken = nodes;
+        nodes = null;
+        status = Status.EXPORTING;
+        return taken;
+    }
+
+    void exporting(int tasks) {
+        pendingTasks = tasks;
+        if (tasks == 0) {
+            status = Status.FINISHED;
+        }
+    }
+
+    /**
+     * @return true if it was the last task of the root
+     */
+    boolean taskFinished() {
+        if (--pendingTasks == 0) {
+            status = Status.FINISHED;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return where the files of the root are written, relative to the export folder
+     */
+    public String getSubdirectory() {
+        return fileFolder.getSubdirectory();
+    }
+
+    @Override
+    public String toString() {
+        String text = nodeRef + " " + status + ", " + nodeCount + " nodes";
+        if (statistics != null) {
+            text += ", " + statistics;
+        }
+        if (error != null) {
+            text += ", " + error;
+        }
+        return text;
+    }
+}
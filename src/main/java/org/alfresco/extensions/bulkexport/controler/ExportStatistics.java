@@ -0,0 +1,217 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import org.alfresco.extensions.bulkexport.model.ResolutionCache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Counters shared by all the tasks of one export job.
+ *
+ * All the methods are thread safe, the tasks update the counters while the
+ * engine (or whoever is reporting progress) reads them.
+ */
+public class ExportStatistics {
+
+    /** Time the job started, in milliseconds */
+    private final long startTime = System.currentTimeMillis();
+
+    /** Nodes exported without error */
+    private final AtomicLong nodesExported = new AtomicLong();
+
+    /** Nodes on which the export failed */
+    private final AtomicLong nodesFailed = new AtomicLong();
+
+    /** Files the write-behind writers could not write, or that could not be synced */
+    private final AtomicLong filesFailed = new AtomicLong();
+
+    /** Content bytes written */
+    private final AtomicLong bytesExported = new AtomicLong();
+
+    /** Time spent exporting nodes, summed over all the workers, in nanoseconds */
+    private final AtomicLong nodeNanos = new AtomicLong();
+
+    /** Number of workers allowed to run, as last set by the concurrency controller */
+    private final AtomicInteger workerLimit = new AtomicInteger();
+
+    /** Resolution caches used by the job, by name, reported with the counters */
+    private final Map<String, ResolutionCache<?, ?>> caches = new ConcurrentSkipListMap<String, ResolutionCache<?, ?>>();
+
+    /** Counters of the whole job when these are the counters of a part of it, null otherwise */
+    private final ExportStatistics job;
+
+    public ExportStatistics() {
+        this(null);
+    }
+
+    /**
+     * Counters of a part of a job (e.g. a root of a multi-root export),
+     * also counted live in the counters of the job
+     *
+     * @param job counters of the job
+     */
+    public ExportStatistics(ExportStatistics job) {
+        this.job = job;
+    }
+
+    public void nodeExported() {
+        nodesExported.incrementAndGet();
+        if (job != null) {
+            job.nodeExported();
+        }
+    }
+
+    public void addBytes(long bytes) {
+        bytesExported.addAndGet(bytes);
+        if (job != null) {
+            job.addBytes(bytes);
+        }
+    }
+
+    public void addNodeTime(long nanos) {
+        nodeNanos.addAndGet(nanos);
+        if (job != null) {
+            job.addNodeTime(nanos);
+        }
+    }
+
+    public void setWorkerLimit(int limit) {
+        workerLimit.set(limit);
+    }
+
+    public void nodeFailed() {
+        nodesFailed.incrementAndGet();
+        if (job != null) {
+            job.nodeFailed();
+        }
+    }
+
+    /**
+     * A node counted as exported whose files could not be written
+     * afterwards, it is no longer counted as exported
+     */
+    public void nodeWriteFailed() {
+        nodesExported.decrementAndGet();
+        if (job != null) {
+            job.nodeWriteFailed();
+        }
+    }
+
+    public void filesFailed(long count) {
+        filesFailed.addAndGet(count);
+        if (job != null) {
+            job.filesFailed(count);
+        }
+    }
+
+    /**
+     * Report the hit rate of a resolution cache with the counters
+     *
+     * @param name name of the cache in the report
+     * @param cache the cache
+     */
+    public void addCache(String name, ResolutionCache<?, ?> cache) {
+        caches.put(name, cache);
+    }
+
+    public Map<String, ResolutionCache<?, ?>> getCaches() {
+        return caches;
+    }
+
+    /**
+     * Add the counters of another job part (e.g. a cluster partition) to these ones
+     *
+     * @param other statistics to add
+     */
+    public void add(ExportStatistics other) {
+        nodesExported.addAndGet(other.getNodesExported());
+        nodesFailed.addAndGet(other.getNodesFailed());
+        filesFailed.addAndGet(other.getFilesFailed());
+        bytesExported.addAndGet(other.getBytesExported());
+        nodeNanos.addAndGet(other.getNodeNanos());
+    }
+
+    public long getNodesExported() {
+        return nodesExported.get();
+    }
+
+    public long getNodesFailed() {
+        return nodesFailed.get();
+    }
+
+    public long getFilesFailed() {
+        return filesFailed.get();
+    }
+
+    public long getBytesExported() {
+        return bytesExported.get();
+    }
+
+    public long getNodeNanos() {
+        return nodeNanos.get();
+    }
+
+    public int getWorkerLimit() {
+        return workerLimit.get();
+    }
+
+    /**
+     * @return number of nodes handled so far, with or without error
+     */
+    public long getNodesProcessed() {
+        return nodesExported.get() + nodesFailed.get();
+    }
+
+    /**
+     * @return elapsed time since the job started, in milliseconds
+     */
+    public long getElapsedMillis() {
+        return System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * @return average number of nodes processed per second since the job started
+     */
+    public double getNodesPerSecond() {
+        long elapsed = getElapsedMillis();
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return getNodesProcessed() * 1000.0 / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        String text = "exported: " + getNodesExported() + ", failed: " + getNodesFailed()
+                + ", bytes: " + getBytesExported() + ", nodes/sec: " + String.format("%.1f", getNodesPerSecond());
+        if (getFilesFailed() > 0) {
+            text += ", files failed: " + getFilesFailed();
+        }
+        if (getWorkerLimit() > 0) {
+            text += ", worker limit: " + getWorkerLimit();
+        }
+        for (Map.Entry<String, ResolutionCache<?, ?>> cache : caches.entrySet()) {
+            text += String.format(", %s cache hit rate: %.1f%%", cache.getKey(), cache.getValue().getHitRate());
+        }
+        return text;
+    }
+}
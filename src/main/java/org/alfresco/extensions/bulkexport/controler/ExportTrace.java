@@ -0,0 +1,136 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import org.alfresco.extensions.bulkexport.model.ShardedWriter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+
+
+/**
+ * Per node timing events of one export job, for profiling a slow export in
+ * production.
+ *
+ * Every worker thread writes its events to its own file of the trace folder,
+ * through a large buffer, so recording costs a {@link System#nanoTime()} and
+ * a buffered write per event and no lock. A job without trace uses
+ * {@link #DISABLED}, whose methods return at once.
+ *
+ * Each line of the trace files is:
+ * <pre>
+ * event  nodeId  size  startNanos  durationMicros
+ * </pre>
+ */
+public class ExportTrace {
+    Log log = LogFactory.getLog(ExportTrace.class);
+
+    public static final String DISCOVERY = "discovery";
+    public static final String METADATA = "metadata";
+    public static final String PATH = "path";
+    public static final String CONTENT = "content";
+    public static final String XML = "xml";
+
+    /** Trace of the jobs not traced */
+    public static final ExportTrace DISABLED = new ExportTrace();
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final boolean enabled;
+    private final File traceDir;
+    private final ShardedWriter writers;
+
+    private ExportTrace() {
+        this.enabled = false;
+        this.traceDir = null;
+        this.writers = null;
+    }
+
+    /**
+     * @param basePath export folder, the trace is written in its bulkexport-trace folder
+     */
+    public ExportTrace(String basePath) {
+        this.enabled = true;
+        this.traceDir = new File(basePath, "bulkexport-trace");
+        this.writers = new ShardedWriter(traceDir, "", ".tsv", BUFFER_SIZE) {
+            @Override
+            protected String shardName(int number) {
+                return Thread.currentThread().getName().replaceAll("[^A-Za-z0-9.-]", "_") + "-" + (number - 1) + ".tsv";
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the start time of an event, 0 when not tracing
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record an event started with {@link #start()}
+     *
+     * @param event one of the event constants
+     * @param nodeId id of the node concerned
+     * @param size bytes or items handled, 0 if not relevant
+     * @param start value returned by {@link #start()}
+     */
+    public void end(String event, String nodeId, long size, long start) {
+        if (!enabled) {
+            return;
+        }
+
+        long duration = System.nanoTime() - start;
+        try {
+            Writer out = writers.getWriter();
+            out.write(event);
+            out.write('\t');
+            out.write(nodeId);
+            out.write('\t');
+            out.write(Long.toString(size));
+            out.write('\t');
+            out.write(Long.toString(start));
+            out.write('\t');
+            out.write(Long.toString(duration / 1000));
+            out.write('\n');
+        } catch (IOException e) {
+            log.warn("Could not write trace event", e);
+        }
+    }
+
+    /**
+     * Flush and close the trace files, must be called once the workers are done
+     */
+    public synchronized void close() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            writers.close();
+        } catch (IOException e) {
+            log.warn("Could not close trace file", e);
+        }
+        log.info("Trace written to " + traceDir.getPath());
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import org.alfresco.extensions.bulkexport.model.WriteBehind;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+
+
+/**
+ * Admission control of the data the workers of a job hold at the same time.
+ *
+ * A worker acquires a node slot before reading a node, and the bytes it
+ * holds in memory: the contents and metadata files handed to the
+ * write-behind writers, from their read until they are written. Contents
+ * streamed to their file are not held and not counted. A worker blocks while
+ * the budget is used up. It also
+ * blocks while the heap of the repository, measured after the last garbage
+ * collection, is above the heap limit: the export then slows down instead of
+ * pushing the JVM into GC thrash. One node is always let through when nothing
+ * is in flight, so a document bigger than the budget is exported alone and a
+ * heap full of someone else's data does not stop the export.
+ */
+public class MemoryBudget implements WriteBehind.Budget {
+    Log log = LogFactory.getLog(MemoryBudget.class);
+
+    /** Time between two heap checks of a blocked worker */
+    private static final long HEAP_POLL_MILLIS = 200;
+
+    /** Time between two warnings about the heap limit */
+    private static final long WARN_INTERVAL_MILLIS = 60 * 1000;
+
+    private final long maxBytes;
+    private final int maxNodes;
+    private final int heapLimitPercent;
+
+    /** Pool holding the long lived objects, null if the JVM does not report it */
+    private final MemoryPoolMXBean tenuredPool;
+
+    private long inFlightBytes;
+    private int inFlightNodes;
+    private long peakBytes;
+    private int peakNodes;
+    private long waits;
+    private long waitNanos;
+    private long lastWarning;
+
+    /**
+     * @param maxBytes content bytes in flight, 0 for unlimited
+     * @param maxNodes nodes in flight, 0 for unlimited
+     * @param heapLimitPercent heap usage after GC above which workers wait, 0 for no limit
+     */
+    public MemoryBudget(long maxBytes, int maxNodes, int heapLimitPercent) {
+        this.maxBytes = maxBytes;
+        this.maxNodes = maxNodes;
+        this.heapLimitPercent = heapLimitPercent;
+        this.tenuredPool = findTenuredPool();
+    }
+
+    /**
+     * Take a node slot, blocking while the budget or the heap is exhausted
+     */
+    public synchronized void acquireNode() throws InterruptedException {
+        long start = 0;
+        while (inFlightNodes > 0 && ((maxNodes > 0 && inFlightNodes >= maxNodes) || isHeapExhausted())) {
+            if (start == 0) {
+                start = System.nanoTime();
+                waits++;
+            }
+            wait(HEAP_POLL_MILLIS);
+        }
+        if (start != 0) {
+            waitNanos += System.nanoTime() - start;
+        }
+
+        inFlightNodes++;
+        peakNodes = Math.max(peakNodes, inFlightNodes);
+    }
+
+    public synchronized void releaseNode() {
+        inFlightNodes--;
+        notifyAll();
+    }
+
+    /**
+     * Take bytes from the budget before holding data in memory, blocking
+     * while they are not available. Data bigger than the budget takes the
+     * whole budget.
+     *
+     * @param size size of the data
+     * @return the bytes taken, to give to {@link #releaseBytes(long)}
+     */
+    @Override
+    public synchronized long acquireBytes(long size) throws InterruptedException {
+        if (maxBytes <= 0) {
+            return 0;
+        }
+
+        long granted = Math.min(Math.max(size, 0), maxBytes);
+        long start = 0;
+        while (inFlightBytes > 0 && inFlightBytes + granted > maxBytes) {
+            if (start == 0) {
+                start = System.nanoTime();
+                waits++;
+            }
+            wait();
+        }
+        if (start != 0) {
+            waitNanos += System.nanoTime() - start;
+        }
+
+        inFlightBytes += granted;
+        peakBytes = Math.max(peakBytes, inFlightBytes);
+        return granted;
+    }
+
+    @Override
+    public synchronized void releaseBytes(long granted) {
+        if (granted > 0) {
+            inFlightBytes -= granted;
+            notifyAll();
+        }
+    }
+
+    public synchronized long getInFlightBytes() {
+        return inFlightBytes;
+    }
+
+    public synchronized int getInFlightNodes() {
+        return inFlightNodes;
+    }
+
+    public synchronized long getPeakBytes() {
+        return peakBytes;
+    }
+
+    public synchronized int getPeakNodes() {
+        return peakNodes;
+    }
+
+    /**
+     * @return number of times a worker had to wait for the budget
+     */
+    public synchronized long getWaits() {
+        return waits;
+    }
+
+    /**
+     * @return heap used after the last collection, in percent of the maximum, -1 if unknown
+     */
+    public int getHeapUsagePercent() {
+        if (tenuredPool == null) {
+            return -1;
+        }
+        MemoryUsage afterGc = tenuredPool.getCollectionUsage();
+        long max = tenuredPool.getUsage().getMax();
+        if (afterGc == null || max <= 0) {
+            return -1;
+        }
+        return (int) (afterGc.getUsed() * 100 / max);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "in flight bytes: " + inFlightBytes + " (peak " + peakBytes + (maxBytes > 0 ? " of " + maxBytes : "") + ")"
+                + ", nodes: " + inFlightNodes + " (peak " + peakNodes + (maxNodes > 0 ? " of " + maxNodes : "") + ")"
+                + ", waits: " + waits + " (" + waitNanos / 1000000 + " ms)"
+                + ", heap after GC: " + getHeapUsagePercent() + "%";
+    }
+
+    private boolean isHeapExhausted() {
+        if (heapLimitPercent <= 0) {
+            return false;
+        }
+        int usage = getHeapUsagePercent();
+        if (usage < heapLimitPercent) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - lastWarning > WARN_INTERVAL_MILLIS) {
+            lastWarning = now;
+            log.warn("Heap used after GC is " + usage + "%, above " + heapLimitPercent + "%, export workers wait");
+        }
+        return true;
+    }
+
+    private static MemoryPoolMXBean findTenuredPool() {
+        MemoryPoolMXBean found = null;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            // the old generation is the heap pool with the biggest maximum reporting usage after GC
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+                    && (found == null || pool.getUsage().getMax() > found.getUsage().getMax())) {
+                found = pool;
+            }
+        }
+        return found;
+    }
+}
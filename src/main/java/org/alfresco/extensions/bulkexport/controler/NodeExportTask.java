@@ -2,12 +2,16 @@ package org.alfresco.extensions.bulkexport.controler;
 
 import org.alfresco.extensions.bulkexport.dao.AlfrescoExportDao;
 import org.alfresco.extensions.bulkexport.dao.NodeRefRevision;
+import org.alfresco.extensions.bulkexport.model.ExportManifest;
+import org.alfresco.extensions.bulkexport.model.ExportScratch;
 import org.alfresco.extensions.bulkexport.model.FileFolder;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -54,47 +58,255 @@ public class NodeExportTask implements Callable<String> {
      */
     private int taskNumber;
 
-    NodeExportTask(List<NodeRef> nodesToExport, boolean exportVersions, boolean revisionHead, AlfrescoExportDao dao, FileFolder fileFolder, int taskNumber) {
+    /**
+     * Counters shared with the other tasks of the job
+     */
+    private ExportStatistics statistics;
+
+    /**
+     * Adaptive limit on the number of running workers, null if not used
+     */
+    private AdaptiveConcurrencyController concurrencyController;
+
+    /**
+     * Limits on nodes and bytes per second, null if not used
+     */
+    private RateGovernor rateGovernor;
+
+    /**
+     * Manifest of the exported files, null if not written
+     */
+    private ExportManifest manifest;
+
+    /**
+     * Timing events of the job, disabled unless the job is traced
+     */
+    private ExportTrace trace = ExportTrace.DISABLED;
+
+    /**
+     * Bounds the data held by all the tasks at once, null if not used
+     */
+    private MemoryBudget memoryBudget;
+
+    /**
+     * Permissions of the exported nodes, null if not exported
+     */
+    private AclTable aclTable;
+
+    /**
+     * Associations of the exported nodes, null if not exported
+     */
+    private AssociationTable associationTable;
+
+    /**
+     * Prefetches the nodes ahead of this task, null if disabled
+     */
+    private ReadAhead readAhead;
+
+    /**
+     * Failed nodes waiting for another attempt, null to give up at once
+     */
+    private RetryQueue retryQueue;
+
+    /**
+     * Number of the attempt made on the nodes of this task, from 1
+     */
+    private int attempt = 1;
+
+    /**
+     * Reused buffers and containers of the thread running this task
+     */
+    private ExportScratch scratch;
+
+    /**
+     * True when the nodes are known to be documents, whose folders are already created
+     */
+    private boolean documentsOnly;
+
+    /**
+     * Partitioner of a cluster export, asked between nodes if the partition is still ours
+     */
+    private ClusterPartitioner clusterPartitioner;
+
+    /**
+     * Handles the files of this task the write-behind writers fail to write
+     */
+    private WriteFailureHandler writeFailures;
+
+    /**
+     * Manifest rows of the node being exported, recorded once the whole node is written
+     */
+    private final List<ManifestRow> manifestRows = new ArrayList<ManifestRow>();
+
+    /**
+     * A content written for the node being exported
+     */
+    private static class ManifestRow {
+        final String nodeRef;
+        final String path;
+        final String revision;
+        final long size;
+        final byte[] digest;
+        final String mimetype;
+
+        ManifestRow(String nodeRef, String path, String revision, long size, byte[] digest, String mimetype) {
+            this.nodeRef = nodeRef;
+            this.path = path;
+            this.revision = revision;
+            this.size = size;
+            this.digest = digest;
+            this.mimetype = mimetype;
+        }
+    }
+
+    NodeExportTask(List<NodeRef> nodesToExport, boolean exportVersions, boolean revisionHead, AlfrescoExportDao dao, FileFolder fileFolder, int taskNumber, ExportStatistics statistics) {
         this.dao = dao;
         this.fileFolder = fileFolder;
         this.nodesToExport = nodesToExport;
         this.exportVersions = exportVersions;
         this.revisionHead = revisionHead;
         this.taskNumber = taskNumber;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Limit the number of tasks exporting at the same time
+     *
+     * @param concurrencyController controller shared by all the tasks, null for no limit
+     */
+    void setConcurrencyController(AdaptiveConcurrencyController concurrencyController) {
+        this.concurrencyController = concurrencyController;
+    }
+
+    /**
+     * Throttle the nodes and content bytes this task exports
+     *
+     * @param rateGovernor governor shared by all the tasks, null for no limit
+     */
+    void setRateGovernor(RateGovernor rateGovernor) {
+        this.rateGovernor = rateGovernor;
+    }
+
+    /**
+     * Record every content exported by this task in the manifest
+     *
+     * @param manifest manifest shared by all the tasks, null for none
+     */
+    void setManifest(ExportManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * Record the timing of every step of this task in the given trace
+     *
+     * @param trace trace shared by all the tasks
+     */
+    void setTrace(ExportTrace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Wait for room in the given budget before reading a node
+     *
+     * @param memoryBudget budget shared by all the tasks, null for no limit
+     */
+    void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Record the ACL of every node exported by this task
+     *
+     * @param aclTable table shared by all the tasks, null to skip permissions
+     */
+    void setAclTable(AclTable aclTable) {
+        this.aclTable = aclTable;
+    }
+
+    /**
+     * Record the associations of every node exported by this task
+     *
+     * @param associationTable table shared by all the tasks, null to skip associations
+     */
+    void setAssociationTable(AssociationTable associationTable) {
+        this.associationTable = associationTable;
+    }
+
+    /**
+     * Warm the repository caches ahead of this task
+     *
+     * @param readAhead prefetcher shared by all the tasks, null to disable
+     */
+    void setReadAhead(ReadAhead readAhead) {
+        this.readAhead = readAhead;
+    }
+
+    /**
+     * Queue the failed nodes for another attempt
+     *
+     * @param retryQueue queue shared by all the tasks, null to give up at once
+     * @param attempt number of the attempt made on the nodes of this task, from 1
+     */
+    void setRetryQueue(RetryQueue retryQueue, int attempt) {
+        this.retryQueue = retryQueue;
+        this.attempt = attempt;
+    }
+
+    /**
+     * Stop the task once the partition it exports was taken over by another member
+     *
+     * @param clusterPartitioner partitioner of the cluster export, null for none
+     */
+    void setClusterPartitioner(ClusterPartitioner clusterPartitioner) {
+        this.clusterPartitioner = clusterPartitioner;
+    }
+
+    /**
+     * Tell that all the nodes of this task are documents, so they are not
+     * checked for being folders
+     *
+     * @param documentsOnly true when the folders were exported beforehand
+     */
+    void setDocumentsOnly(boolean documentsOnly) {
+        this.documentsOnly = documentsOnly;
     }
 
     /**
      * Create file (Document and Bulk XML Meta data)
      *
      * @param file
+     * @return the path of the node
      * @throws Exception
      */
-    private void createFile(NodeRef headNode, NodeRef file, String revision, boolean isHeadRevision) throws Exception {
+    private String createFile(NodeRef headNode, NodeRef file, String revision, boolean isHeadRevision) throws Exception {
         String path = null;
         if (revision == null) {
             log.error("createFile (headNode: " + headNode.toString() + " , filenode: )" + file.toString() + " , revision: " + revision + ")");
             throw new Exception("revision for node was not found");
         }
 
-        path = this.dao.getPath(headNode) + "." + revision;
+        long start = trace.start();
+        String headPath = this.dao.getPath(headNode);
+        path = revisionPath(headPath, revision, isHeadRevision, revisionHead);
+        trace.end(ExportTrace.PATH, file.getId(), 0, start);
 
-        // if we are exporting using the revisions compatible with alfresco bulk import then we do not number the head(most recent) revisoon
-        if (!revisionHead && isHeadRevision) {
-            path = this.dao.getPath(headNode);
-        }
-
-        doCreateFile(file, path);
+        doCreateFile(headNode, file, path, revision);
+        return headPath;
     }
 
-    private void createFile(NodeRef file) throws Exception {
-        String path = null;
-        path = this.dao.getPath(file);
-        doCreateFile(file, path);
+    private String createFile(NodeRef file) throws Exception {
+        long start = trace.start();
+        String path = this.dao.getPath(file);
+        trace.end(ExportTrace.PATH, file.getId(), 0, start);
+        doCreateFile(file, file, path, null);
+        return path;
     }
 
-    private void doCreateFile(NodeRef file, String path) throws Exception {
+    private void doCreateFile(NodeRef headNode, NodeRef file, String path, String revision) throws Exception {
         //get Informations
-        LOG.debug("doCreateFile (" + file.getId() + ")");
+        if (log.isDebugEnabled()) {
+            log.debug("doCreateFile (" + file.getId() + ")");
+        }
 
         // need these variables out of the try scope for debugging purposes when the exception is thrown
         String type = null;
@@ -102,18 +314,42 @@ public class NodeExportTask implements Callable<String> {
         Map<String, String> properties = null;
 
         try {
+            // asked before the content is written, which would answer it
+            boolean exported = this.fileFolder.isExported(path);
             String fname = this.fileFolder.createFullPath(path);
-            log.debug("doCreateFile file =" + fname);
-            if (this.dao.getContentAndStoreInFile(file, fname) == false) {
-                LOG.debug("doCreateFile ignore this file: " + fname);
+            if (log.isDebugEnabled()) {
+                log.debug("doCreateFile file =" + fname);
+            }
+            ContentReader reader = this.dao.getContentReader(file);
+            if (reader == null) {
+                if (log.isDebugEnabled()) {
+                    log.debug("doCreateFile ignore this file: " + fname);
+                }
                 return;
             }
+            MessageDigest digest = manifest != null ? manifest.getDigest() : null;
+            long start = trace.start();
+            long size = this.fileFolder.storeContent(reader, fname, digest, scratch, headNode, writeFailures);
+            trace.end(ExportTrace.CONTENT, file.getId(), size, start);
+            if (manifest != null) {
+                String written = this.fileFolder.getSubdirectory()
+                        + this.fileFolder.contentFileName(fname, reader.getMimetype()).substring(this.fileFolder.basePath().length());
+                manifestRows.add(new ManifestRow(headNode.toString(), written, revision, reader.getSize(), digest.digest(), reader.getMimetype()));
+            }
+            statistics.addBytes(size);
+            if (rateGovernor != null) {
+                rateGovernor.acquireBytes(size);
+            }
+            start = trace.start();
             type = this.dao.getType(file);
-            aspects = this.dao.getAspectsAsString(file);
-            properties = this.dao.getPropertiesAsString(file);
+            aspects = this.dao.getAspectsAsString(file, scratch);
+            properties = this.dao.getPropertiesAsString(file, scratch);
+            trace.end(ExportTrace.METADATA, file.getId(), properties.size(), start);
 
             //Create Files
-            this.fileFolder.insertFileProperties(type, aspects, properties, path);
+            start = trace.start();
+            this.fileFolder.insertFileProperties(type, aspects, properties, path, scratch, headNode, writeFailures, exported);
+            trace.end(ExportTrace.XML, file.getId(), 0, start);
             type = null;
             properties = null;
             aspects = null;
@@ -129,79 +365,207 @@ public class NodeExportTask implements Callable<String> {
      * Create Folder and XML Metadata
      *
      * @param folder
+     * @return the path of the folder
      * @throws Exception
      */
-    private void createFolder(NodeRef folder) throws Exception {
+    private String createFolder(NodeRef folder) throws Exception {
         //Get Data
+        long start = trace.start();
         String path = this.dao.getPath(folder);
-        log.debug("createFolder path=" + path);
+        trace.end(ExportTrace.PATH, folder.getId(), 0, start);
+        if (log.isDebugEnabled()) {
+            log.debug("createFolder path=" + path);
+        }
+
+        start = trace.start();
         String type = this.dao.getType(folder);
-        log.debug("createFolder type=" + type);
-        List<String> aspects = this.dao.getAspectsAsString(folder);
-        Map<String, String> properties = this.dao.getPropertiesAsString(folder);
+        if (log.isDebugEnabled()) {
+            log.debug("createFolder type=" + type);
+        }
+        List<String> aspects = this.dao.getAspectsAsString(folder, scratch);
+        Map<String, String> properties = this.dao.getPropertiesAsString(folder, scratch);
+        trace.end(ExportTrace.METADATA, folder.getId(), properties.size(), start);
 
         //Create Folder and XMl Metadata
+        start = trace.start();
+        boolean exported = this.fileFolder.isExported(path);
         this.fileFolder.createFolder(path);
-        this.fileFolder.insertFileProperties(type, aspects, properties, path);
+        this.fileFolder.insertFileProperties(type, aspects, properties, path, scratch, folder, writeFailures, exported);
+        trace.end(ExportTrace.XML, folder.getId(), 0, start);
+        return path;
     }
 
-    private void exportHeadRevision(NodeRef nodeRef) throws Exception {
-        this.createFile(nodeRef);
+    private String exportHeadRevision(NodeRef nodeRef) throws Exception {
+        return this.createFile(nodeRef);
     }
 
-    private void exportFullRevisionHistory(NodeRef nodeRef) throws Exception {
+    private String exportFullRevisionHistory(NodeRef nodeRef) throws Exception {
         Map<String, NodeRefRevision> nodes = this.dao.getNodeRefHistory(nodeRef.toString());
         if (nodes != null) {
-            List sortedKeys = new ArrayList(nodes.keySet());
-
-            Collections.sort(sortedKeys, new VersionNumberComparator());
-            if (sortedKeys.size() < 1) {
-                throw new Exception("no revisions available");
-            }
-
-            String headRevision = (String) sortedKeys.get(sortedKeys.size() - 1);
+            String headRevision = headRevision(nodes);
 
+            String headPath = null;
             for (String revision : nodes.keySet()) {
                 NodeRefRevision nodeRevision = nodes.get(revision);
-                this.createFile(nodeRef, nodeRevision.node, revision, headRevision == revision);
+                headPath = this.createFile(nodeRef, nodeRevision.node, revision, headRevision == revision);
             }
+            return headPath;
         } else {
             // no revision history so lets just create the most recent revision
             log.debug("execute (noderef) no revision history found, dump node as head revision");
-            this.createFile(nodeRef, nodeRef, "1.0", true);
+            return this.createFile(nodeRef, nodeRef, "1.0", true);
         }
     }
 
+    /**
+     * Record what is exported besides the files of a node, once all its
+     * files are written: a node failing half way is not recorded and is
+     * recorded once when retried
+     *
+     * @param nodeRef the node
+     * @param path path of the node
+     * @throws Exception
+     */
+    private void recordNode(NodeRef nodeRef, String path) throws Exception {
+        for (ManifestRow row : manifestRows) {
+            manifest.record(row.nodeRef, row.path, row.revision, row.size, row.digest, row.mimetype);
+        }
+        manifestRows.clear();
+        if (path == null) {
+            return;
+        }
+        // relative to the export folder, like the manifest
+        String written = this.fileFolder.getSubdirectory() + path;
+        if (aclTable != null) {
+            aclTable.record(nodeRef, written);
+        }
+        if (associationTable != null) {
+            associationTable.record(nodeRef, written);
+        }
+    }
+
+    /**
+     * Path of an exported revision
+     *
+     * @param headPath path of the node
+     * @param revision revision label
+     * @param isHeadRevision true if this is the most recent revision
+     * @param revisionHead true if the head revision is numbered too
+     * @return {@link String}
+     */
+    static String revisionPath(String headPath, String revision, boolean isHeadRevision, boolean revisionHead) {
+        // if we are exporting using the revisions compatible with alfresco bulk import then we do not number the head(most recent) revisoon
+        if (!revisionHead && isHeadRevision) {
+            return headPath;
+        }
+        return headPath + "." + revision;
+    }
+
+    /**
+     * Find the most recent revision label of a history
+     *
+     * @param revisions history as returned by {@link AlfrescoExportDao#getNodeRefHistory(String)}
+     * @return the revision label, which is the key instance of the map
+     * @throws Exception if the history is empty
+     */
+    static String headRevision(Map<String, NodeRefRevision> revisions) throws Exception {
+        List<String> sortedKeys = new ArrayList<String>(revisions.keySet());
+
+        Collections.sort(sortedKeys, new VersionNumberComparator());
+        if (sortedKeys.size() < 1) {
+            throw new Exception("no revisions available");
+        }
+
+        return sortedKeys.get(sortedKeys.size() - 1);
+    }
+
     @Override
     public String call() throws Exception {
         AuthenticationUtil.clearCurrentSecurityContext();
         AuthenticationUtil.setAdminUserAsFullyAuthenticatedUser();
+        scratch = ExportScratch.forCurrentThread();
+        writeFailures = new WriteFailureHandler(retryQueue, attempt, fileFolder, statistics);
 
         int logCount = nodesToExport.size();
         log.info("Running task " + taskNumber + " will export " + logCount + " nodes");
         final int NODES_TO_PROCESS = 100;
+        ReadAhead.Cursor cursor = readAhead != null ? readAhead.cursor(nodesToExport) : null;
         for (NodeRef nodeRef : nodesToExport) {
+            if (clusterPartitioner != null && !clusterPartitioner.holdsLease()) {
+                log.warn("Task " + taskNumber + " stops, its partition was taken over by another member");
+                break;
+            }
+            try {
+                if (rateGovernor != null) {
+                    rateGovernor.acquireNode();
+                }
+                if (memoryBudget != null) {
+                    memoryBudget.acquireNode();
+                }
+                if (concurrencyController != null) {
+                    try {
+                        concurrencyController.acquire();
+                    } catch (InterruptedException e) {
+                        if (memoryBudget != null) {
+                            memoryBudget.releaseNode();
+                        }
+                        throw e;
+                    }
+                }
+            } catch (InterruptedException e) {
+                log.info(Thread.currentThread().getName() + " interrupted");
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (cursor != null) {
+                cursor.next(nodeRef);
+            }
+            long start = System.nanoTime();
             try {
-                LOG.debug("Handling in task NodeRef: " + nodeRef.getId());
+                if (log.isDebugEnabled()) {
+                    log.debug("Handling in task NodeRef: " + nodeRef.getId());
+                }
                 logCount--;
-                if (this.dao.isFolder(nodeRef)) {
-                    log.debug("NodeRef is folder: " + nodeRef.getId());
-                    this.createFolder(nodeRef);
+                manifestRows.clear();
+                String path;
+                if (!documentsOnly && this.dao.isFolder(nodeRef)) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("NodeRef is folder: " + nodeRef.getId());
+                    }
+                    path = this.createFolder(nodeRef);
                 } else {
-                    LOG.debug("NodeRef is document: " + nodeRef.getId());
+                    if (log.isDebugEnabled()) {
+                        log.debug("NodeRef is document: " + nodeRef.getId());
+                    }
                     if (exportVersions) {
-                        exportFullRevisionHistory(nodeRef);
+                        path = exportFullRevisionHistory(nodeRef);
                     } else {
-                        exportHeadRevision(nodeRef);
+                        path = exportHeadRevision(nodeRef);
                     }
                 }
+                recordNode(nodeRef, path);
+                statistics.nodeExported();
                 if (logCount % NODES_TO_PROCESS == 0) {
                     log.info("Task " + taskNumber + " has remaining nodes to process " + logCount);
                 }
             } catch (InterruptedException e) {
-                LOG.info(Thread.currentThread().getName() + " interrupted");
+                // the job is being stopped, the remaining nodes are not exported
+                log.info(Thread.currentThread().getName() + " interrupted");
+                Thread.currentThread().interrupt();
+                break;
             } catch (Exception e) {
-                LOG.error("Error in task:" + taskNumber + " on Node: " + nodeRef.getId(), e);
+                log.error("Error in task:" + taskNumber + " on Node: " + nodeRef.getId(), e);
+                if (retryQueue == null || !retryQueue.failed(nodeRef, attempt, e, fileFolder, statistics)) {
+                    statistics.nodeFailed();
+                }
+            } finally {
+                statistics.addNodeTime(System.nanoTime() - start);
+                if (concurrencyController != null) {
+                    concurrencyController.release();
+                }
+                if (memoryBudget != null) {
+                    memoryBudget.releaseNode();
+                }
             }
         }
 
@@ -0,0 +1,196 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import org.alfresco.extensions.bulkexport.dao.AlfrescoExportDao;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Finds the nodes to export by scanning the node database ids instead of
+ * walking the tree.
+ *
+ * The ids from the lowest to the highest are split in ranges scanned in
+ * parallel, so the discovery does not depend on the shape of the tree. A
+ * node is kept if it belongs to the store of the root, is not of an ignored
+ * type and is under the root through folders only, by primary associations
+ * of the child association types followed, which is what the recursive walk
+ * finds. Unlike the walk, the scan does not find the nodes reached through
+ * secondary child associations only, and a node of a type the walk prunes
+ * by its query (with pruneTypes) is kept unless it is ignored.
+ *
+ * Each range is loaded in the repository caches in one batch, with the
+ * properties, aspects and parent associations of its nodes, before they are
+ * checked from the caches. The ancestry of a node is checked by following
+ * its primary parents, read once per node, and the answer is kept for every
+ * folder met on the way, so each folder is checked once for the whole scan.
+ *
+ * The nodes are returned by id, which is roughly creation order, rather
+ * than in tree order.
+ */
+public class NodeRangeScanner {
+    Log log = LogFactory.getLog(NodeRangeScanner.class);
+
+    private final AlfrescoExportDao dao;
+    private final NodeRef root;
+    private final int nbOfThreads;
+    private final int rangeSize;
+    private ExportTrace trace = ExportTrace.DISABLED;
+
+    /** Whether a container is the root or a folder under the root, by node */
+    private final ConcurrentMap<NodeRef, Boolean> exportedContainers = new ConcurrentHashMap<NodeRef, Boolean>();
+
+    /**
+     * @param dao Data Access Object
+     * @param root root of the export
+     * @param nbOfThreads number of ranges scanned at the same time
+     * @param rangeSize number of ids per range
+     */
+    public NodeRangeScanner(AlfrescoExportDao dao, NodeRef root, int nbOfThreads, int rangeSize) {
+        this.dao = dao;
+        this.root = root;
+        this.nbOfThreads = nbOfThreads;
+        this.rangeSize = rangeSize;
+    }
+
+    void setTrace(ExportTrace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Scan all the node ids
+     *
+     * @return the nodes to export, root included
+     * @throws Exception
+     */
+    public List<NodeRef> scan() throws Exception {
+        Long minId = dao.getMinNodeId();
+        Long maxId = dao.getMaxNodeId();
+        List<NodeRef> nodes = new ArrayList<NodeRef>();
+        if (minId == null || maxId == null) {
+            return nodes;
+        }
+
+        log.info("Scanning node ids " + minId + " to " + maxId + " in ranges of " + rangeSize);
+        exportedContainers.put(root, Boolean.TRUE);
+
+        ExecutorService threadPool = Executors.newFixedThreadPool(nbOfThreads);
+        List<Future<List<NodeRef>>> futures = new ArrayList<Future<List<NodeRef>>>();
+        try {
+            for (long start = minId; start <= maxId; start += rangeSize) {
+                futures.add(threadPool.submit(scanTask(start, Math.min(start + rangeSize - 1, maxId))));
+            }
+            // ranges are added in id order, whatever the order they finish in
+            for (Future<List<NodeRef>> future : futures) {
+                nodes.addAll(future.get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } finally {
+            threadPool.shutdownNow();
+        }
+
+        log.info("Node id scan found " + nodes.size() + " nodes, " + exportedContainers.size() + " containers checked");
+        return nodes;
+    }
+
+    private Callable<List<NodeRef>> scanTask(final long firstId, final long lastId) {
+        return new Callable<List<NodeRef>>() {
+            @Override
+            public List<NodeRef> call() throws Exception {
+                AuthenticationUtil.setAdminUserAsFullyAuthenticatedUser();
+                try {
+                    long start = trace.start();
+                    List<NodeRef> found = new ArrayList<NodeRef>();
+                    for (NodeRef nodeRef : dao.getNodesById(firstId, lastId)) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            throw new InterruptedException("Node id scan interrupted");
+                        }
+                        if (isExported(nodeRef)) {
+                            found.add(nodeRef);
+                        }
+                    }
+                    trace.end(ExportTrace.DISCOVERY, firstId + "-" + lastId, found.size(), start);
+                    return found;
+                } finally {
+                    AuthenticationUtil.clearCurrentSecurityContext();
+                }
+            }
+        };
+    }
+
+    /**
+     * Tell if a node would be found by walking the tree from the root
+     */
+    private boolean isExported(NodeRef nodeRef) throws Exception {
+        if (nodeRef.equals(root)) {
+            return !dao.isNodeIgnored(nodeRef.toString());
+        }
+        if (!root.getStoreRef().equals(nodeRef.getStoreRef()) || dao.isNodeIgnored(nodeRef.toString())) {
+            return false;
+        }
+        NodeRef parent = dao.getFollowedPrimaryParent(nodeRef);
+        return parent != null && isExportedContainer(parent);
+    }
+
+    /**
+     * Tell if a node is the root or an exported folder under the root,
+     * remembering the answer for it and every ancestor checked
+     */
+    private boolean isExportedContainer(NodeRef nodeRef) throws Exception {
+        List<NodeRef> unknown = new ArrayList<NodeRef>();
+        Boolean exported = null;
+        NodeRef current = nodeRef;
+        while (exported == null) {
+            exported = exportedContainers.get(current);
+            if (exported != null) {
+                break;
+            }
+            unknown.add(current);
+            if (dao.isNodeIgnored(current.toString()) || !dao.isFolder(current)) {
+                exported = Boolean.FALSE;
+                break;
+            }
+            current = dao.getFollowedPrimaryParent(current);
+            if (current == null) {
+                // store root reached without meeting the export root, or an association not walked
+                exported = Boolean.FALSE;
+            }
+        }
+
+        for (NodeRef container : unknown) {
+            exportedContainers.putIfAbsent(container, exported);
+        }
+        return exported;
+    }
+}
@@ -0,0 +1,222 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import org.alfresco.extensions.bulkexport.dao.AlfrescoExportDao;
+import org.alfresco.extensions.bulkexport.dao.NodeRefRevision;
+import org.alfresco.extensions.bulkexport.model.ExportManifest;
+import org.alfresco.extensions.bulkexport.model.FileFolder;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * This thread class compares the nodes of the repository with what an
+ * earlier export wrote on the filesystem: existence of the content and
+ * metadata files, content size and optionally content digest. The files it
+ * expects are noted in the report, which then finds the files no node
+ * accounts for.
+ */
+public class NodeVerifyTask implements Callable<String> {
+
+    Log log = LogFactory.getLog(NodeVerifyTask.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private boolean exportVersions;
+    private boolean revisionHead;
+    private AlfrescoExportDao dao;
+    private FileFolder fileFolder;
+    private List<NodeRef> nodesToVerify;
+    private int taskNumber;
+    private VerificationReport report;
+
+    /**
+     * Digest algorithm used to compare contents, null to compare sizes only
+     */
+    private String digestAlgorithm;
+
+    NodeVerifyTask(List<NodeRef> nodesToVerify, boolean exportVersions, boolean revisionHead, AlfrescoExportDao dao, FileFolder fileFolder,
+                   int taskNumber, VerificationReport report, String digestAlgorithm) {
+        this.nodesToVerify = nodesToVerify;
+        this.exportVersions = exportVersions;
+        this.revisionHead = revisionHead;
+        this.dao = dao;
+        this.fileFolder = fileFolder;
+        this.taskNumber = taskNumber;
+        this.report = report;
+        this.digestAlgorithm = digestAlgorithm;
+    }
+
+    private void verifyFolder(NodeRef folder) throws Exception {
+        String path = this.dao.getPath(folder);
+        String fullPath = this.fileFolder.basePath() + path;
+        expect(path, path);
+
+        report.fileChecked();
+        if (!new File(fullPath).isDirectory()) {
+            report.mismatch(folder.toString(), path, VerificationReport.MISSING, "folder", null);
+            return;
+        }
+        verifyMetadata(folder, path);
+    }
+
+    private void verifyDocument(NodeRef nodeRef) throws Exception {
+        String headPath = this.dao.getPath(nodeRef);
+
+        if (!exportVersions) {
+            verifyFile(nodeRef, nodeRef, headPath);
+            return;
+        }
+
+        Map<String, NodeRefRevision> revisions = this.dao.getNodeRefHistory(nodeRef.toString());
+        if (revisions == null) {
+            verifyFile(nodeRef, nodeRef, NodeExportTask.revisionPath(headPath, "1.0", true, revisionHead));
+            return;
+        }
+
+        String headRevision = NodeExportTask.headRevision(revisions);
+        for (String revision : revisions.keySet()) {
+            String path = NodeExportTask.revisionPath(headPath, revision, headRevision == revision, revisionHead);
+            verifyFile(nodeRef, revisions.get(revision).node, path);
+        }
+    }
+
+    private void verifyFile(NodeRef headNode, NodeRef file, String path) throws Exception {
+        ContentReader reader = this.dao.getContentReader(file);
+        if (reader == null) {
+            // not exported either
+            return;
+        }
+
+        String fullPath = this.fileFolder.basePath() + path;
+        String fileName = this.fileFolder.contentFileName(fullPath, reader.getMimetype());
+        boolean compressed = !fileName.equals(fullPath);
+        String relativeName = fileName.substring(this.fileFolder.basePath().length());
+        File target = new File(fileName);
+        expect(path, relativeName);
+
+        report.fileChecked();
+        if (!target.isFile()) {
+            report.mismatch(headNode.toString(), relativeName, VerificationReport.MISSING, reader.getSize(), null);
+            return;
+        }
+
+        // the size of a compressed file says nothing, only its digest can be compared
+        if (!compressed && target.length() != reader.getSize()) {
+            report.mismatch(headNode.toString(), relativeName, VerificationReport.SIZE_MISMATCH, reader.getSize(), target.length());
+            return;
+        }
+
+        if (digestAlgorithm != null) {
+            byte[] expected = digest(reader.getContentInputStream());
+            InputStream in = new FileInputStream(target);
+            if (compressed) {
+                in = this.fileFolder.getCompression().unwrap(in);
+            }
+            byte[] actual = digest(in);
+            if (!Arrays.equals(expected, actual)) {
+                report.mismatch(headNode.toString(), relativeName, VerificationReport.DIGEST_MISMATCH,
+                        ExportManifest.toHex(expected), ExportManifest.toHex(actual));
+                return;
+            }
+        }
+
+        verifyMetadata(headNode, path);
+    }
+
+    private void verifyMetadata(NodeRef nodeRef, String path) throws IOException {
+        if (this.fileFolder.getMetadataShards() != null) {
+            // records of the shards are not checked one by one
+            return;
+        }
+        String metadataPath = metadataPath(path);
+        if (!new File(this.fileFolder.basePath() + metadataPath).isFile()) {
+            report.mismatch(nodeRef.toString(), metadataPath, VerificationReport.METADATA_MISSING, null, null);
+        }
+    }
+
+    /**
+     * Note the files the export writes for a node, whether they are found or not
+     *
+     * @param path path of the node
+     * @param written content file or folder written, relative to the export folder
+     */
+    private void expect(String path, String written) {
+        report.expect(written);
+        if (this.fileFolder.getMetadataShards() == null) {
+            report.expect(metadataPath(path));
+        }
+    }
+
+    private String metadataPath(String path) {
+        return this.fileFolder.metadataFileName(this.fileFolder.basePath() + path).substring(this.fileFolder.basePath().length());
+    }
+
+    private byte[] digest(InputStream in) throws Exception {
+        MessageDigest md = MessageDigest.getInstance(digestAlgorithm);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return md.digest();
+    }
+
+    @Override
+    public String call() throws Exception {
+        AuthenticationUtil.clearCurrentSecurityContext();
+        AuthenticationUtil.setAdminUserAsFullyAuthenticatedUser();
+
+        log.info("Running verification task " + taskNumber + " on " + nodesToVerify.size() + " nodes");
+        for (NodeRef nodeRef : nodesToVerify) {
+            if (Thread.currentThread().isInterrupted()) {
+                log.info(Thread.currentThread().getName() + " interrupted");
+                break;
+            }
+            try {
+                if (this.dao.isFolder(nodeRef)) {
+                    verifyFolder(nodeRef);
+                } else {
+                    verifyDocument(nodeRef);
+                }
+            } catch (Exception e) {
+                log.error("Error in verification task:" + taskNumber + " on Node: " + nodeRef.getId(), e);
+                report.mismatch(nodeRef.toString(), "", VerificationReport.ERROR, null, e.toString());
+            }
+        }
+
+        AuthenticationUtil.clearCurrentSecurityContext();
+        return "Verification task " + taskNumber + " is finished";
+    }
+}
@@ -0,0 +1,256 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Calendar;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Limits the load an export puts on the repository: nodes per second,
+ * content bytes per second and repository calls per second, shared by all
+ * the workers of the job.
+ *
+ * The limits can be restricted to a time of day window (e.g. business hours),
+ * outside of it the export runs unthrottled. They can also be changed while
+ * the job runs by editing the rates file in the export folder, which is
+ * checked every few seconds:
+ * <pre>
+ * nodesPerSecond=200
+ * kbPerSecond=10240
+ * callsPerSecond=2000
+ * schedule=08:00-18:00
+ * </pre>
+ * A rate of 0 means unlimited.
+ */
+public class RateGovernor {
+    Log log = LogFactory.getLog(RateGovernor.class);
+
+    /** Name of the rates file looked up in the export folder */
+    public static final String RATES_FILE = "bulkexport-rates.properties";
+
+    private static final int RELOAD_SECONDS = 5;
+
+    private final TokenBucket nodes = new TokenBucket(0);
+    private final TokenBucket bytes = new TokenBucket(0);
+    private final TokenBucket calls = new TokenBucket(0);
+
+    /** Configured limits, applied only inside the schedule window */
+    private double nodesPerSecond;
+    private double bytesPerSecond;
+    private double callsPerSecond;
+
+    /** Schedule window in minutes of the day, -1 when the limits always apply */
+    private int windowStart = -1;
+    private int windowEnd = -1;
+
+    private File ratesFile;
+    private long ratesFileModified;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param nodesPerSecond nodes exported per second, 0 for unlimited
+     * @param kbPerSecond content kilobytes written per second, 0 for unlimited
+     * @param callsPerSecond repository calls per second, 0 for unlimited
+     * @param schedule window as HH:mm-HH:mm in which the limits apply, null for always
+     */
+    public RateGovernor(double nodesPerSecond, double kbPerSecond, double callsPerSecond, String schedule) {
+        setLimits(nodesPerSecond, kbPerSecond, callsPerSecond, schedule);
+    }
+
+    /**
+     * Change the limits, takes effect immediately for all the workers
+     */
+    public synchronized void setLimits(double nodesPerSecond, double kbPerSecond, double callsPerSecond, String schedule) {
+        this.nodesPerSecond = nodesPerSecond;
+        this.bytesPerSecond = kbPerSecond * 1024;
+        this.callsPerSecond = callsPerSecond;
+        parseSchedule(schedule);
+        apply();
+
+        log.info("Rate limits: " + describe());
+    }
+
+    /**
+     * Watch the rates file of the export folder and apply its limits when it changes
+     *
+     * @param basePath export folder
+     */
+    public synchronized void start(String basePath) {
+        ratesFile = new File(basePath, RATES_FILE);
+        reload();
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bulkexport-rates");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reload();
+                apply();
+            }
+        }, RELOAD_SECONDS, RELOAD_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Called by a worker before exporting a node
+     */
+    public void acquireNode() throws InterruptedException {
+        nodes.acquire(1);
+    }
+
+    /**
+     * Called by a worker after writing content
+     *
+     * @param count number of bytes written
+     */
+    public void acquireBytes(long count) throws InterruptedException {
+        bytes.acquire(count);
+    }
+
+    /**
+     * Called before every repository call
+     */
+    public void acquireCall() throws InterruptedException {
+        calls.acquire(1);
+    }
+
+    public synchronized String describe() {
+        String text = "nodes/sec: " + formatRate(nodesPerSecond) + ", KB/sec: " + formatRate(bytesPerSecond / 1024)
+                + ", calls/sec: " + formatRate(callsPerSecond);
+        if (windowStart >= 0) {
+            text += ", between " + formatMinutes(windowStart) + " and " + formatMinutes(windowEnd);
+        }
+        return text;
+    }
+
+    /**
+     * Set the bucket rates from the limits and the time of day
+     */
+    private synchronized void apply() {
+        boolean active = isInWindow();
+        nodes.setRate(active ? nodesPerSecond : 0);
+        bytes.setRate(active ? bytesPerSecond : 0);
+        calls.setRate(active ? callsPerSecond : 0);
+    }
+
+    private boolean isInWindow() {
+        if (windowStart < 0) {
+            return true;
+        }
+        Calendar now = Calendar.getInstance();
+        int minute = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+        if (windowStart <= windowEnd) {
+            return minute >= windowStart && minute < windowEnd;
+        }
+        // window over midnight, e.g. 22:00-06:00
+        return minute >= windowStart || minute < windowEnd;
+    }
+
+    private synchronized void reload() {
+        if (ratesFile == null || !ratesFile.exists() || ratesFile.lastModified() == ratesFileModified) {
+            return;
+        }
+        ratesFileModified = ratesFile.lastModified();
+
+        Properties rates = new Properties();
+        try {
+            InputStream in = new FileInputStream(ratesFile);
+            try {
+                rates.load(in);
+            } finally {
+                in.close();
+            }
+            setLimits(parseRate(rates.getProperty("nodesPerSecond")), parseRate(rates.getProperty("kbPerSecond")),
+                    parseRate(rates.getProperty("callsPerSecond")), rates.getProperty("schedule"));
+            log.info("Rate limits reloaded from " + ratesFile.getPath());
+        } catch (IOException e) {
+            log.warn("Could not read rates file " + ratesFile.getPath(), e);
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid rates file " + ratesFile.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    private void parseSchedule(String schedule) {
+        if (StringUtils.isBlank(schedule)) {
+            windowStart = -1;
+            windowEnd = -1;
+            return;
+        }
+
+        String[] bounds = schedule.trim().split("-");
+        if (bounds.length != 2) {
+            throw new IllegalArgumentException("schedule must be HH:mm-HH:mm, got " + schedule);
+        }
+        windowStart = parseMinutes(bounds[0]);
+        windowEnd = parseMinutes(bounds[1]);
+    }
+
+    private static int parseMinutes(String time) {
+        String[] parts = time.trim().split(":");
+        try {
+            int hours = Integer.parseInt(parts[0]);
+            int minutes = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+            return hours * 60 + minutes;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid time " + time);
+        }
+    }
+
+    private static double parseRate(String rate) {
+        if (StringUtils.isBlank(rate)) {
+            return 0;
+        }
+        try {
+            return Double.parseDouble(rate.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid rate " + rate);
+        }
+    }
+
+    private static String formatRate(double rate) {
+        return rate > 0 ? String.format("%.0f", rate) : "unlimited";
+    }
+
+    private static String formatMinutes(int minutes) {
+        return String.format("%02d:%02d", minutes / 60, minutes % 60);
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import org.alfresco.extensions.bulkexport.dao.AlfrescoExportDao;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Warms the repository node caches ahead of the workers.
+ *
+ * Each task reads its nodes through a {@link Cursor}. When a task gets within
+ * half a window of the last node prefetched for it, the next window of its
+ * nodes is loaded in one batch (nodes, properties, aspects and parent
+ * associations) by the prefetch threads, so the task mostly finds its nodes
+ * in cache. A task never has more than one batch pending: if the prefetch
+ * falls behind, the task goes on with cold nodes rather than waiting.
+ *
+ * A node is counted as a hit if its batch was loaded before the task
+ * reached it, a miss otherwise.
+ */
+public class ReadAhead {
+    Log log = LogFactory.getLog(ReadAhead.class);
+
+    private final AlfrescoExportDao dao;
+    private final int window;
+    private final ExecutorService pool;
+
+    /** Nodes loaded and not reached yet by their task */
+    private final Set<NodeRef> warm = Collections.newSetFromMap(new ConcurrentHashMap<NodeRef, Boolean>());
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong prefetched = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param dao Data Access Object
+     * @param window number of nodes prefetched at once for a task
+     * @param threads number of prefetch threads
+     */
+    public ReadAhead(AlfrescoExportDao dao, int window, int threads) {
+        this.dao = dao;
+        this.window = window;
+
+        final AtomicInteger count = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bulkexport-readahead-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param nodes nodes of a task, in the order the task exports them
+     * @return the cursor the task reports its progress to
+     */
+    public Cursor cursor(List<NodeRef> nodes) {
+        return new Cursor(nodes);
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return percentage of the nodes found prefetched by their task
+     */
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : hits.get() * 100.0 / total;
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+        warm.clear();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("window %d, %d nodes prefetched in %d batches (%d failed), hit rate %.1f%%",
+                window, prefetched.get(), batches.get(), failures.get(), getHitRate());
+    }
+
+    private Future<?> prefetch(final List<NodeRef> batch) {
+        return pool.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dao.cacheNodes(batch);
+                    warm.addAll(batch);
+                    batches.incrementAndGet();
+                    prefetched.addAndGet(batch.size());
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    if (log.isDebugEnabled()) {
+                        log.debug("Could not prefetch " + batch.size() + " nodes", e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Progress of one task through its nodes, used by the task thread only
+     */
+    public class Cursor {
+        private final List<NodeRef> nodes;
+        private int position;
+        private int prefetchedTo;
+        private Future<?> pending;
+
+        private Cursor(List<NodeRef> nodes) {
+            this.nodes = nodes;
+        }
+
+        /**
+         * Tell the task is about to export its next node, and prefetch the
+         * next window if needed
+         *
+         * @param nodeRef the node
+         */
+        public void next(NodeRef nodeRef) {
+            position++;
+            if (prefetchedTo < nodes.size() && position + window / 2 >= prefetchedTo
+                    && (pending == null || pending.isDone())) {
+                int end = Math.min(nodes.size(), Math.max(prefetchedTo, position) + window);
+                int begin = Math.max(prefetchedTo, position);
+                if (begin < end) {
+                    pending = prefetch(new ArrayList<NodeRef>(nodes.subList(begin, end)));
+                }
+                prefetchedTo = end;
+            }
+
+            if (warm.remove(nodeRef)) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import org.alfresco.extensions.bulkexport.model.FileFolder;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Nodes whose export failed, waiting to be exported again.
+ *
+ * A failed node is retried after a delay doubling at each attempt, up to a
+ * maximum number of attempts. A node still failing then is written to the
+ * dead letter file of the export folder, one line per node:
+ * <pre>
+ * nodeRef  subdirectory  attempts  error
+ * </pre>
+ * The subdirectory is the one of the root of the node in a multi-root
+ * export, empty otherwise. A later run can export only the nodes of this
+ * file, each to its subdirectory, see {@link #readDeadLetters(File)}.
+ */
+public class RetryQueue {
+    Log log = LogFactory.getLog(RetryQueue.class);
+
+    /** Name of the dead letter file in the export folder */
+    public static final String DEAD_LETTER_FILE = "dead-letter.tsv";
+
+    /** Longest delay before a retry, in milliseconds */
+    private static final long MAX_DELAY = 5 * 60 * 1000L;
+
+    private final DelayQueue<Retry> queue = new DelayQueue<Retry>();
+    private final File deadLetterFile;
+    private final int maxAttempts;
+    private final long baseDelay;
+
+    private Writer deadLetters;
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong dead = new AtomicLong();
+
+    /**
+     * A node waiting for its next attempt
+     */
+    public static class Retry implements Delayed {
+        private final NodeRef nodeRef;
+        private final int attempt;
+        private final long due;
+        private final FileFolder fileFolder;
+        private final ExportStatistics statistics;
+
+        Retry(NodeRef nodeRef, int attempt, long delay, FileFolder fileFolder, ExportStatistics statistics) {
+            this.nodeRef = nodeRef;
+            this.attempt = attempt;
+            this.due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            this.fileFolder = fileFolder;
+            this.statistics = statistics;
+        }
+
+        public NodeRef getNodeRef() {
+            return nodeRef;
+        }
+
+        /**
+         * @return where the failed attempt was written, null for the export folder
+         */
+        public FileFolder getFileFolder() {
+            return fileFolder;
+        }
+
+        /**
+         * @return counters of the failed attempt, null for those of the job
+         */
+        public ExportStatistics getStatistics() {
+            return statistics;
+        }
+
+        /**
+         * @return number of the attempt to make, 2 for the first retry
+         */
+        public int getAttempt() {
+            return attempt;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            long diff = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+
+    /**
+     * @param basePath export folder, where the dead letter file is written
+     * @param maxAttempts attempts made on a node before it goes to the dead letter file, 1 to never retry
+     * @param baseDelay delay before the first retry, in milliseconds
+     */
+    public RetryQueue(String basePath, int maxAttempts, long baseDelay) {
+        this.deadLetterFile = new File(basePath, DEAD_LETTER_FILE);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelay = baseDelay;
+    }
+
+    /**
+     * Queue a failed node for another attempt, or write it to the dead
+     * letter file if it had all its attempts
+     *
+     * @param nodeRef node whose export failed
+     * @param attempt number of the attempt that failed, from 1
+     * @param error cause of the failure
+     * @return true if the node will be retried, false if it failed for good
+     */
+    public boolean failed(NodeRef nodeRef, int attempt, Exception error) {
+        return failed(nodeRef, attempt, error, null, null);
+    }
+
+    /**
+     * Queue a failed node for another attempt written to the same place and
+     * counted in the same statistics, or write it to the dead letter file if
+     * it had all its attempts
+     *
+     * @param nodeRef node whose export failed
+     * @param attempt number of the attempt that failed, from 1
+     * @param error cause of the failure
+     * @param fileFolder where the node is written, null for the export folder
+     * @param statistics counters of the node, null for those of the job
+     * @return true if the node will be retried, false if it failed for good
+     */
+    public boolean failed(NodeRef nodeRef, int attempt, Exception error, FileFolder fileFolder, ExportStatistics statistics) {
+        if (attempt < maxAttempts) {
+            long delay = Math.min(MAX_DELAY, baseDelay << Math.min(attempt - 1, 20));
+            queue.add(new Retry(nodeRef, attempt + 1, delay, fileFolder, statistics));
+            retried.incrementAndGet();
+            log.warn("Export of node " + nodeRef.getId() + " failed (attempt " + attempt + "), retrying in " + delay + " ms: " + error);
+            return true;
+        }
+
+        dead.incrementAndGet();
+        try {
+            writeDeadLetter(nodeRef, fileFolder != null ? fileFolder.getSubdirectory() : "", attempt, error);
+        } catch (IOException e) {
+            log.error("Could not write node " + nodeRef + " to " + deadLetterFile.getPath(), e);
+        }
+        return false;
+    }
+
+    /**
+     * @param timeout how long to wait for a node to be due, in milliseconds
+     * @return the next node due, null if none is due within the timeout
+     * @throws InterruptedException
+     */
+    public Retry poll(long timeout) throws InterruptedException {
+        return queue.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    public long getRetried() {
+        return retried.get();
+    }
+
+    public long getDead() {
+        return dead.get();
+    }
+
+    public File getDeadLetterFile() {
+        return deadLetterFile;
+    }
+
+    /**
+     * Close the dead letter file
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if (deadLetters != null) {
+            deadLetters.close();
+            deadLetters = null;
+        }
+        if (!queue.isEmpty()) {
+            log.warn(queue.size() + " nodes were still waiting for a retry");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return retried.get() + " retries, " + dead.get() + " nodes failed for good"
+                + (dead.get() > 0 ? " (see " + deadLetterFile.getPath() + ")" : "");
+    }
+
+    private synchronized void writeDeadLetter(NodeRef nodeRef, String subdirectory, int attempts, Exception error) throws IOException {
+        if (deadLetters == null) {
+            // appended to, a rerun of the dead letters reads a renamed copy
+            deadLetters = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(deadLetterFile, true), "UTF-8"));
+        }
+        String message = String.valueOf(error).replace('\t', ' ').replace('\r', ' ').replace('\n', ' ');
+        deadLetters.write(nodeRef + "\t" + subdirectory + "\t" + attempts + "\t" + message + "\n");
+        deadLetters.flush();
+    }
+
+    /**
+     * Read the nodes of a dead letter file. The lines without subdirectory,
+     * written before it was recorded, go to the export folder.
+     *
+     * @param file the dead letter file
+     * @return the nodes by subdirectory, in the order they failed
+     * @throws IOException
+     */
+    public static Map<String, List<NodeRef>> readDeadLetters(File file) throws IOException {
+        Map<String, List<NodeRef>> nodes = new LinkedHashMap<String, List<NodeRef>>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split("\t", 4);
+                String nodeRef = columns[0].trim();
+                if (!NodeRef.isNodeRef(nodeRef)) {
+                    continue;
+                }
+                String subdirectory = columns.length == 4 ? columns[1] : "";
+                List<NodeRef> subdirectoryNodes = nodes.get(subdirectory);
+                if (subdirectoryNodes == null) {
+                    subdirectoryNodes = new ArrayList<NodeRef>();
+                    nodes.put(subdirectory, subdirectoryNodes);
+                }
+                subdirectoryNodes.add(new NodeRef(nodeRef));
+            }
+        } finally {
+            reader.close();
+        }
+        return nodes;
+    }
+}
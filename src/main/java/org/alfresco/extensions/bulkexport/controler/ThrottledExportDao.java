@@ -0,0 +1,183 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import org.alfresco.extensions.bulkexport.dao.AlfrescoExportDao;
+import org.alfresco.extensions.bulkexport.dao.NodeAssociation;
+import org.alfresco.extensions.bulkexport.dao.NodeRefRevision;
+import org.alfresco.extensions.bulkexport.model.ExportScratch;
+import org.alfresco.repo.security.permissions.AccessControlList;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * {@link AlfrescoExportDao} taking a call token from the {@link RateGovernor}
+ * before every repository call, so discovery and export tasks share the same
+ * calls/sec budget.
+ */
+class ThrottledExportDao implements AlfrescoExportDao {
+
+    private final AlfrescoExportDao dao;
+    private final RateGovernor governor;
+
+    ThrottledExportDao(AlfrescoExportDao dao, RateGovernor governor) {
+        this.dao = dao;
+        this.governor = governor;
+    }
+
+    public boolean isNodeIgnored(String nodeRef) throws Exception {
+        governor.acquireCall();
+        return dao.isNodeIgnored(nodeRef);
+    }
+
+    public Map<QName, Serializable> getProperties(NodeRef nodeRef) throws Exception {
+        governor.acquireCall();
+        return dao.getProperties(nodeRef);
+    }
+
+    public Map<String, String> getPropertiesAsString(NodeRef nodeRef) throws Exception {
+        governor.acquireCall();
+        return dao.getPropertiesAsString(nodeRef);
+    }
+
+    public Map<String, String> getPropertiesAsString(NodeRef nodeRef, ExportScratch scratch) throws Exception {
+        governor.acquireCall();
+        return dao.getPropertiesAsString(nodeRef, scratch);
+    }
+
+    public List<NodeRef> getChildren(NodeRef nodeRef) throws Exception {
+        governor.acquireCall();
+        return dao.getChildren(nodeRef);
+    }
+
+    public String getPath(NodeRef nodeRef) throws Exception {
+        governor.acquireCall();
+        return dao.getPath(nodeRef);
+    }
+
+    public ByteArrayOutputStream getContent(NodeRef nodeRef) throws Exception {
+        governor.acquireCall();
+        return dao.getContent(nodeRef);
+    }
+
+    public boolean getContentAndStoreInFile(NodeRef nodeRef, String outputFileName) throws Exception {
+        governor.acquireCall();
+        return dao.getContentAndStoreInFile(nodeRef, outputFileName);
+    }
+
+    public ContentReader getContentReader(NodeRef nodeRef) throws Exception {
+        governor.acquireCall();
+        return dao.getContentReader(nodeRef);
+    }
+
+    public String getContentUrl(NodeRef nodeRef) throws Exception {
+        governor.acquireCall();
+        return dao.getContentUrl(nodeRef);
+    }
+
+    public Long getAclId(NodeRef nodeRef) throws Exception {
+        governor.acquireCall();
+        return dao.getAclId(nodeRef);
+    }
+
+    public AccessControlList getAccessControlList(Long aclId) throws Exception {
+        governor.acquireCall();
+        return dao.getAccessControlList(aclId);
+    }
+
+    public List<NodeAssociation> getAssociations(NodeRef nodeRef) throws Exception {
+        governor.acquireCall();
+        return dao.getAssociations(nodeRef);
+    }
+
+    public Long getMinNodeId() throws Exception {
+        governor.acquireCall();
+        return dao.getMinNodeId();
+    }
+
+    public Long getMaxNodeId() throws Exception {
+        governor.acquireCall();
+        return dao.getMaxNodeId();
+    }
+
+    public List<NodeRef> getNodesById(long firstId, long lastId) throws Exception {
+        governor.acquireCall();
+        return dao.getNodesById(firstId, lastId);
+    }
+
+    public NodeRef getFollowedPrimaryParent(NodeRef nodeRef) throws Exception {
+        governor.acquireCall();
+        return dao.getFollowedPrimaryParent(nodeRef);
+    }
+
+    public void cacheNodes(List<NodeRef> nodeRefs) throws Exception {
+        governor.acquireCall();
+        dao.cacheNodes(nodeRefs);
+    }
+
+    public String getProperty(NodeRef nodeRef, QName propertyQName) throws Exception {
+        governor.acquireCall();
+        return dao.getProperty(nodeRef, propertyQName);
+    }
+
+    public String getType(NodeRef nodeRef) throws Exception {
+        governor.acquireCall();
+        return dao.getType(nodeRef);
+    }
+
+    public List<QName> getAspects(NodeRef nodeRef) throws Exception {
+        governor.acquireCall();
+        return dao.getAspects(nodeRef);
+    }
+
+    public List<String> getAspectsAsString(NodeRef nodeRef) throws Exception {
+        governor.acquireCall();
+        return dao.getAspectsAsString(nodeRef);
+    }
+
+    public List<String> getAspectsAsString(NodeRef nodeRef, ExportScratch scratch) throws Exception {
+        governor.acquireCall();
+        return dao.getAspectsAsString(nodeRef, scratch);
+    }
+
+    public boolean isFolder(NodeRef nodeRef) throws Exception {
+        governor.acquireCall();
+        return dao.isFolder(nodeRef);
+    }
+
+    public NodeRef getNodeRef(String nodeRef) throws Exception {
+        // no repository call, only parsing
+        return dao.getNodeRef(nodeRef);
+    }
+
+    public List<NodeRef> findNodes(String language, String query, int skipCount, int pageSize) throws Exception {
+        governor.acquireCall();
+        return dao.findNodes(language, query, skipCount, pageSize);
+    }
+
+    public Map<String, NodeRefRevision> getNodeRefHistory(String nodeRef) throws Exception {
+        governor.acquireCall();
+        return dao.getNodeRefHistory(nodeRef);
+    }
+}
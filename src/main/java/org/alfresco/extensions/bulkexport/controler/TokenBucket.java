@@ -0,0 +1,92 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Token bucket shared by all the workers of a job.
+ *
+ * The bucket holds at most one second worth of tokens. A request bigger than
+ * what is available is still granted but leaves the bucket in debt, and the
+ * caller sleeps until the debt is paid back. This lets a worker account for a
+ * whole file once it knows its size, and keeps the average rate right when
+ * several workers compete for the same bucket.
+ */
+public class TokenBucket {
+
+    /** Tokens added per second, 0 or less for unlimited */
+    private double rate;
+
+    /** Tokens available, negative when in debt */
+    private double tokens;
+
+    private long lastRefill = System.nanoTime();
+
+    public TokenBucket(double rate) {
+        setRate(rate);
+    }
+
+    /**
+     * Change the rate, takes effect for the next request
+     *
+     * @param rate tokens per second, 0 or less for unlimited
+     */
+    public synchronized void setRate(double rate) {
+        refill();
+        this.rate = rate;
+        this.tokens = Math.min(tokens, Math.max(rate, 0));
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    public boolean isLimited() {
+        return getRate() > 0;
+    }
+
+    /**
+     * Take tokens from the bucket, sleeping if there are not enough
+     *
+     * @param count number of tokens
+     * @throws InterruptedException
+     */
+    public void acquire(long count) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            if (rate <= 0) {
+                return;
+            }
+            refill();
+            tokens -= count;
+            waitNanos = tokens < 0 ? (long) (-tokens / rate * 1e9) : 0;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (rate > 0) {
+            tokens = Math.min(rate, tokens + (now - lastRefill) / 1e9 * rate);
+        }
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Tab separated report of the differences found by a verification, with
+ * the columns:
+ * <pre>
+ * nodeRef  path  problem  expected  actual
+ * </pre>
+ * Shared by all the verification tasks, which also note the files they
+ * expect so that the files of the export folder no node accounts for (files
+ * of deleted nodes, partial copies) can be reported as UNEXPECTED_FILE.
+ */
+public class VerificationReport {
+
+    public static final String MISSING = "MISSING";
+    public static final String METADATA_MISSING = "METADATA_MISSING";
+    public static final String SIZE_MISMATCH = "SIZE_MISMATCH";
+    public static final String DIGEST_MISMATCH = "DIGEST_MISMATCH";
+    public static final String UNEXPECTED_FILE = "UNEXPECTED_FILE";
+    public static final String ERROR = "ERROR";
+
+    private final File reportFile;
+    private final Writer writer;
+
+    private final AtomicLong filesChecked = new AtomicLong();
+    private final AtomicLong mismatches = new AtomicLong();
+
+    /** Files and folders written by the export, relative to the export folder */
+    private final Set<String> expected = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public VerificationReport(File reportFile) throws IOException {
+        this.reportFile = reportFile;
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(reportFile), "UTF-8"));
+        this.writer.write("nodeRef\tpath\tproblem\texpected\tactual\n");
+    }
+
+    public File getReportFile() {
+        return reportFile;
+    }
+
+    public void fileChecked() {
+        filesChecked.incrementAndGet();
+    }
+
+    public long getFilesChecked() {
+        return filesChecked.get();
+    }
+
+    public long getMismatches() {
+        return mismatches.get();
+    }
+
+    /**
+     * Report a difference
+     *
+     * @param nodeRef node concerned
+     * @param path file concerned, relative to the export folder
+     * @param problem one of the problem constants
+     * @param expected expected value, may be null
+     * @param actual value found, may be null
+     * @throws IOException
+     */
+    public synchronized void mismatch(String nodeRef, String path, String problem, Object expected, Object actual) throws IOException {
+        mismatches.incrementAndGet();
+        writer.write(nodeRef + "\t" + path + "\t" + problem + "\t" + (expected != null ? expected : "") + "\t"
+                + (actual != null ? String.valueOf(actual).replace('\t', ' ').replace('\n', ' ') : "") + "\n");
+    }
+
+    /**
+     * Note a file or folder the export writes
+     *
+     * @param path file or folder, relative to the export folder
+     */
+    public void expect(String path) {
+        expected.add(path);
+    }
+
+    /**
+     * Report the files and folders under a folder of the export that were not
+     * expected. An unexpected folder is reported once, without its content.
+     * Must be called once all the verification tasks are done.
+     *
+     * @param basePath export folder
+     * @param path folder walked, relative to the export folder
+     * @throws IOException
+     */
+    public void unexpectedFiles(String basePath, String path) throws IOException {
+        Deque<String> folders = new ArrayDeque<String>();
+        folders.push(path);
+        while (!folders.isEmpty()) {
+            String folder = folders.pop();
+            File[] children = new File(basePath + folder).listFiles();
+            if (children == null) {
+                continue;
+            }
+            Arrays.sort(children);
+            for (File child : children) {
+                String childPath = folder + "/" + child.getName();
+                if (!expected.contains(childPath)) {
+                    mismatch("", childPath, UNEXPECTED_FILE, null, child.isDirectory() ? "folder" : child.length());
+                } else if (child.isDirectory()) {
+                    folders.push(childPath);
+                }
+            }
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    @Override
+    public String toString() {
+        return "files checked: " + getFilesChecked() + ", mismatches: " + getMismatches();
+    }
+}
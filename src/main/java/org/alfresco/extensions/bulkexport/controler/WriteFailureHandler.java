@@ -0,0 +1,72 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.controler;
+
+import org.alfresco.extensions.bulkexport.model.FileFolder;
+import org.alfresco.extensions.bulkexport.model.WriteBehind;
+import org.alfresco.service.cmr.repository.NodeRef;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Handles the files of the nodes of a task that the write-behind writers
+ * could not write.
+ *
+ * The node was counted as exported when its files were handed over: it is
+ * no longer, and is queued for another attempt, or counted as failed when it
+ * had all its attempts. A node whose content and metadata both fail is
+ * handled once.
+ */
+class WriteFailureHandler implements WriteBehind.Listener {
+
+    private final RetryQueue retryQueue;
+    private final int attempt;
+    private final FileFolder fileFolder;
+    private final ExportStatistics statistics;
+
+    private final Set<NodeRef> failed = Collections.newSetFromMap(new ConcurrentHashMap<NodeRef, Boolean>());
+
+    /**
+     * @param retryQueue queue of the failed nodes, null to give up at once
+     * @param attempt number of the attempt made on the nodes of the task, from 1
+     * @param fileFolder where the nodes of the task are written
+     * @param statistics counters of the nodes of the task
+     */
+    WriteFailureHandler(RetryQueue retryQueue, int attempt, FileFolder fileFolder, ExportStatistics statistics) {
+        this.retryQueue = retryQueue;
+        this.attempt = attempt;
+        this.fileFolder = fileFolder;
+        this.statistics = statistics;
+    }
+
+    @Override
+    public void failed(NodeRef nodeRef, File file, IOException error) {
+        statistics.filesFailed(1);
+        if (!failed.add(nodeRef)) {
+            return;
+        }
+        statistics.nodeWriteFailed();
+        if (retryQueue == null || !retryQueue.failed(nodeRef, attempt, error, fileFolder, statistics)) {
+            statistics.nodeFailed();
+        }
+    }
+}
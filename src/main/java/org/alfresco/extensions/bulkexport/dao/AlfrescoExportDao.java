@@ -21,6 +21,9 @@ import java.io.Serializable;
 import java.util.List;
 import java.util.Map;
 
+import org.alfresco.extensions.bulkexport.model.ExportScratch;
+import org.alfresco.repo.security.permissions.AccessControlList;
+import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.namespace.QName;
 
@@ -33,7 +36,7 @@ import org.alfresco.service.namespace.QName;
  */
 public interface AlfrescoExportDao 
 {
-    public boolean isNodeIgnored(String nodeRef);
+    public boolean isNodeIgnored(String nodeRef) throws Exception;
     
     /**
      * Method to get node properties.
@@ -55,6 +58,18 @@ public interface AlfrescoExportDao
      * @throws Exception
      */
     public Map<String, String> getPropertiesAsString(NodeRef nodeRef) throws Exception;
+
+
+    /**
+     * Method to get node properties in {@link String} properties, in the
+     * property map of the given scratch
+     * 
+     * @param nodeRef Alfresco Node Reference
+     * @param scratch working memory of the calling thread
+     * @return {@link Map}, valid until the next call with the same scratch
+     * @throws Exception
+     */
+    public Map<String, String> getPropertiesAsString(NodeRef nodeRef, ExportScratch scratch) throws Exception;
     
     
     /**
@@ -96,6 +111,102 @@ public interface AlfrescoExportDao
      * @throws Exception
      */
     public boolean getContentAndStoreInFile(NodeRef nodeRef, String outputFileName) throws Exception; 
+
+    /**
+     * Method to get a reader on the node content, so the caller can stream it
+     * to wherever it needs
+     * 
+     * @param nodeRef Alfresco Node Reference
+     * @return {@link ContentReader}, null if the node has no content
+     * @throws Exception
+     */
+    public ContentReader getContentReader(NodeRef nodeRef) throws Exception;
+
+    /**
+     * Method to get the URL of the node content in the content store, without
+     * opening the content
+     * 
+     * @param nodeRef Alfresco Node Reference
+     * @return {@link String}, null if the node has no content
+     * @throws Exception
+     */
+    public String getContentUrl(NodeRef nodeRef) throws Exception;
+
+    /**
+     * Method to get the id of the ACL of a node, shared by all the nodes
+     * inheriting the same permissions
+     * 
+     * @param nodeRef Alfresco Node Reference
+     * @return {@link Long}, null if the node has no ACL
+     * @throws Exception
+     */
+    public Long getAclId(NodeRef nodeRef) throws Exception;
+
+    /**
+     * Method to get an ACL by its id
+     * 
+     * @param aclId id as returned by {@link #getAclId(NodeRef)}
+     * @return {@link AccessControlList}, null if not found
+     * @throws Exception
+     */
+    public AccessControlList getAccessControlList(Long aclId) throws Exception;
+
+    /**
+     * Method to get the peer associations of a node and the secondary child
+     * associations whose child it is, in one list
+     * 
+     * @param nodeRef Alfresco Node Reference
+     * @return {@link List} of {@link NodeAssociation}, empty if the node has none
+     * @throws Exception
+     */
+    public List<NodeAssociation> getAssociations(NodeRef nodeRef) throws Exception;
+
+    /**
+     * Method to get the lowest node database id
+     * 
+     * @return {@link Long}, null if there is no node
+     * @throws Exception
+     */
+    public Long getMinNodeId() throws Exception;
+
+    /**
+     * Method to get the highest node database id
+     * 
+     * @return {@link Long}, null if there is no node
+     * @throws Exception
+     */
+    public Long getMaxNodeId() throws Exception;
+
+    /**
+     * Method to get the nodes of a range of database ids, of every store,
+     * loaded in the repository caches in one batch with their properties,
+     * aspects and parent associations
+     * 
+     * @param firstId first node database id
+     * @param lastId last node database id, included
+     * @return {@link List} of the nodes found, by id
+     * @throws Exception
+     */
+    public List<NodeRef> getNodesById(long firstId, long lastId) throws Exception;
+
+    /**
+     * Method to get the primary parent of a node when discovery follows its
+     * association, i.e. when it is of one of the child association types walked
+     * 
+     * @param nodeRef Alfresco Node Reference
+     * @return {@link NodeRef}, null for a store root or an association not followed
+     * @throws Exception
+     */
+    public NodeRef getFollowedPrimaryParent(NodeRef nodeRef) throws Exception;
+
+    /**
+     * Method to load nodes in the repository caches in one batch, with their
+     * properties, aspects and parent associations
+     * 
+     * @param nodeRefs Alfresco Node References
+     * @throws Exception
+     */
+    public void cacheNodes(List<NodeRef> nodeRefs) throws Exception;
     
     /**
      * Method to get specific property
@@ -136,6 +247,18 @@ public interface AlfrescoExportDao
      * @throws Exception
      */
     public List<String> getAspectsAsString(NodeRef nodeRef) throws Exception;
+
+
+    /**
+     * Method to get a {@link List} of aspects in {@link String} format, in
+     * the aspect list of the given scratch
+     * 
+     * @param nodeRef Alfresco Node Reference
+     * @param scratch working memory of the calling thread
+     * @return {@link List}, valid until the next call with the same scratch
+     * @throws Exception
+     */
+    public List<String> getAspectsAsString(NodeRef nodeRef, ExportScratch scratch) throws Exception;
     
     
     /**
@@ -157,6 +280,18 @@ public interface AlfrescoExportDao
      */
     public NodeRef getNodeRef(String nodeRef) throws Exception;
 
+    /**
+     * Method to get one page of the nodes matching a repository query
+     * 
+     * @param language query language, e.g. fts-alfresco or cmis-alfresco
+     * @param query the query
+     * @param skipCount number of results to skip
+     * @param pageSize maximum number of results
+     * @return {@link List}
+     * @throws Exception
+     */
+    public List<NodeRef> findNodes(String language, String query, int skipCount, int pageSize) throws Exception;
+
     /**
      * Method to get all available revisions for a Node (@link string)
      * 
@@ -16,20 +16,31 @@
  */
 package org.alfresco.extensions.bulkexport.dao;
 
-import com.ibm.icu.text.SimpleDateFormat;
+import org.alfresco.extensions.bulkexport.model.ExportScratch;
+import org.alfresco.extensions.bulkexport.model.ResolutionCache;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.action.ActionModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.domain.permissions.AclDAO;
 import org.alfresco.repo.publishing.PublishingModel;
+import org.alfresco.repo.security.permissions.AccessControlList;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
 import org.alfresco.service.ServiceRegistry;
 import org.alfresco.service.cmr.model.FileFolderService;
 import org.alfresco.service.cmr.model.FileInfo;
 import org.alfresco.service.cmr.repository.*;
+import org.alfresco.service.cmr.search.QueryConsistency;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
 import org.alfresco.service.cmr.security.PermissionService;
 import org.alfresco.service.cmr.version.Version;
 import org.alfresco.service.cmr.version.VersionHistory;
 import org.alfresco.service.cmr.version.VersionService;
 import org.alfresco.service.namespace.NamespacePrefixResolver;
 import org.alfresco.service.namespace.QName;
+import org.alfresco.service.namespace.RegexQNamePattern;
+import org.alfresco.util.Pair;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -37,6 +48,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.io.Serializable;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
 import java.util.*;
 
 
@@ -50,6 +63,9 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao {
 
     Log log = LogFactory.getLog(AlfrescoExportDaoImpl.class);
 
+    /** Format of dates in the metadata files, as the Bulk Import reads them */
+    private static final String DATE_FORMAT = "yyyy-MM-dd'T'hh:mm:ss.SSSZ";
+
     /** Alfresco {@link ServiceRegistry} to Data Access Object */
     private ServiceRegistry registry;
 
@@ -59,6 +75,38 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao {
     private final ContentService contentService;
     private final PermissionService permissionService;
     private final VersionService versionService;
+    private final SearchService searchService;
+
+    /** Types of the child associations followed by discovery, null to follow all */
+    private Set<QName> childAssocTypes;
+
+    /** Types ignored on top of ignoredType, configured per job */
+    private Set<QName> extraIgnoredTypes = Collections.emptySet();
+
+    /** Types of the children discovery asks for, all the others are pruned by the query, null to load every child type */
+    private Set<QName> childTypes;
+
+    /** Category paths and tag names by node, null to ignore categories and tags */
+    private ResolutionCache<NodeRef, String> classificationCache;
+
+    private final ResolutionCache.Resolver<NodeRef, String> categoryResolver = new ResolutionCache.Resolver<NodeRef, String>() {
+        @Override
+        public String resolve(NodeRef category) throws Exception {
+            return getPath(category);
+        }
+    };
+
+    private final ResolutionCache.Resolver<NodeRef, String> tagResolver = new ResolutionCache.Resolver<NodeRef, String>() {
+        @Override
+        public String resolve(NodeRef tag) throws Exception {
+            Serializable name = nodeService.getProperty(tag, ContentModel.PROP_NAME);
+            return name != null ? name.toString() : null;
+        }
+    };
+
+    /** Low level node and ACL access, needed to export permissions and to scan nodes by id */
+    private NodeDAO nodeDAO;
+    private AclDAO aclDAO;
 
     private QName ignoreAspectQname[] =
             {
@@ -111,6 +159,7 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao {
         contentService = this.registry.getContentService();
         permissionService = this.registry.getPermissionService();
         versionService = this.registry.getVersionService();
+        searchService = this.registry.getSearchService();
     }
 
 
@@ -127,21 +176,37 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao {
      * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#getMetadataAsString(java.lang.String)
      */
     public Map<String, String> getPropertiesAsString(NodeRef nodeRef) throws Exception {
+        return this.putProperties(nodeRef, new HashMap<String, String>(), null);
+    }
 
-        Map<QName, Serializable> properties = this.getProperties(nodeRef);
 
-        Map<String, String> props = new HashMap<String, String>();
-        Set<QName> qNameSet = properties.keySet();
+    /**
+     * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#getPropertiesAsString(org.alfresco.service.cmr.repository.NodeRef, org.alfresco.extensions.bulkexport.model.ExportScratch)
+     */
+    public Map<String, String> getPropertiesAsString(NodeRef nodeRef, ExportScratch scratch) throws Exception {
+        return this.putProperties(nodeRef, scratch.getProperties(), scratch.getDateFormat(DATE_FORMAT));
+    }
+
 
-        for (QName qName : qNameSet) {
+    private Map<String, String> putProperties(NodeRef nodeRef, Map<String, String> props, DateFormat dateFormat) throws Exception {
+        Map<QName, Serializable> properties = this.getProperties(nodeRef);
+
+        for (Map.Entry<QName, Serializable> property : properties.entrySet()) {
+            QName qName = property.getKey();
             //case the qname is in ignored type do nothing will do.
             if (this.isPropertyIgnored(qName)) {
                 continue;
             }
 
-            Serializable obj = properties.get(qName);
             String name = this.getQnameStringFormat(qName);
-            String value = this.formatMetadata(obj);
+            String value;
+            if (classificationCache != null && qName.equals(ContentModel.PROP_CATEGORIES)) {
+                value = this.formatClassification(property.getValue(), categoryResolver);
+            } else if (classificationCache != null && qName.equals(ContentModel.ASPECT_TAGGABLE)) {
+                value = this.formatClassification(property.getValue(), tagResolver);
+            } else {
+                value = this.formatMetadata(property.getValue(), dateFormat);
+            }
 
             //put key value in the property list as <prefixOfProperty:nameOfProperty, valueOfProperty>
             props.put(name, value);
@@ -157,13 +222,31 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao {
     public List<NodeRef> getChildren(NodeRef nodeRef) throws Exception {
         List<NodeRef> listChildren = new ArrayList<NodeRef>();
 
-        List<ChildAssociationRef> children = nodeService.getChildAssocs(nodeRef);
+        // the query returns the children of the followed association types
+        // only, so renditions and thumbnails are never loaded; without them
+        // it prunes the ignored types when it knows the types to return
+        List<ChildAssociationRef> children;
+        boolean typesPruned = false;
+        if (childAssocTypes != null) {
+            children = new ArrayList<ChildAssociationRef>();
+            for (QName assocType : childAssocTypes) {
+                children.addAll(nodeService.getChildAssocs(nodeRef, assocType, RegexQNamePattern.MATCH_ALL));
+            }
+        } else if (childTypes != null) {
+            children = nodeService.getChildAssocs(nodeRef, childTypes);
+            typesPruned = true;
+        } else {
+            children = nodeService.getChildAssocs(nodeRef);
+        }
 
         for (ChildAssociationRef childAssociationRef : children) {
             NodeRef child = childAssociationRef.getChildRef();
 
-            if (this.isTypeIgnored(nodeService.getType(child))) {
-                continue;
+            if (!typesPruned) {
+                QName type = nodeService.getType(child);
+                if (childTypes != null ? !childTypes.contains(type) : this.isTypeIgnored(type)) {
+                    continue;
+                }
             }
 
             listChildren.add(new NodeRef(child.toString())); // deep copy
@@ -267,13 +350,256 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao {
         return true;
     }
 
+    /**
+     * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#getContentReader(java.lang.String)
+     */
+    public ContentReader getContentReader(NodeRef nodeRef) throws Exception {
+        return contentService.getReader(nodeRef, ContentModel.PROP_CONTENT);
+    }
+
+    /**
+     * Give the low level DAOs used to read ACLs and nodes by id, without them
+     * ACLs can not be exported nor nodes scanned by id
+     *
+     * @param nodeDAO Alfresco node DAO
+     * @param aclDAO Alfresco ACL DAO
+     */
+    public void setAclDAOs(NodeDAO nodeDAO, AclDAO aclDAO) {
+        this.nodeDAO = nodeDAO;
+        this.aclDAO = aclDAO;
+    }
+
+    /**
+     * Restrict the children found by discovery, so that the repository only
+     * returns the children worth exporting instead of loading every child to
+     * discard the ignored ones
+     *
+     * @param assocTypes prefixed types of the child associations to follow (e.g. cm:contains), null to follow all
+     * @param ignoredTypes prefixed node types to ignore on top of the default ones
+     * @param pruneTypes if true only cm:cmobject and its subtypes are found, filtered by the child query when every association type is followed
+     */
+    public void setDiscoveryFilter(Collection<String> assocTypes, Collection<String> ignoredTypes, boolean pruneTypes) {
+        if (assocTypes != null) {
+            childAssocTypes = new HashSet<QName>();
+            for (String assocType : assocTypes) {
+                childAssocTypes.add(QName.createQName(assocType.trim(), nsR));
+            }
+        }
+
+        extraIgnoredTypes = new HashSet<QName>();
+        for (String ignoredType : ignoredTypes) {
+            extraIgnoredTypes.add(QName.createQName(ignoredType.trim(), nsR));
+        }
+
+        if (pruneTypes) {
+            childTypes = new HashSet<QName>(registry.getDictionaryService().getSubTypes(ContentModel.TYPE_CMOBJECT, true));
+            childTypes.add(ContentModel.TYPE_CMOBJECT);
+            childTypes.removeAll(Arrays.asList(ignoredType));
+            childTypes.removeAll(extraIgnoredTypes);
+        }
+    }
+
+    /**
+     * Export the categories of the nodes as category paths and their tags as
+     * tag names, instead of ignoring them. The category and tag nodes are
+     * resolved through the given cache, as a few of them are shared by a
+     * great many nodes.
+     *
+     * @param classificationCache cache of the category paths and tag names, null to ignore categories and tags
+     */
+    public void setClassificationCache(ResolutionCache<NodeRef, String> classificationCache) {
+        this.classificationCache = classificationCache;
+    }
+
+    /**
+     * Fill the classification cache with all the categories and tags of the
+     * repository, up to the size of the cache
+     *
+     * @return number of categories and tags loaded
+     * @throws Exception
+     */
+    public int preloadClassification() throws Exception {
+        int max = classificationCache.getMaxSize();
+
+        // tags are categories under cm:taggable, named rather than given a path
+        int loaded = preloadClassification("TYPE:\"cm:category\" AND NOT PATH:\"/cm:taggable/*\"", categoryResolver, 0, max);
+        preloadClassification("PATH:\"/cm:taggable/*\"", tagResolver, loaded, max);
+
+        log.info("Classification cache preloaded with " + classificationCache.size() + " categories and tags");
+        return classificationCache.size();
+    }
+
+    /**
+     * Resolve the nodes found by a query, page by page, into the classification cache
+     *
+     * @param query FTS query of the nodes
+     * @param resolver resolver of their path or name
+     * @param loaded number of nodes already loaded
+     * @param max number of nodes to load at most
+     * @return number of nodes loaded, including those already loaded
+     * @throws Exception
+     */
+    private int preloadClassification(String query, ResolutionCache.Resolver<NodeRef, String> resolver, int loaded, int max) throws Exception {
+        int pageSize = 1000;
+        for (int skipCount = 0; loaded < max; skipCount += pageSize) {
+            List<NodeRef> nodes = findNodes(SearchService.LANGUAGE_FTS_ALFRESCO, query, skipCount, pageSize);
+            for (NodeRef node : nodes) {
+                if (loaded >= max) {
+                    break;
+                }
+                String value = resolver.resolve(node);
+                if (value != null) {
+                    classificationCache.put(node, value);
+                    loaded++;
+                }
+            }
+            if (nodes.size() < pageSize) {
+                break;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#getAclId(org.alfresco.service.cmr.repository.NodeRef)
+     */
+    public Long getAclId(NodeRef nodeRef) throws Exception {
+        Pair<Long, NodeRef> nodePair = getNodeDAO().getNodePair(nodeRef);
+        if (nodePair == null) {
+            return null;
+        }
+        return nodeDAO.getNodeAclId(nodePair.getFirst());
+    }
+
+    /**
+     * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#getAccessControlList(java.lang.Long)
+     */
+    public AccessControlList getAccessControlList(Long aclId) throws Exception {
+        if (aclDAO == null) {
+            throw new IllegalStateException("aclDAO is not configured, ACLs can not be exported");
+        }
+        return aclDAO.getAccessControlList(aclId);
+    }
+
+    /**
+     * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#getAssociations(org.alfresco.service.cmr.repository.NodeRef)
+     */
+    public List<NodeAssociation> getAssociations(NodeRef nodeRef) throws Exception {
+        List<NodeAssociation> associations = new ArrayList<NodeAssociation>();
+
+        for (AssociationRef assoc : nodeService.getTargetAssocs(nodeRef, RegexQNamePattern.MATCH_ALL)) {
+            NodeAssociation association = new NodeAssociation();
+            association.kind = NodeAssociation.PEER;
+            association.type = assoc.getTypeQName().toPrefixString(nsR);
+            association.target = assoc.getTargetRef();
+            associations.add(association);
+        }
+
+        // read from the child side: a node has few parents, a folder may have
+        // a great many children, and its primary ones are exported as nodes
+        for (ChildAssociationRef assoc : nodeService.getParentAssocs(nodeRef)) {
+            if (assoc.isPrimary()) {
+                continue;
+            }
+            NodeAssociation association = new NodeAssociation();
+            association.kind = NodeAssociation.PARENT;
+            association.type = assoc.getTypeQName().toPrefixString(nsR);
+            association.target = assoc.getParentRef();
+            associations.add(association);
+        }
+
+        return associations;
+    }
+
+    /**
+     * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#getMinNodeId()
+     */
+    public Long getMinNodeId() throws Exception {
+        return getNodeDAO().getMinNodeId();
+    }
+
+    /**
+     * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#getMaxNodeId()
+     */
+    public Long getMaxNodeId() throws Exception {
+        return getNodeDAO().getMaxNodeId();
+    }
+
+    /**
+     * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#getNodesById(long, long)
+     */
+    public List<NodeRef> getNodesById(long firstId, long lastId) throws Exception {
+        final NodeDAO nodes = getNodeDAO();
+        final List<Long> ids = new ArrayList<Long>((int) (lastId - firstId + 1));
+        for (long id = firstId; id <= lastId; id++) {
+            ids.add(id);
+        }
+        // the shared caches are only filled when a transaction commits
+        return registry.getTransactionService().getRetryingTransactionHelper().doInTransaction(
+                new RetryingTransactionHelper.RetryingTransactionCallback<List<NodeRef>>() {
+                    @Override
+                    public List<NodeRef> execute() throws Throwable {
+                        nodes.cacheNodesById(ids);
+                        List<NodeRef> found = new ArrayList<NodeRef>();
+                        for (Long id : ids) {
+                            Pair<Long, NodeRef> nodePair = nodes.getNodePair(id);
+                            if (nodePair != null) {
+                                found.add(nodePair.getSecond());
+                            }
+                        }
+                        return found;
+                    }
+                }, true);
+    }
+
+    /**
+     * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#getFollowedPrimaryParent(org.alfresco.service.cmr.repository.NodeRef)
+     */
+    public NodeRef getFollowedPrimaryParent(NodeRef nodeRef) throws Exception {
+        ChildAssociationRef parent = nodeService.getPrimaryParent(nodeRef);
+        if (parent == null || parent.getParentRef() == null) {
+            return null;
+        }
+        if (childAssocTypes != null && !childAssocTypes.contains(parent.getTypeQName())) {
+            return null;
+        }
+        return parent.getParentRef();
+    }
+
+    /**
+     * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#cacheNodes(java.util.List)
+     */
+    public void cacheNodes(final List<NodeRef> nodeRefs) throws Exception {
+        final NodeDAO nodes = getNodeDAO();
+        // the shared caches are only filled when a transaction commits
+        registry.getTransactionService().getRetryingTransactionHelper().doInTransaction(
+                new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+                    @Override
+                    public Void execute() throws Throwable {
+                        nodes.cacheNodes(nodeRefs);
+                        return null;
+                    }
+                }, true);
+    }
+
+    /**
+     * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#getContentUrl(org.alfresco.service.cmr.repository.NodeRef)
+     */
+    public String getContentUrl(NodeRef nodeRef) throws Exception {
+        Serializable value = nodeService.getProperty(nodeRef, ContentModel.PROP_CONTENT);
+        if (value instanceof ContentData) {
+            return ((ContentData) value).getContentUrl();
+        }
+        return null;
+    }
+
     /**
      * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#getProperty(java.lang.String, java.lang.String)
      */
     public String getProperty(NodeRef nodeRef, QName propertyQName) throws Exception {
         Serializable value = nodeService.getProperty(nodeRef, propertyQName);
 
-        return this.formatMetadata(value);
+        return this.formatMetadata(value, null);
     }
 
 
@@ -304,10 +630,20 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao {
      * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#getAspectsAsString(java.lang.String)
      */
     public List<String> getAspectsAsString(NodeRef nodeRef) throws Exception {
-        List<QName> qn = this.getAspects(nodeRef);
-        List<String> str = new ArrayList<String>();
+        return this.addAspects(nodeRef, new ArrayList<String>());
+    }
 
-        for (QName qName : qn) {
+
+    /**
+     * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#getAspectsAsString(org.alfresco.service.cmr.repository.NodeRef, org.alfresco.extensions.bulkexport.model.ExportScratch)
+     */
+    public List<String> getAspectsAsString(NodeRef nodeRef, ExportScratch scratch) throws Exception {
+        return this.addAspects(nodeRef, scratch.getAspects());
+    }
+
+
+    private List<String> addAspects(NodeRef nodeRef, List<String> str) throws Exception {
+        for (QName qName : nodeService.getAspects(nodeRef)) {
             if (this.isAspectIgnored(qName)) {
                 continue;
             }
@@ -326,12 +662,16 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao {
     public boolean isFolder(NodeRef nodeRef) throws Exception {
         log.debug("isFolder");
 
+        FileInfo info = service.getFileInfo(nodeRef);
         if (info != null) {
-            LOG.debug("isFolder got file info getName = " + info.getName());
-            LOG.debug("isFolder got file info isFolder = " + info.isFolder());
-            LOG.debug("isFolder return isFolder");
+            if (log.isDebugEnabled()) {
+                log.debug("isFolder got file info getName = " + info.getName());
+                log.debug("isFolder got file info isFolder = " + info.isFolder());
+                log.debug("isFolder return isFolder");
+            }
         } else {
-            LOG.debug("Fileinfo for Noderef is null: " + nodeRef.getId());
+            log.debug("Fileinfo for Noderef is null: " + nodeRef.getId());
+            return false;
         }
 
         return info.isFolder();
@@ -353,7 +693,9 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao {
      * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#getNodeRefHistory(java.lang.String)
      */
     public Map<String, NodeRefRevision> getNodeRefHistory(String nodeRef) throws Exception {
-        log.debug("getNodeRefHistory(nodeRef) nodeRef = " + nodeRef);
+        if (log.isDebugEnabled()) {
+            log.debug("getNodeRefHistory(nodeRef) nodeRef = " + nodeRef);
+        }
         Map<String, NodeRefRevision> nodes = null;
 
         NodeRef nr = getNodeRef(nodeRef);
@@ -399,6 +741,33 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao {
     }
 
 
+    /**
+     * @see com.alfresco.bulkexport.dao.AlfrescoExportDao#findNodes(java.lang.String, java.lang.String, int, int)
+     */
+    public List<NodeRef> findNodes(String language, String query, int skipCount, int pageSize) throws Exception {
+        SearchParameters sp = new SearchParameters();
+        sp.addStore(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE);
+        sp.setLanguage(language);
+        sp.setQuery(query);
+        sp.setSkipCount(skipCount);
+        sp.setMaxItems(pageSize);
+        // run against the database when the query allows it, and keep a stable order between pages
+        sp.setQueryConsistency(QueryConsistency.TRANSACTIONAL_IF_POSSIBLE);
+        sp.addSort("@" + ContentModel.PROP_NODE_DBID, true);
+
+        ResultSet results = null;
+        try {
+            results = searchService.query(sp);
+            List<NodeRef> nodes = new ArrayList<NodeRef>(results.getNodeRefs());
+            log.debug("findNodes skipCount " + skipCount + " found " + nodes.size());
+            return nodes;
+        } finally {
+            if (results != null) {
+                results.close();
+            }
+        }
+    }
+
     public boolean isNodeIgnored(String nodeRef) {
         log.debug("isNodeIgnored");
         NodeRef nr = getNodeRef(nodeRef);
@@ -420,6 +789,10 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao {
      * @return {@link Boolean}
      */
     private boolean isPropertyIgnored(QName qName) {
+        if (classificationCache != null && isClassification(qName)) {
+            return false;
+        }
+
         //verify if qname is in ignored
         for (QName qn : this.ignorePropertyQname) {
             if (qn.equals(qName)) {
@@ -450,6 +823,10 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao {
      * @return {@link Boolean}
      */
     private boolean isAspectIgnored(QName qName) {
+        if (classificationCache != null && isClassification(qName)) {
+            return false;
+        }
+
         //verify if qname is in ignored
         for (QName qn : this.ignoreAspectQname) {
             if (qn.equals(qName)) {
@@ -480,15 +857,72 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao {
         //verify if qname is in ignored
         for (QName qn : this.ignoredType) {
             if (qn.equals(qName)) {
-                LOG.debug("nodeIsIgnored" + nodeRef);
+                log.debug("nodeIsIgnored " + qName);
                 return true;
             }
         }
 
+        if (extraIgnoredTypes.contains(qName)) {
+            log.debug("nodeIsIgnored " + qName);
+            return true;
+        }
+
         return false;
     }
 
 
+    /**
+     * @return the node DAO, if configured
+     */
+    private NodeDAO getNodeDAO() {
+        if (nodeDAO == null) {
+            throw new IllegalStateException("nodeDAO is not configured, nodes can not be read by id");
+        }
+        return nodeDAO;
+    }
+
+
+    /**
+     * Verify if the qname is the categories property or the taggable aspect
+     * (the tags property has the same qname)
+     *
+     * @param qName
+     * @return {@link Boolean}
+     */
+    private boolean isClassification(QName qName) {
+        return ContentModel.PROP_CATEGORIES.equals(qName) || ContentModel.ASPECT_TAGGABLE.equals(qName);
+    }
+
+
+    /**
+     * Format categories or tags as a comma separated list of category paths
+     * or tag names
+     *
+     * @param obj a node reference or a collection of node references
+     * @param resolver how to resolve a node missing from the cache
+     * @return {@link String}
+     */
+    private String formatClassification(Serializable obj, ResolutionCache.Resolver<NodeRef, String> resolver) throws Exception {
+        Collection<?> nodes = obj instanceof Collection ? (Collection<?>) obj : Collections.singletonList(obj);
+
+        StringBuilder value = new StringBuilder();
+        for (Object node : nodes) {
+            if (!(node instanceof NodeRef)) {
+                continue;
+            }
+            String resolved = classificationCache.get((NodeRef) node, resolver);
+            if (resolved == null) {
+                continue;
+            }
+            if (value.length() > 0) {
+                value.append(',');
+            }
+            value.append(resolved);
+        }
+        return value.toString();
+    }
+
+
     /**
      * Return Qname in String Format
      *
@@ -504,14 +938,17 @@ public class AlfrescoExportDaoImpl implements AlfrescoExportDao {
      * Format metadata guided by Bulk-Import format
      *
      * @param obj
+     * @param format format of dates, null to create one
      * @return {@link String}
      */
-    private String formatMetadata(Serializable obj) {
+    private String formatMetadata(Serializable obj, DateFormat format) {
         String returnValue = "";
 
         if (obj != null) {
             if (obj instanceof Date) {
-                SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'hh:mm:ss.SSSZ");
+                if (format == null) {
+                    format = new SimpleDateFormat(DATE_FORMAT);
+                }
 
                 Date date = (Date) obj;
                 returnValue = format.format(date);
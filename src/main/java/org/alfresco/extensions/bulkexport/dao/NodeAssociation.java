@@ -0,0 +1,37 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.dao;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * This class is used to hold an association of a node that is not its
+ * primary parent-child association: a peer association or a secondary child
+ * association
+ */
+public class NodeAssociation
+{
+    /** Kind of a peer association, source to target */
+    public static final String PEER = "peer";
+
+    /** Kind of a secondary child association, read from the child: the target is the secondary parent */
+    public static final String PARENT = "parent";
+
+    public String kind;
+    public String type;
+    public NodeRef target;
+}
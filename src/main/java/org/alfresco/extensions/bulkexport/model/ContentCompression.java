@@ -0,0 +1,201 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.model;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Streaming compression of the exported files.
+ *
+ * gzip is always available. zstd and LZ4 are used if their libraries
+ * (zstd-jni, lz4-java) are on the Alfresco classpath, otherwise the export
+ * falls back to gzip. Content whose mimetype is already compressed (images,
+ * video, archives, office documents...) is written as is.
+ */
+public class ContentCompression {
+    Log log = LogFactory.getLog(ContentCompression.class);
+
+    public static final String NONE = "none";
+    public static final String GZIP = "gzip";
+    public static final String ZSTD = "zstd";
+    public static final String LZ4 = "lz4";
+
+    /** Mimetypes (or prefixes ending with *) not worth compressing */
+    public static final String[] DEFAULT_SKIPPED_MIMETYPES =
+            {
+                    "image/*",
+                    "video/*",
+                    "audio/*",
+                    "application/pdf",
+                    "application/zip",
+                    "application/gzip",
+                    "application/x-gzip",
+                    "application/x-bzip2",
+                    "application/x-7z-compressed",
+                    "application/x-rar-compressed",
+                    "application/java-archive",
+                    "application/vnd.openxmlformats-officedocument.*",
+                    "application/vnd.oasis.opendocument.*",
+                    "application/vnd.ms-cab-compressed"
+            };
+
+    /** Images that are not compressed by their format */
+    private static final String[] COMPRESSIBLE_IMAGES =
+            {
+                    "image/svg+xml",
+                    "image/bmp",
+                    "image/x-portable-pixmap",
+                    "image/tiff"
+            };
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String algorithm;
+    private final String extension;
+    private final Constructor<?> streamConstructor;
+    private final Constructor<?> inputStreamConstructor;
+    private final List<String> skippedMimetypes;
+
+    /**
+     * @param algorithm gzip, zstd or lz4
+     * @param skippedMimetypes mimetypes written uncompressed, null for the defaults
+     */
+    public ContentCompression(String algorithm, List<String> skippedMimetypes) {
+        Constructor<?> constructor = null;
+        Constructor<?> inputConstructor = null;
+        if (ZSTD.equals(algorithm)) {
+            constructor = findStream("com.github.luben.zstd.ZstdOutputStream", OutputStream.class);
+            inputConstructor = findStream("com.github.luben.zstd.ZstdInputStream", InputStream.class);
+        } else if (LZ4.equals(algorithm)) {
+            constructor = findStream("net.jpountz.lz4.LZ4FrameOutputStream", OutputStream.class);
+            inputConstructor = findStream("net.jpountz.lz4.LZ4FrameInputStream", InputStream.class);
+        }
+
+        if ((constructor == null || inputConstructor == null) && !GZIP.equals(algorithm)) {
+            log.warn("Compression " + algorithm + " not available on the classpath, using gzip");
+            algorithm = GZIP;
+        }
+
+        this.algorithm = algorithm;
+        this.streamConstructor = GZIP.equals(algorithm) ? null : constructor;
+        this.inputStreamConstructor = GZIP.equals(algorithm) ? null : inputConstructor;
+        this.extension = ZSTD.equals(algorithm) ? ".zst" : LZ4.equals(algorithm) ? ".lz4" : ".gz";
+        this.skippedMimetypes = skippedMimetypes != null ? skippedMimetypes
+                : new ArrayList<String>(Arrays.asList(DEFAULT_SKIPPED_MIMETYPES));
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return suffix added to the name of the compressed files
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * Tell if content of the given mimetype is worth compressing
+     *
+     * @param mimetype mimetype of the content, may be null
+     * @return {@link Boolean}
+     */
+    public boolean shouldCompress(String mimetype) {
+        if (mimetype == null) {
+            return true;
+        }
+
+        for (String image : COMPRESSIBLE_IMAGES) {
+            if (image.equals(mimetype)) {
+                return true;
+            }
+        }
+
+        for (String skipped : skippedMimetypes) {
+            if (skipped.endsWith("*") ? mimetype.startsWith(skipped.substring(0, skipped.length() - 1)) : skipped.equals(mimetype)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wrap a stream with a compressing one, closing the returned stream
+     * closes the given one
+     *
+     * @param out stream to the target file
+     * @return {@link OutputStream}
+     * @throws IOException
+     */
+    public OutputStream wrap(OutputStream out) throws IOException {
+        if (streamConstructor == null) {
+            return new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+
+        try {
+            return (OutputStream) streamConstructor.newInstance(out);
+        } catch (Exception e) {
+            throw new IOException("Could not create " + algorithm + " stream", e);
+        }
+    }
+
+    /**
+     * Wrap a stream on a compressed file with a decompressing one
+     *
+     * @param in stream on the compressed file
+     * @return {@link InputStream}
+     * @throws IOException
+     */
+    public InputStream unwrap(InputStream in) throws IOException {
+        if (inputStreamConstructor == null) {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+
+        try {
+            return (InputStream) inputStreamConstructor.newInstance(in);
+        } catch (Exception e) {
+            throw new IOException("Could not create " + algorithm + " stream", e);
+        }
+    }
+
+    private Constructor<?> findStream(String className, Class<?> wrapped) {
+        try {
+            return Class.forName(className).getConstructor(wrapped);
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (LinkageError e) {
+            // library present but its native part could not be loaded
+            log.warn("Could not load " + className, e);
+            return null;
+        }
+    }
+}
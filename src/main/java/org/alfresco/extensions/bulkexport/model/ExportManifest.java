@@ -0,0 +1,152 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.model;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ * Manifest of the exported files, with a digest of each content computed
+ * while the content is copied.
+ *
+ * Each worker thread appends to its own shard, so workers never wait on each
+ * other. The shards are merged into one tab separated file at the end of the
+ * job, with the columns:
+ * <pre>
+ * nodeRef  path  revision  size  digest  mimetype
+ * </pre>
+ * where path is the file written, relative to the export folder, and size
+ * and digest are those of the original (uncompressed) content.
+ */
+public class ExportManifest {
+    Log log = LogFactory.getLog(ExportManifest.class);
+
+    public static final String DEFAULT_DIGEST = "SHA-256";
+
+    private static final String HEADER = "nodeRef\tpath\trevision\tsize\tdigest\tmimetype\n";
+
+    private final File manifestFile;
+    private final ShardedWriter shards;
+    private final String digestAlgorithm;
+
+    private final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>();
+
+    /**
+     * @param basePath export folder
+     * @param name name of the manifest file, without extension
+     * @param digestAlgorithm {@link MessageDigest} algorithm, e.g. SHA-256 or MD5
+     * @throws NoSuchAlgorithmException if the algorithm is not supported
+     */
+    public ExportManifest(String basePath, String name, String digestAlgorithm) throws NoSuchAlgorithmException {
+        // fail now rather than in every worker
+        MessageDigest.getInstance(digestAlgorithm);
+
+        this.digestAlgorithm = digestAlgorithm;
+        this.manifestFile = new File(basePath, name + ".tsv");
+        this.shards = new ShardedWriter(new File(basePath, name + ".parts"), "shard-", ".tsv");
+    }
+
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    public File getManifestFile() {
+        return manifestFile;
+    }
+
+    /**
+     * Get the digest of the calling thread, reset and ready to use
+     *
+     * @return {@link MessageDigest}
+     */
+    public MessageDigest getDigest() {
+        MessageDigest md = digest.get();
+        if (md == null) {
+            try {
+                md = MessageDigest.getInstance(digestAlgorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            digest.set(md);
+        }
+        md.reset();
+        return md;
+    }
+
+    /**
+     * Append an exported file to the shard of the calling thread
+     *
+     * @param nodeRef node exported
+     * @param path file written, relative to the export folder
+     * @param revision revision exported, empty for the head
+     * @param size size of the original content
+     * @param digestValue digest of the original content
+     * @param mimetype mimetype of the content
+     * @throws IOException
+     */
+    public void record(String nodeRef, String path, String revision, long size, byte[] digestValue, String mimetype) throws IOException {
+        Writer writer = shards.getWriter();
+        writer.write(nodeRef);
+        writer.write('\t');
+        writer.write(path);
+        writer.write('\t');
+        writer.write(revision != null ? revision : "");
+        writer.write('\t');
+        writer.write(Long.toString(size));
+        writer.write('\t');
+        writer.write(toHex(digestValue));
+        writer.write('\t');
+        writer.write(mimetype != null ? mimetype : "");
+        writer.write('\n');
+    }
+
+    /**
+     * Close the shards and merge them in the manifest file. Must be called
+     * once all the workers are done.
+     *
+     * @throws IOException
+     */
+    public synchronized void merge() throws IOException {
+        shards.merge(manifestFile, HEADER);
+
+        log.info("Manifest written to " + manifestFile.getPath());
+    }
+
+    /**
+     * @param bytes digest, may be null
+     * @return the digest in lower case hexadecimal, empty for null
+     */
+    public static String toHex(byte[] bytes) {
+        if (bytes == null) {
+            return "";
+        }
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = digits[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = digits[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.model;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Working memory of one export worker, reused from one node to the next so
+ * that exporting a node allocates as little as possible: content copy
+ * buffer, property and aspect containers, metadata text and its encoder.
+ *
+ * An instance belongs to one thread, use {@link #forCurrentThread()}. The
+ * containers handed out are cleared on every call, so a caller must be done
+ * with them before asking for them again.
+ */
+public class ExportScratch {
+
+    /** Size of the buffer used to copy content */
+    public static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /** Metadata text above this size is not kept for the next node */
+    private static final int MAX_KEPT_TEXT = 256 * 1024;
+
+    private static final ThreadLocal<ExportScratch> SCRATCH = new ThreadLocal<ExportScratch>() {
+        @Override
+        protected ExportScratch initialValue() {
+            return new ExportScratch();
+        }
+    };
+
+    private byte[] copyBuffer;
+    private StringBuilder text = new StringBuilder(4 * 1024);
+    private final Map<String, String> properties = new HashMap<String, String>();
+    private final List<String> aspects = new ArrayList<String>();
+    private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer encoded = ByteBuffer.allocate(8 * 1024);
+    private SimpleDateFormat dateFormat;
+
+    /**
+     * @return the scratch of the calling thread
+     */
+    public static ExportScratch forCurrentThread() {
+        return SCRATCH.get();
+    }
+
+    /**
+     * @return the content copy buffer
+     */
+    public byte[] getCopyBuffer() {
+        if (copyBuffer == null) {
+            copyBuffer = new byte[COPY_BUFFER_SIZE];
+        }
+        return copyBuffer;
+    }
+
+    /**
+     * @return an empty property map
+     */
+    public Map<String, String> getProperties() {
+        properties.clear();
+        return properties;
+    }
+
+    /**
+     * @return an empty aspect list
+     */
+    public List<String> getAspects() {
+        aspects.clear();
+        return aspects;
+    }
+
+    /**
+     * @return an empty text builder
+     */
+    public StringBuilder getText() {
+        if (text.capacity() > MAX_KEPT_TEXT) {
+            // do not hold on to the text of an exceptionally large node
+            text = new StringBuilder(4 * 1024);
+        }
+        text.setLength(0);
+        return text;
+    }
+
+    /**
+     * @param pattern pattern of the format, the same for every call
+     * @return the date format of the thread
+     */
+    public SimpleDateFormat getDateFormat(String pattern) {
+        if (dateFormat == null) {
+            dateFormat = new SimpleDateFormat(pattern);
+        }
+        return dateFormat;
+    }
+
+    /**
+     * Write text as UTF-8 through the reused encoder and byte buffer
+     *
+     * @param source text to write
+     * @param out stream to write to
+     * @throws IOException
+     */
+    public void writeUtf8(CharSequence source, OutputStream out) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(source);
+        encoder.reset();
+        CoderResult result;
+        do {
+            result = encoder.encode(chars, encoded, true);
+            drain(out);
+        } while (result.isOverflow());
+        do {
+            result = encoder.flush(encoded);
+            drain(out);
+        } while (result.isOverflow());
+    }
+
+    private void drain(OutputStream out) throws IOException {
+        encoded.flip();
+        out.write(encoded.array(), 0, encoded.limit());
+        encoded.clear();
+    }
+}
@@ -16,14 +16,17 @@
  */
 package org.alfresco.extensions.bulkexport.model;
 
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.NodeRef;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.extensions.webscripts.WebScriptResponse;
 
 import java.io.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 
 /**
@@ -35,6 +38,10 @@ import java.util.Set;
 public class FileFolder {
     Log log = LogFactory.getLog(FileFolder.class);
 
+    /** Start and end of the metadata files */
+    private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<!DOCTYPE properties SYSTEM \"http://java.sun.com/dtd/properties.dtd\">\n<properties>";
+    private static final String FOOTER = "\n</properties>";
+
     /** {@link String} interface to web page for displaying messages
      *  server
      */
@@ -50,6 +57,24 @@ public class FileFolder {
      */
     private boolean scapeExported;
 
+    /** Compression of content and metadata files, null to write them as is */
+    private ContentCompression compression;
+
+    /** Shards receiving the metadata, null to write one XML file per node */
+    private MetadataShards metadataShards;
+
+    /** Parallel copy of very large contents, null to copy every content with one thread */
+    private RangedCopy rangedCopy;
+
+    /** True once the folders of the export are all created, files then skip the parent checks */
+    private volatile boolean parentsCreated;
+
+    /** Writes the metadata and small contents behind the workers, null to write them inline */
+    private WriteBehind writeBehind;
+
+    /** Subdirectory of the export folder written to, empty for the export folder itself */
+    private String subdirectory = "";
+
     /**
      * File Folder default builder
      *
@@ -71,29 +96,145 @@ public class FileFolder {
         return this.basePath;
     }
 
+    /**
+     * Files and folders written in a subdirectory of the export folder, e.g.
+     * one per root of a multi-root export. The compression, metadata shards
+     * and ranged copy are shared with this instance.
+     *
+     * @param name name of the subdirectory
+     * @return {@link FileFolder}
+     */
+    public FileFolder forSubdirectory(String name) {
+        FileFolder child = new FileFolder(this.ui, this.basePath + "/" + name, this.scapeExported);
+        child.subdirectory = this.subdirectory + "/" + name;
+        child.compression = this.compression;
+        child.metadataShards = this.metadataShards;
+        child.rangedCopy = this.rangedCopy;
+        child.writeBehind = this.writeBehind;
+        return child;
+    }
+
+    /**
+     * @return path of the subdirectory written to, relative to the export folder, empty for the export folder itself
+     */
+    public String getSubdirectory() {
+        return subdirectory;
+    }
+
+    /**
+     * Compress content and metadata files while writing them
+     *
+     * @param compression compression to use, null to write files as is
+     */
+    public void setCompression(ContentCompression compression) {
+        this.compression = compression;
+    }
+
+    public ContentCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Write the metadata of the nodes as records of a few shard files
+     * instead of one XML file per node
+     *
+     * @param metadataShards shards to write to, null for XML files
+     */
+    public void setMetadataShards(MetadataShards metadataShards) {
+        this.metadataShards = metadataShards;
+    }
+
+    public MetadataShards getMetadataShards() {
+        return metadataShards;
+    }
+
+    /**
+     * Copy very large contents in parallel ranges. Only used for contents
+     * written as is: compressed contents and contents with a digest are
+     * streamed.
+     *
+     * @param rangedCopy ranged copy to use, null to disable
+     */
+    public void setRangedCopy(RangedCopy rangedCopy) {
+        this.rangedCopy = rangedCopy;
+    }
+
+    public RangedCopy getRangedCopy() {
+        return rangedCopy;
+    }
+
+    /**
+     * Hand the metadata files and small contents to writer threads, and
+     * force the written files to disk according to its durability policy
+     *
+     * @param writeBehind write-behind stage, null to write every file inline
+     */
+    public void setWriteBehind(WriteBehind writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    public WriteBehind getWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * Tell that every folder of the exported tree exists, so that files are
+     * written without checking or creating their parent folder
+     *
+     * @param parentsCreated true once the folders are created
+     */
+    public void setParentsCreated(boolean parentsCreated) {
+        this.parentsCreated = parentsCreated;
+    }
+
+    /**
+     * Name of the file holding content of the given mimetype, the compression
+     * suffix is added when the content gets compressed
+     *
+     * @param filePath full path of the content as returned by {@link #createFullPath(String)}
+     * @param mimetype mimetype of the content
+     * @return {@link String}
+     */
+    public String contentFileName(String filePath, String mimetype) {
+        if (compression != null && compression.shouldCompress(mimetype)) {
+            return filePath + compression.getExtension();
+        }
+        return filePath;
+    }
+
+    /**
+     * Name of the metadata file of a content or folder
+     *
+     * @param filePath full path of the content or folder
+     * @return {@link String}
+     */
+    public String metadataFileName(String filePath) {
+        String fp = filePath + ".metadata.properties.xml";
+        if (compression != null) {
+            fp += compression.getExtension();
+        }
+        return fp;
+    }
+
     /**
      * Create a new Folder in a {@link String} path
      *
      * @param path Path of Alfresco folder
+     * @throws IOException if the folder can not be created, for the node to be retried
      */
     public void createFolder(String path) throws Exception {
         path = this.basePath + path;
         log.debug("createFolder path to create : " + path);
 
-        try {
-            File dir = new File(path);
-            if (!dir.exists()) {
-                if (!dir.mkdirs()) {
-                    log.error("createFolder failed to create path : " + path);
-                } else {
-                    log.debug("createFolder path : " + path);
-                }
-            } else {
-                log.debug("Folder already existing: " + dir.getAbsolutePath());
+        File dir = new File(path);
+        if (!dir.exists()) {
+            // another worker may be creating it at the same time
+            if (!dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("createFolder failed to create path : " + path);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-            ui.getWriter().write(e.toString());
+            log.debug("createFolder path : " + path);
+        } else {
+            log.debug("Folder already existing: " + dir.getAbsolutePath());
         }
     }
 
@@ -105,30 +246,23 @@ public class FileFolder {
      * @throws IOException
      */
     private void createFile(String filePath) throws Exception {
-        log.debug("createFile = " + filePath);
+        if (log.isDebugEnabled()) {
+            log.debug("createFile = " + filePath);
+        }
 
         File f = new File(filePath);
 
-        try {
-            if (!f.exists()) {
-                if (!f.getParentFile().exists()) {
-                    if (!f.getParentFile().mkdirs()) {
-                        log.error("failed to create folder : " + f.getParentFile().getPath());
-                    } else {
-                        log.debug("created folder : " + f.getParentFile().getPath());
-                    }
-                }
-                f.createNewFile();
+        if (!f.exists()) {
+            if (!parentsCreated && !f.getParentFile().exists()) {
+                this.createParent(f);
             }
-        } else{
-            log.info("Folder already existing: " + f.getName());
+            f.createNewFile();
+        } else {
+            log.info("File already existing: " + f.getName());
         }
-        catch(Exception e)
-        {
-            e.printStackTrace();
-            ui.getWriter().write(e.toString());
+        if (log.isDebugEnabled()) {
+            log.debug("createFile filepath done" + f.getName());
         }
-        log.debug("createFile filepath done" + f.getName());
     }
 
 
@@ -140,7 +274,7 @@ public class FileFolder {
      * @throws Exception
      */
     private String createXmlFile(String filePath) throws Exception {
-        String fp = filePath + ".metadata.properties.xml";
+        String fp = this.metadataFileName(filePath);
 
         this.createFile(fp);
 
@@ -159,9 +293,13 @@ public class FileFolder {
         log.debug("insertFileContent");
         filePath = this.basePath + filePath;
 
-        log.debug("insertFileContent filepath = " + filePath);
+        if (log.isDebugEnabled()) {
+            log.debug("insertFileContent filepath = " + filePath);
+        }
         if (this.isFileExist(filePath) && this.scapeExported) {
-            log.debug("insertFileContent ignore file" + filePath);
+            if (log.isDebugEnabled()) {
+                log.debug("insertFileContent ignore file" + filePath);
+            }
             return;
         }
 
@@ -177,6 +315,149 @@ public class FileFolder {
         }
     }
 
+    /**
+     * Copy the content of a reader to a file, compressing it on the way
+     * when its mimetype is worth it
+     *
+     * @param reader reader on the node content
+     * @param filePath full path of the file as returned by {@link #createFullPath(String)}
+     * @return number of bytes written
+     * @throws Exception
+     */
+    public long storeContent(ContentReader reader, String filePath) throws Exception {
+        return this.storeContent(reader, filePath, null);
+    }
+
+    /**
+     * Copy the content of a reader to a file, compressing it on the way
+     * when its mimetype is worth it, and updating a digest with the bytes
+     * read so no second pass on the file is needed
+     *
+     * @param reader reader on the node content
+     * @param filePath full path of the file as returned by {@link #createFullPath(String)}
+     * @param digest digest to update with the original content, null for none
+     * @return number of bytes written
+     * @throws Exception
+     */
+    public long storeContent(ContentReader reader, String filePath, MessageDigest digest) throws Exception {
+        return this.storeContent(reader, filePath, digest, new ExportScratch());
+    }
+
+    /**
+     * Copy the content of a reader to a file, as
+     * {@link #storeContent(ContentReader, String, MessageDigest)}, with the
+     * copy buffer of the given scratch
+     *
+     * @param reader reader on the node content
+     * @param filePath full path of the file as returned by {@link #createFullPath(String)}
+     * @param digest digest to update with the original content, null for none
+     * @param scratch working memory of the calling thread
+     * @return number of bytes written
+     * @throws Exception
+     */
+    public long storeContent(ContentReader reader, String filePath, MessageDigest digest, ExportScratch scratch) throws Exception {
+        return this.storeContent(reader, filePath, digest, scratch, null, null);
+    }
+
+    /**
+     * Copy the content of a node to a file, as
+     * {@link #storeContent(ContentReader, String, MessageDigest, ExportScratch)},
+     * telling the given listener if the write-behind writers fail to write it
+     *
+     * @param reader reader on the node content
+     * @param filePath full path of the file as returned by {@link #createFullPath(String)}
+     * @param digest digest to update with the original content, null for none
+     * @param scratch working memory of the calling thread
+     * @param nodeRef the node
+     * @param listener told of a failure of the writers, null for none
+     * @return number of bytes written
+     * @throws Exception
+     */
+    public long storeContent(ContentReader reader, String filePath, MessageDigest digest, ExportScratch scratch,
+                             NodeRef nodeRef, WriteBehind.Listener listener) throws Exception {
+        String fileName = this.contentFileName(filePath, reader.getMimetype());
+        File output = new File(fileName);
+        boolean compressed = !fileName.equals(filePath);
+
+        if (writeBehind != null && writeBehind.accepts(reader.getSize())) {
+            // held in memory from now until a writer wrote it
+            long granted = writeBehind.reserve(reader.getSize());
+            byte[] data;
+            try {
+                data = this.readContent(reader, digest, scratch);
+            } catch (Exception e) {
+                writeBehind.release(granted);
+                throw e;
+            }
+            writeBehind.write(output, data, compressed ? compression : null, nodeRef, listener, granted);
+            return data.length;
+        }
+
+        long size = this.copyContent(reader, output, compressed, digest, scratch);
+        if (writeBehind != null) {
+            writeBehind.written(output);
+        }
+        return size;
+    }
+
+    /**
+     * Read a small content in memory, updating the digest on the way
+     */
+    private byte[] readContent(ContentReader reader, MessageDigest digest, ExportScratch scratch) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream((int) reader.getSize());
+        InputStream in = reader.getContentInputStream();
+        if (digest != null) {
+            in = new DigestInputStream(in, digest);
+        }
+        try {
+            byte[] buffer = scratch.getCopyBuffer();
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                data.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return data.toByteArray();
+    }
+
+    /**
+     * Copy a content to its file with the calling worker
+     */
+    private long copyContent(ContentReader reader, File output, boolean compressed, MessageDigest digest, ExportScratch scratch) throws Exception {
+        if (!compressed && digest == null) {
+            if (rangedCopy != null && rangedCopy.accepts(reader)) {
+                return rangedCopy.copy(reader, output);
+            }
+            reader.getContent(output);
+            return output.length();
+        }
+
+        log.debug("storeContent streaming to " + output.getPath());
+        InputStream in = reader.getContentInputStream();
+        if (digest != null) {
+            in = new DigestInputStream(in, digest);
+        }
+        try {
+            OutputStream out = new FileOutputStream(output);
+            if (compressed) {
+                out = compression.wrap(out);
+            }
+            try {
+                byte[] buffer = scratch.getCopyBuffer();
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return output.length();
+    }
+
     /**
      * construct full file path and make directory if it does not exist
      *
@@ -187,33 +468,45 @@ public class FileFolder {
         log.debug("createFullPath");
         filePath = this.basePath + filePath;
 
-        log.debug("createFullPath filepath = " + filePath);
-        if (this.isFileExist(filePath) && this.scapeExported) {
-            log.debug("createFullPath ignore file: " + filePath);
+        if (log.isDebugEnabled()) {
+            log.debug("createFullPath filepath = " + filePath);
+        }
+        if (this.isContentExist(filePath) && this.scapeExported) {
+            if (log.isDebugEnabled()) {
+                log.debug("createFullPath ignore file: " + filePath);
+            }
             return filePath;
         }
 
-        File f = new File(filePath);
+        if (parentsCreated) {
+            return filePath;
+        }
 
-        try {
-            if (!f.exists()) {
-                if (!f.getParentFile().exists()) {
-                    if (!f.getParentFile().mkdirs()) {
-                        log.error("failed to create folder : " + f.getParentFile().getPath());
-                    } else {
-                        log.debug("created folder : " + f.getParentFile().getPath());
-                    }
-                }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            ui.getWriter().write(e.toString());
+        File f = new File(filePath);
+        if (!f.exists() && !f.getParentFile().exists()) {
+            this.createParent(f);
         }
 
         return filePath;
     }
 
 
+    /**
+     * Create the parent folders of a file
+     *
+     * @param f the file
+     * @throws IOException if they can not be created, for the node to be retried
+     */
+    private void createParent(File f) throws IOException {
+        File parent = f.getParentFile();
+        // another worker may be creating it at the same time
+        if (!parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("failed to create folder : " + parent.getPath());
+        }
+        log.debug("created folder : " + parent.getPath());
+    }
+
+
     /**
      * Insert Content Properties in the XML File
      *
@@ -224,52 +517,111 @@ public class FileFolder {
      * @throws Exception
      */
     public void insertFileProperties(String type, List<String> aspects, Map<String, String> properties, String filePath) throws Exception {
-        filePath = this.basePath + filePath;
+        this.insertFileProperties(type, aspects, properties, filePath, new ExportScratch());
+    }
 
-        if (this.isFileExist(filePath) && this.isFileExist(filePath + ".metadata.properties.xml") && this.scapeExported) {
-            log.debug("Following metadata file is not created :" + filePath);
-            return;
-        }
+    /**
+     * Insert Content Properties in the XML File, building the XML in the
+     * text builder of the given scratch
+     *
+     * @param type The type of node
+     * @param aspects The aspect {@link List} of node in {@link String} format
+     * @param properties The properties {@link Map} of node in {@link String} format
+     * @param filePath The path of file
+     * @param scratch working memory of the calling thread
+     * @throws Exception
+     */
+    public void insertFileProperties(String type, List<String> aspects, Map<String, String> properties, String filePath, ExportScratch scratch) throws Exception {
+        this.insertFileProperties(type, aspects, properties, filePath, scratch, null, null);
+    }
 
+    /**
+     * Insert the properties of a node in its XML file, as
+     * {@link #insertFileProperties(String, List, Map, String, ExportScratch)},
+     * telling the given listener if the write-behind writers fail to write it.
+     * Nothing of the node must have been written yet, see
+     * {@link #insertFileProperties(String, List, Map, String, ExportScratch, NodeRef, WriteBehind.Listener, boolean)}
+     *
+     * @param type The type of node
+     * @param aspects The aspect {@link List} of node in {@link String} format
+     * @param properties The properties {@link Map} of node in {@link String} format
+     * @param filePath The path of file
+     * @param scratch working memory of the calling thread
+     * @param nodeRef the node
+     * @param listener told of a failure of the writers, null for none
+     * @throws Exception
+     */
+    public void insertFileProperties(String type, List<String> aspects, Map<String, String> properties, String filePath, ExportScratch scratch,
+                                     NodeRef nodeRef, WriteBehind.Listener listener) throws Exception {
+        this.insertFileProperties(type, aspects, properties, filePath, scratch, nodeRef, listener, this.isExported(filePath));
+    }
 
-        String header = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<!DOCTYPE properties SYSTEM \"http://java.sun.com/dtd/properties.dtd\">\n<properties>";
-        String footer = "\n</properties>";
+    /**
+     * Insert the properties of a node in its XML file or metadata shard,
+     * unless the node was exported by an earlier export
+     *
+     * @param type The type of node
+     * @param aspects The aspect {@link List} of node in {@link String} format
+     * @param properties The properties {@link Map} of node in {@link String} format
+     * @param filePath The path of file
+     * @param scratch working memory of the calling thread
+     * @param nodeRef the node
+     * @param listener told of a failure of the writers, null for none
+     * @param exported result of {@link #isExported(String)} asked before the content or folder of the node was written
+     * @throws Exception
+     */
+    public void insertFileProperties(String type, List<String> aspects, Map<String, String> properties, String filePath, ExportScratch scratch,
+                                     NodeRef nodeRef, WriteBehind.Listener listener, boolean exported) throws Exception {
+        if (exported) {
+            if (log.isDebugEnabled()) {
+                log.debug("Following metadata file is not created :" + filePath);
+            }
+            return;
+        }
 
-        String tType = "<entry key=\"type\">" + type + "</entry>";
-        String tAspect = "<entry key=\"aspects\">" + this.formatAspects(aspects) + "</entry>";
+        if (metadataShards != null) {
+            // shards are shared by the subdirectories, their paths are relative to the export folder
+            metadataShards.write(this.subdirectory + filePath, type, aspects, properties, scratch);
+            return;
+        }
 
-        String text = "\n\t" + tType + "\n\t" + tAspect;
+        filePath = this.basePath + filePath;
 
-        Set<String> set = properties.keySet();
 
-        for (String string : set) {
-            String key = string;
-            String value = properties.get(key);
+        StringBuilder builder = scratch.getText();
+        builder.append(HEADER);
+        builder.append("\n\t<entry key=\"type\">").append(type).append("</entry>");
+        builder.append("\n\t<entry key=\"aspects\">");
+        this.formatAspects(aspects, builder);
+        builder.append("</entry>");
 
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            builder.append("\n\t<entry key=\"").append(property.getKey()).append("\">");
+            this.formatProperty(property.getValue(), builder);
+            builder.append("</entry>");
+        }
+        builder.append(FOOTER);
 
-            value = this.formatProperty(value);
+        if (writeBehind != null) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream(builder.length() + 64);
+            scratch.writeUtf8(builder, data);
+            writeBehind.write(new File(this.metadataFileName(filePath)), data.toByteArray(), compression, nodeRef, listener);
+            return;
+        }
 
+        // a failure is thrown for the node to be retried rather than counted as exported
+        String fp = this.createXmlFile(filePath);
+        File file = new File(fp);
 
-            text += "\n\t<entry key=\"" + key + "\">" + value + "</entry>";
+        OutputStream os = new FileOutputStream(file);
+        if (compression != null) {
+            os = compression.wrap(os);
         }
-
         try {
-            String fp = this.createXmlFile(filePath);
-            File file = new File(fp);
-
-            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF8"));
-
-            StringBuilder builder = new StringBuilder();
-            builder.append(header);
-            builder.append(text);
-            builder.append(footer);
-
-            bw.write(builder.toString());
-            bw.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+            scratch.writeUtf8(builder, os);
+        } finally {
+            os.close();
         }
-
     }
 
 
@@ -277,23 +629,18 @@ public class FileFolder {
      * Format aspects
      *
      * @param aspects
-     * @return
+     * @param builder builder the comma separated aspects are appended to
      */
-    private String formatAspects(List<String> aspects) {
-
-        String dado = "";
-
+    private void formatAspects(List<String> aspects, StringBuilder builder) {
         boolean flag = false;
         for (String string : aspects) {
             if (flag) {
-                dado += ",";
+                builder.append(',');
             }
 
-            dado += string;
+            builder.append(string);
             flag = true;
         }
-
-        return dado;
     }
 
 
@@ -301,16 +648,58 @@ public class FileFolder {
      * Method to replace special character to html code
      *
      * @param value {@link String} value of field
-     * @return {@link String}
+     * @param builder builder the formatted value is appended to
+     */
+    private void formatProperty(String value, StringBuilder builder) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    builder.append("&amp;");
+                    break;
+                case '<':
+                    builder.append("&lt;");
+                    break;
+                case '>':
+                    builder.append("&gt;");
+                    break;
+                default:
+                    builder.append(c);
+            }
+        }
+    }
+
+
+    /**
+     * Tell whether a node was written by an earlier export and is to be left
+     * as it is, when exported nodes are ignored. To be asked before anything
+     * of the node is written, its own content or folder would answer yes.
+     *
+     * @param filePath path of the node, relative to the export folder
+     * @return {@link Boolean}
      */
-    private String formatProperty(String value) {
+    public boolean isExported(String filePath) {
+        if (!this.scapeExported) {
+            return false;
+        }
+        filePath = this.basePath + filePath;
+        if (metadataShards != null) {
+            // an exported content is known to have its metadata recorded by an earlier export, while a
+            // folder may have been created for the documents under it, so a folder is recorded again
+            return new File(filePath).isFile() || (compression != null && new File(filePath + compression.getExtension()).isFile());
+        }
+        return this.isContentExist(filePath) && this.isFileExist(this.metadataFileName(filePath));
+    }
 
-        //format &
-        value = value.replaceAll("&", "&amp;");
-        //format < and >
-        value = value.replaceAll("<", "&lt;").replaceAll(">", "&gt;");
 
-        return value;
+    /**
+     * Method to see if content was already exported, compressed or not
+     *
+     * @param path The {@link String} path of file
+     * @return {@link Boolean}
+     */
+    private boolean isContentExist(String path) {
+        return this.isFileExist(path) || (compression != null && this.isFileExist(path + compression.getExtension()));
     }
 
 
@@ -0,0 +1,487 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.model;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Metadata of the exported nodes written as records in a few large shard
+ * files instead of one .metadata.properties.xml file per node.
+ *
+ * Each worker thread appends to its own shard, in one of two formats:
+ * <ul>
+ * <li>jsonl: one JSON object per line,
+ * {"path":"...","type":"...","aspects":[...],"properties":{...}}</li>
+ * <li>csv: one record per node, path, type, comma separated aspects, then
+ * the name and value of every property, as in RFC 4180: every field is
+ * quoted, quotes are doubled and line breaks are kept as they are, so a
+ * record spans several lines when a value does</li>
+ * </ul>
+ * Next to each shard an index lists the path, offset and length of its
+ * records. The indexes are merged in index.tsv at the end of the job.
+ * Shards of earlier jobs in the same folder are kept, a later record of a
+ * path replaces an earlier one.
+ *
+ * {@link #convertToXml(FileFolder)} writes the per-file XML the Bulk Import
+ * needs from the shards.
+ */
+public class MetadataShards {
+    Log log = LogFactory.getLog(MetadataShards.class);
+
+    public static final String JSONL = "jsonl";
+    public static final String CSV = "csv";
+
+    /** Name of the folder holding the shards, in the export folder */
+    public static final String FOLDER = "bulkexport-metadata";
+
+    private static final String INDEX = "index.tsv";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final String format;
+    private final File shardDir;
+    private final ShardedWriter records;
+    private final ShardedWriter indexes;
+
+    /**
+     * @param basePath export folder
+     * @param format {@link #JSONL} or {@link #CSV}
+     */
+    public MetadataShards(String basePath, String format) {
+        if (!JSONL.equals(format) && !CSV.equals(format)) {
+            throw new IllegalArgumentException("metadata format must be " + JSONL + " or " + CSV + ", got " + format);
+        }
+        this.format = format;
+        this.shardDir = new File(basePath, FOLDER);
+
+        String prefix = "shard-" + System.currentTimeMillis() + "-";
+        this.records = new ShardedWriter(shardDir, prefix, "." + format, BUFFER_SIZE);
+        // the index of a shard is named after the shard of the same thread
+        this.indexes = new ShardedWriter(shardDir, prefix, INDEX_SUFFIX) {
+            @Override
+            protected String shardName(int number) throws IOException {
+                return records.getName() + INDEX_SUFFIX;
+            }
+        };
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public File getIndexFile() {
+        return new File(shardDir, INDEX);
+    }
+
+    /**
+     * Append the metadata of a node to the shard of the calling thread
+     *
+     * @param path path of the node, relative to the export folder
+     * @param type type of the node
+     * @param aspects aspects of the node
+     * @param properties properties of the node
+     * @param scratch working memory of the calling thread
+     * @throws IOException
+     */
+    public void write(String path, String type, List<String> aspects, Map<String, String> properties, ExportScratch scratch) throws IOException {
+        StringBuilder record = scratch.getText();
+        if (JSONL.equals(format)) {
+            appendJson(record, path, type, aspects, properties);
+        } else {
+            appendCsv(record, path, type, aspects, properties);
+            record.append('\r');
+        }
+        record.append('\n');
+
+        long offset = records.getOffset();
+        scratch.writeUtf8(record, records.getStream());
+
+        Writer index = indexes.getWriter();
+        index.write(path);
+        index.write('\t');
+        index.write(records.getName());
+        index.write('\t');
+        index.write(Long.toString(offset));
+        index.write('\t');
+        index.write(Long.toString(records.getOffset() - offset));
+        index.write('\n');
+    }
+
+    /**
+     * Close the shards of this job and merge the indexes of all the shards
+     * of the folder in index.tsv. Must be called once all the workers are done.
+     *
+     * @throws IOException
+     */
+    public synchronized void merge() throws IOException {
+        records.close();
+        indexes.close();
+
+        File[] indexFiles = shardDir.listFiles();
+        if (indexFiles == null) {
+            return;
+        }
+        Arrays.sort(indexFiles);
+
+        OutputStream out = new FileOutputStream(getIndexFile());
+        try {
+            out.write("path\tshard\toffset\tlength\n".getBytes("UTF-8"));
+            byte[] buffer = new byte[64 * 1024];
+            for (File index : indexFiles) {
+                if (!index.getName().endsWith(INDEX_SUFFIX)) {
+                    continue;
+                }
+                FileInputStream in = new FileInputStream(index);
+                try {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        log.info("Metadata index written to " + getIndexFile().getPath());
+    }
+
+    /**
+     * Write a .metadata.properties.xml file for every record of the shards,
+     * in the order of the shards so the latest record of a path wins
+     *
+     * @param fileFolder file and folder manager of the export folder, without metadata shards
+     * @return number of metadata files written
+     * @throws Exception
+     */
+    public long convertToXml(FileFolder fileFolder) throws Exception {
+        File[] files = shardDir.listFiles();
+        if (files == null) {
+            throw new IOException("No metadata shards in " + shardDir.getPath());
+        }
+        Arrays.sort(files);
+
+        ExportScratch scratch = ExportScratch.forCurrentThread();
+        long count = 0;
+        for (File file : files) {
+            String name = file.getName();
+            boolean json = name.endsWith("." + JSONL);
+            if (!json && !name.endsWith("." + CSV)) {
+                continue;
+            }
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), BUFFER_SIZE);
+            try {
+                List<String> fields = new ArrayList<String>();
+                String line = null;
+                while (json ? (line = reader.readLine()) != null : readCsvRecord(reader, fields)) {
+                    if (json && line.isEmpty()) {
+                        continue;
+                    }
+                    List<String> aspects = new ArrayList<String>();
+                    Map<String, String> properties = new LinkedHashMap<String, String>();
+                    String[] pathAndType = json ? parseJson(line, aspects, properties) : parseCsv(fields, aspects, properties);
+                    fileFolder.insertFileProperties(pathAndType[1], aspects, properties, pathAndType[0], scratch);
+                    count++;
+                }
+            } finally {
+                reader.close();
+            }
+            log.info("Metadata shard " + name + " converted, " + count + " files so far");
+        }
+        return count;
+    }
+
+    private static void appendJson(StringBuilder record, String path, String type, List<String> aspects, Map<String, String> properties) {
+        record.append("{\"path\":");
+        appendJsonString(record, path);
+        record.append(",\"type\":");
+        appendJsonString(record, type);
+        record.append(",\"aspects\":[");
+        for (int i = 0; i < aspects.size(); i++) {
+            if (i > 0) {
+                record.append(',');
+            }
+            appendJsonString(record, aspects.get(i));
+        }
+        record.append("],\"properties\":{");
+        boolean first = true;
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            if (!first) {
+                record.append(',');
+            }
+            appendJsonString(record, property.getKey());
+            record.append(':');
+            appendJsonString(record, property.getValue());
+            first = false;
+        }
+        record.append("}}");
+    }
+
+    private static void appendJsonString(StringBuilder record, String value) {
+        record.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    record.append("\\\"");
+                    break;
+                case '\\':
+                    record.append("\\\\");
+                    break;
+                case '\n':
+                    record.append("\\n");
+                    break;
+                case '\r':
+                    record.append("\\r");
+                    break;
+                case '\t':
+                    record.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        record.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        record.append(c);
+                    }
+            }
+        }
+        record.append('"');
+    }
+
+    private static void appendCsv(StringBuilder record, String path, String type, List<String> aspects, Map<String, String> properties) {
+        appendCsvField(record, path);
+        record.append(',');
+        appendCsvField(record, type);
+        record.append(',');
+        StringBuilder joined = new StringBuilder();
+        for (int i = 0; i < aspects.size(); i++) {
+            if (i > 0) {
+                joined.append(',');
+            }
+            joined.append(aspects.get(i));
+        }
+        appendCsvField(record, joined);
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            record.append(',');
+            appendCsvField(record, property.getKey());
+            record.append(',');
+            appendCsvField(record, property.getValue());
+        }
+    }
+
+    private static void appendCsvField(StringBuilder record, CharSequence value) {
+        record.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                record.append('"');
+            }
+            record.append(c);
+        }
+        record.append('"');
+    }
+
+    /**
+     * Parse a record written by {@link #appendJson}, not a general JSON parser
+     *
+     * @return path and type of the record
+     */
+    private static String[] parseJson(String line, List<String> aspects, Map<String, String> properties) throws IOException {
+        String[] pathAndType = new String[2];
+        int[] pos = {0};
+        expect(line, pos, '{');
+        while (true) {
+            String key = readJsonString(line, pos);
+            expect(line, pos, ':');
+            if ("aspects".equals(key)) {
+                expect(line, pos, '[');
+                while (peek(line, pos) != ']') {
+                    aspects.add(readJsonString(line, pos));
+                    if (peek(line, pos) == ',') {
+                        pos[0]++;
+                    }
+                }
+                pos[0]++;
+            } else if ("properties".equals(key)) {
+                expect(line, pos, '{');
+                while (peek(line, pos) != '}') {
+                    String name = readJsonString(line, pos);
+                    expect(line, pos, ':');
+                    properties.put(name, readJsonString(line, pos));
+                    if (peek(line, pos) == ',') {
+                        pos[0]++;
+                    }
+                }
+                pos[0]++;
+            } else {
+                String value = readJsonString(line, pos);
+                if ("path".equals(key)) {
+                    pathAndType[0] = value;
+                } else if ("type".equals(key)) {
+                    pathAndType[1] = value;
+                }
+            }
+            char next = line.charAt(pos[0]++);
+            if (next == '}') {
+                return pathAndType;
+            }
+            if (next != ',') {
+                throw new IOException("Invalid metadata record at " + pos[0] + ": " + line);
+            }
+        }
+    }
+
+    private static char peek(String line, int[] pos) throws IOException {
+        if (pos[0] >= line.length()) {
+            throw new IOException("Truncated metadata record: " + line);
+        }
+        return line.charAt(pos[0]);
+    }
+
+    private static void expect(String line, int[] pos, char expected) throws IOException {
+        if (peek(line, pos) != expected) {
+            throw new IOException("Expected " + expected + " at " + pos[0] + " of metadata record: " + line);
+        }
+        pos[0]++;
+    }
+
+    private static String readJsonString(String line, int[] pos) throws IOException {
+        expect(line, pos, '"');
+        StringBuilder value = new StringBuilder();
+        while (true) {
+            char c = peek(line, pos);
+            pos[0]++;
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            char escaped = peek(line, pos);
+            pos[0]++;
+            switch (escaped) {
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'u':
+                    value.append((char) Integer.parseInt(line.substring(pos[0], pos[0] + 4), 16));
+                    pos[0] += 4;
+                    break;
+                default:
+                    value.append(escaped);
+            }
+        }
+    }
+
+    /**
+     * Read the fields of the next record written by {@link #appendCsv}. A
+     * quoted field may hold commas, doubled quotes and line breaks, so the
+     * record is read character by character rather than by line.
+     *
+     * @param reader shard being read
+     * @param fields filled with the fields of the record
+     * @return false at the end of the shard
+     */
+    private static boolean readCsvRecord(Reader reader, List<String> fields) throws IOException {
+        fields.clear();
+        int c = reader.read();
+        while (c == '\r' || c == '\n') {
+            c = reader.read();
+        }
+        if (c == -1) {
+            return false;
+        }
+
+        while (true) {
+            if (c != '"') {
+                throw new IOException("Expected \" in metadata record " + fields);
+            }
+            StringBuilder field = new StringBuilder();
+            while (true) {
+                c = reader.read();
+                if (c == -1) {
+                    throw new IOException("Truncated metadata record " + fields);
+                }
+                if (c == '"') {
+                    c = reader.read();
+                    if (c != '"') {
+                        break;
+                    }
+                }
+                field.append((char) c);
+            }
+            fields.add(field.toString());
+
+            if (c == ',') {
+                c = reader.read();
+                continue;
+            }
+            if (c == '\r') {
+                c = reader.read();
+            }
+            if (c == '\n' || c == -1) {
+                return true;
+            }
+            throw new IOException("Unexpected " + (char) c + " after metadata record " + fields);
+        }
+    }
+
+    /**
+     * Read the fields of a record written by {@link #appendCsv}
+     *
+     * @return path and type of the record
+     */
+    private static String[] parseCsv(List<String> fields, List<String> aspects, Map<String, String> properties) throws IOException {
+        if (fields.size() < 3) {
+            throw new IOException("Invalid metadata record: " + fields);
+        }
+        if (!fields.get(2).isEmpty()) {
+            aspects.addAll(Arrays.asList(fields.get(2).split(",")));
+        }
+        for (int i = 3; i + 1 < fields.size(); i += 2) {
+            properties.put(fields.get(i), fields.get(i + 1));
+        }
+        return new String[]{fields.get(0), fields.get(1)};
+    }
+}
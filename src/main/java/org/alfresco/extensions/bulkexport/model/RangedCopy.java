@@ -0,0 +1,195 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.model;
+
+import org.alfresco.repo.content.filestore.FileContentReader;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Copy of very large contents split in byte ranges copied in parallel.
+ *
+ * Only contents of the file content store are copied this way, as their file
+ * can be read at any position. The target is written as a .part file of the
+ * final size, each range with positional writes, then moved to its name in
+ * one step so a partially copied file is never seen under the final name.
+ *
+ * The ranges are copied by a pool of its own, separate from the export
+ * workers, and by the worker asking for the copy, which takes the first
+ * range.
+ */
+public class RangedCopy {
+    Log log = LogFactory.getLog(RangedCopy.class);
+
+    /** Suffix of the files being copied */
+    public static final String PART_SUFFIX = ".part";
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final long threshold;
+    private final int parallelism;
+    private final ExecutorService pool;
+
+    /**
+     * @param threshold size from which contents are copied in ranges
+     * @param parallelism number of ranges a content is split in
+     */
+    public RangedCopy(long threshold, int parallelism) {
+        this.threshold = threshold;
+        this.parallelism = parallelism;
+
+        final AtomicInteger count = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(Math.max(1, parallelism - 1), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bulkexport-range-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public long getThreshold() {
+        return threshold;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Tell if a content is copied in ranges
+     *
+     * @param reader reader on the content
+     * @return {@link Boolean}
+     */
+    public boolean accepts(ContentReader reader) {
+        return parallelism > 1 && reader.getSize() >= threshold && reader instanceof FileContentReader
+                && ((FileContentReader) reader).getFile() != null && ((FileContentReader) reader).getFile().isFile();
+    }
+
+    /**
+     * Copy the content in ranges, must only be called if {@link #accepts(ContentReader)}
+     *
+     * @param reader reader on the content
+     * @param target file to write
+     * @return number of bytes written
+     * @throws IOException
+     */
+    public long copy(ContentReader reader, File target) throws IOException {
+        File source = ((FileContentReader) reader).getFile();
+        File part = new File(target.getPath() + PART_SUFFIX);
+
+        RandomAccessFile in = new RandomAccessFile(source, "r");
+        try {
+            RandomAccessFile out = new RandomAccessFile(part, "rw");
+            try {
+                long size = in.length();
+                out.setLength(size);
+                copyRanges(in.getChannel(), out.getChannel(), size);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            part.delete();
+            throw e;
+        } finally {
+            in.close();
+        }
+
+        Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return target.length();
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private void copyRanges(final FileChannel in, final FileChannel out, long size) throws IOException {
+        long rangeSize = (size + parallelism - 1) / parallelism;
+        if (log.isDebugEnabled()) {
+            log.debug("copying " + size + " bytes in " + parallelism + " ranges of " + rangeSize);
+        }
+
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (long start = rangeSize; start < size; start += rangeSize) {
+            final long position = start;
+            final long count = Math.min(rangeSize, size - start);
+            futures.add(pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    copyRange(in, out, position, count);
+                    return null;
+                }
+            }));
+        }
+
+        try {
+            copyRange(in, out, 0, Math.min(rangeSize, size));
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Ranged copy interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Ranged copy failed", e.getCause());
+        } finally {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static void copyRange(FileChannel in, FileChannel out, long position, long count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, count));
+        long end = position + count;
+        while (position < end) {
+            buffer.clear();
+            if (end - position < buffer.capacity()) {
+                buffer.limit((int) (end - position));
+            }
+            int read = in.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Content ended before " + end + " bytes");
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += out.write(buffer, position);
+            }
+        }
+    }
+}
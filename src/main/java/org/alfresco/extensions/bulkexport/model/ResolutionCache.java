@@ -0,0 +1,127 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.model;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Bounded cache of values resolved from the repository, shared by all the
+ * workers of a job, e.g. the export path of an association target.
+ *
+ * Two workers missing the same key at the same time both resolve it, the
+ * value being the same this only costs a repository call. When the cache is
+ * full an arbitrary entry is dropped for each new one, the keys worth
+ * caching (templates, shared folders) being hit often enough to come back.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class ResolutionCache<K, V> {
+
+    /**
+     * Resolves a value missing from the cache
+     */
+    public interface Resolver<K, V> {
+        V resolve(K key) throws Exception;
+    }
+
+    private final int maxSize;
+    private final ConcurrentMap<K, V> values;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize maximum number of values kept
+     */
+    public ResolutionCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.values = new ConcurrentHashMap<K, V>(Math.min(maxSize, 1024));
+    }
+
+    /**
+     * Get a value from the cache, resolving and caching it if missing
+     *
+     * @param key key of the value
+     * @param resolver how to resolve the value if missing, null values are not cached
+     * @return the value
+     * @throws Exception if the resolution failed
+     */
+    public V get(K key, Resolver<K, V> resolver) throws Exception {
+        V value = values.get(key);
+        if (value != null) {
+            hits.incrementAndGet();
+            return value;
+        }
+
+        misses.incrementAndGet();
+        value = resolver.resolve(key);
+        if (value != null) {
+            put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Add a value resolved beforehand
+     *
+     * @param key key of the value
+     * @param value the value
+     */
+    public void put(K key, V value) {
+        if (values.size() >= maxSize) {
+            Iterator<K> keys = values.keySet().iterator();
+            if (keys.hasNext()) {
+                keys.next();
+                keys.remove();
+            }
+        }
+        values.put(key, value);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return percentage of lookups found in the cache
+     */
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : hits.get() * 100.0 / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d hits, %d misses (%.1f%% hit rate), %d cached", getHits(), getMisses(), getHitRate(), size());
+    }
+}
@@ -0,0 +1,255 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.model;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Files written by the worker threads of a job, one shard per thread.
+ *
+ * Each thread appends to its own shard, opened on its first write, so the
+ * workers never wait on each other. A shard is written either as text, with
+ * {@link #getWriter()}, or as bytes, with {@link #getStream()} and
+ * {@link #getOffset()}. Once the workers are done the shards are closed, and
+ * usually merged in one file behind a header line.
+ */
+public class ShardedWriter {
+    Log log = LogFactory.getLog(ShardedWriter.class);
+
+    private static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    private final File shardDir;
+    private final String prefix;
+    private final String suffix;
+    private final int bufferSize;
+
+    private final List<Shard> shards = new ArrayList<Shard>();
+    private final List<File> files = new ArrayList<File>();
+    private final AtomicInteger shardCount = new AtomicInteger();
+    private final ThreadLocal<Shard> shard = new ThreadLocal<Shard>();
+
+    /**
+     * Shard of one thread
+     */
+    private static class Shard {
+        final File file;
+        final CountingStream out;
+        Writer writer;
+
+        Shard(File file, CountingStream out) {
+            this.file = file;
+            this.out = out;
+        }
+    }
+
+    /**
+     * Stream counting the bytes written, to know the offset of each record
+     */
+    private static class CountingStream extends FilterOutputStream {
+        long count;
+
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * @param shardDir folder of the shards, created with the first shard
+     * @param prefix name of the shards before their number, e.g. shard-
+     * @param suffix name of the shards after their number, e.g. .tsv
+     */
+    public ShardedWriter(File shardDir, String prefix, String suffix) {
+        this(shardDir, prefix, suffix, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param shardDir folder of the shards, created with the first shard
+     * @param prefix name of the shards before their number, e.g. shard-
+     * @param suffix name of the shards after their number, e.g. .tsv
+     * @param bufferSize bytes buffered per shard
+     */
+    public ShardedWriter(File shardDir, String prefix, String suffix, int bufferSize) {
+        this.shardDir = shardDir;
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return the UTF-8 text writer on the shard of the calling thread
+     * @throws IOException if the shard can not be created
+     */
+    public Writer getWriter() throws IOException {
+        Shard current = current();
+        if (current.writer == null) {
+            current.writer = new BufferedWriter(new OutputStreamWriter(current.out, "UTF-8"), bufferSize);
+        }
+        return current.writer;
+    }
+
+    /**
+     * @return the byte stream on the shard of the calling thread, not to be mixed with {@link #getWriter()}
+     * @throws IOException if the shard can not be created
+     */
+    public OutputStream getStream() throws IOException {
+        return current().out;
+    }
+
+    /**
+     * @return bytes written to {@link #getStream()} by the calling thread
+     * @throws IOException if the shard can not be created
+     */
+    public long getOffset() throws IOException {
+        return current().out.count;
+    }
+
+    /**
+     * @return name of the shard file of the calling thread
+     * @throws IOException if the shard can not be created
+     */
+    public String getName() throws IOException {
+        return current().file.getName();
+    }
+
+    /**
+     * Close the shards. Must be called once all the workers are done.
+     *
+     * @return the shard files, in the order they were opened
+     * @throws IOException
+     */
+    public synchronized List<File> close() throws IOException {
+        IOException failure = null;
+        for (Shard closed : shards) {
+            try {
+                if (closed.writer != null) {
+                    closed.writer.close();
+                } else {
+                    closed.out.close();
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        shards.clear();
+        if (failure != null) {
+            throw failure;
+        }
+        return new ArrayList<File>(files);
+    }
+
+    /**
+     * Close the shards and concatenate them in one file, then delete them.
+     * Must be called once all the workers are done.
+     *
+     * @param target file written
+     * @param header first line of the file, null for none
+     * @throws IOException
+     */
+    public synchronized void merge(File target, String header) throws IOException {
+        close();
+
+        OutputStream out = new FileOutputStream(target);
+        try {
+            if (header != null) {
+                out.write(header.getBytes("UTF-8"));
+            }
+            byte[] buffer = new byte[64 * 1024];
+            for (File shardFile : files) {
+                InputStream in = new FileInputStream(shardFile);
+                try {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        for (File shardFile : files) {
+            if (!shardFile.delete()) {
+                log.warn("Could not delete shard " + shardFile.getPath());
+            }
+        }
+        files.clear();
+        shardDir.delete();
+    }
+
+    /**
+     * Name of a new shard, called by the thread opening it
+     *
+     * @param number number of the shard in this writer, from 1
+     * @return {@link String}
+     * @throws IOException
+     */
+    protected String shardName(int number) throws IOException {
+        return prefix + number + suffix;
+    }
+
+    private Shard current() throws IOException {
+        Shard current = shard.get();
+        if (current == null) {
+            current = open();
+            shard.set(current);
+        }
+        return current;
+    }
+
+    private synchronized Shard open() throws IOException {
+        if (!shardDir.exists() && !shardDir.mkdirs() && !shardDir.exists()) {
+            throw new IOException("Could not create shard folder " + shardDir.getPath());
+        }
+
+        File file = new File(shardDir, shardName(shardCount.incrementAndGet()));
+        Shard created = new Shard(file, new CountingStream(new BufferedOutputStream(new FileOutputStream(file), bufferSize)));
+        shards.add(created);
+        files.add(file);
+        return created;
+    }
+}
@@ -0,0 +1,577 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.model;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Write-behind stage between the export workers and the target folder.
+ *
+ * The metadata files and the small contents are handed over as bytes and
+ * written by a few writer threads, so the workers go back to the repository
+ * instead of waiting on a slow target. The writers take the pending files
+ * by batches. The queue is bounded in bytes and in files: a worker finding
+ * it full waits, which keeps the workers at the pace of the target. With no
+ * writer thread the files are written by the workers, only the durability
+ * policy applies.
+ *
+ * The durability policy tells when the written files are forced to disk:
+ * <ul>
+ * <li>none: never, the operating system writes them when it likes</li>
+ * <li>file: every file as soon as it is written</li>
+ * <li>batch: the files written in the meantime, together, after each batch
+ * of the writers or every {@value #BATCH_SIZE} files</li>
+ * <li>end: every file of the job when the job finishes</li>
+ * </ul>
+ * The large contents, still written by the workers, follow the same policy.
+ * The end policy keeps at most {@value #MAX_UNSYNCED} paths in memory, the
+ * others are appended to a pending file read back when the job finishes.
+ *
+ * A file the writers fail to write is handed back to the listener given
+ * with it, with its node, so that the node is exported again or counted as
+ * failed. The failures without listener, and the files that could not be
+ * synced, make {@link #close()} fail.
+ *
+ * With a {@link Budget}, the bytes of a file are taken from it while they
+ * are held in memory, from the read of a content until its writer wrote it.
+ */
+public class WriteBehind {
+    Log log = LogFactory.getLog(WriteBehind.class);
+
+    public static final String NONE = "none";
+    public static final String FILE = "file";
+    public static final String BATCH = "batch";
+    public static final String END = "end";
+
+    /** Most files written by a writer at once, and synced at once by the batch policy */
+    private static final int BATCH_SIZE = 64;
+
+    /** Most files waiting per writer */
+    private static final int FILES_PER_WRITER = 1024;
+
+    /** Most files waiting in memory for the end policy, the others wait in the pending file */
+    private static final int MAX_UNSYNCED = 4096;
+
+    /** How long an idle writer waits before syncing what the workers wrote, in milliseconds */
+    private static final long IDLE_WAIT = 100;
+
+    private final int threads;
+    private final long maxQueuedBytes;
+    private final long smallFileLimit;
+    private final String fsync;
+
+    private final LinkedBlockingQueue<Write> queue;
+    private final Object space = new Object();
+    private long queuedBytes;
+    private long queuedFiles;
+
+    /** Files written and not forced to disk yet, by the batch and end policies */
+    private final ConcurrentLinkedQueue<File> unsynced = new ConcurrentLinkedQueue<File>();
+    private final AtomicInteger unsyncedCount = new AtomicInteger();
+
+    /** Paths of the files waiting for the end policy beyond those in memory, one per line */
+    private File pendingFile;
+    private Writer pending;
+    private long pendingCount;
+
+    private Budget budget;
+
+    private List<Thread> writers;
+    private volatile boolean closed;
+
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong handledFailures = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * Told of the files the writers could not write
+     */
+    public interface Listener {
+        /**
+         * @param nodeRef node the file belongs to
+         * @param file the file
+         * @param error cause of the failure
+         */
+        void failed(NodeRef nodeRef, File file, IOException error);
+    }
+
+    /**
+     * Bounds the bytes held in memory by the whole job
+     */
+    public interface Budget {
+        /**
+         * @param size bytes to hold
+         * @return the bytes taken, to give back to {@link #releaseBytes(long)}
+         * @throws InterruptedException
+         */
+        long acquireBytes(long size) throws InterruptedException;
+
+        void releaseBytes(long granted);
+    }
+
+    /**
+     * A file waiting for a writer
+     */
+    private static class Write {
+        final File file;
+        final byte[] data;
+        final ContentCompression compression;
+        final NodeRef nodeRef;
+        final Listener listener;
+        final long granted;
+
+        Write(File file, byte[] data, ContentCompression compression, NodeRef nodeRef, Listener listener, long granted) {
+            this.file = file;
+            this.data = data;
+            this.compression = compression;
+            this.nodeRef = nodeRef;
+            this.listener = listener;
+            this.granted = granted;
+        }
+    }
+
+    /**
+     * @param threads number of writer threads, 0 to write with the workers
+     * @param maxQueuedBytes most bytes waiting for the writers
+     * @param smallFileLimit size up to which a content is handed to the writers
+     * @param fsync durability policy, {@link #NONE}, {@link #FILE}, {@link #BATCH} or {@link #END}
+     */
+    public WriteBehind(int threads, long maxQueuedBytes, long smallFileLimit, String fsync) {
+        if (!NONE.equals(fsync) && !FILE.equals(fsync) && !BATCH.equals(fsync) && !END.equals(fsync)) {
+            throw new IllegalArgumentException("fsync must be " + NONE + ", " + FILE + ", " + BATCH + " or " + END + ", got " + fsync);
+        }
+        this.threads = threads;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.smallFileLimit = smallFileLimit;
+        this.fsync = fsync;
+        this.queue = new LinkedBlockingQueue<Write>(Math.max(1, threads) * FILES_PER_WRITER);
+    }
+
+    public String getFsync() {
+        return fsync;
+    }
+
+    /**
+     * Take the bytes held by the files handed over from the given budget
+     *
+     * @param budget budget of the job, null for none
+     */
+    public void setBudget(Budget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Where the end policy lists the files waiting to be synced beyond those
+     * kept in memory, a temporary file when not set. Deleted once synced.
+     *
+     * @param pendingFile file written, e.g. in the export folder
+     */
+    public synchronized void setPendingFile(File pendingFile) {
+        this.pendingFile = pendingFile;
+    }
+
+    /**
+     * Take bytes from the budget before reading a content in memory for
+     * {@link #write(File, byte[], ContentCompression, NodeRef, Listener, long)}
+     *
+     * @param size size of the content
+     * @return the bytes taken
+     * @throws InterruptedException
+     */
+    public long reserve(long size) throws InterruptedException {
+        return budget != null ? budget.acquireBytes(size) : 0;
+    }
+
+    /**
+     * Give back bytes taken by {@link #reserve(long)} and not handed over
+     *
+     * @param granted the bytes taken
+     */
+    public void release(long granted) {
+        if (budget != null) {
+            budget.releaseBytes(granted);
+        }
+    }
+
+    /**
+     * Tell if a content is handed to the writers
+     *
+     * @param size size of the content
+     * @return {@link Boolean}
+     */
+    public boolean accepts(long size) {
+        return threads > 0 && size >= 0 && size <= smallFileLimit;
+    }
+
+    /**
+     * Write a file, later if there are writer threads. The parent folder is
+     * created if needed.
+     *
+     * @param file the file
+     * @param data its content, not to be changed by the caller afterwards
+     * @param compression compression of the file, null to write it as is
+     * @throws IOException when the file is written now and fails
+     * @throws InterruptedException when interrupted waiting for room in the queue
+     */
+    public void write(File file, byte[] data, ContentCompression compression) throws IOException, InterruptedException {
+        write(file, data, compression, null, null);
+    }
+
+    /**
+     * Write a file of a node, later if there are writer threads. The parent
+     * folder is created if needed.
+     *
+     * @param file the file
+     * @param data its content, not to be changed by the caller afterwards
+     * @param compression compression of the file, null to write it as is
+     * @param nodeRef node the file belongs to
+     * @param listener told if the writers fail to write the file, null to only make {@link #close()} fail
+     * @throws IOException when the file is written now and fails
+     * @throws InterruptedException when interrupted waiting for room in the queue
+     */
+    public void write(File file, byte[] data, ContentCompression compression, NodeRef nodeRef, Listener listener) throws IOException, InterruptedException {
+        long granted = threads > 0 ? reserve(data.length) : 0;
+        write(file, data, compression, nodeRef, listener, granted);
+    }
+
+    /**
+     * Write a file of a node whose bytes were taken from the budget with
+     * {@link #reserve(long)}, they are given back once it is written
+     *
+     * @param file the file
+     * @param data its content, not to be changed by the caller afterwards
+     * @param compression compression of the file, null to write it as is
+     * @param nodeRef node the file belongs to
+     * @param listener told if the writers fail to write the file, null to only make {@link #close()} fail
+     * @param granted bytes taken from the budget for the data
+     * @throws IOException when the file is written now and fails
+     * @throws InterruptedException when interrupted waiting for room in the queue
+     */
+    public void write(File file, byte[] data, ContentCompression compression, NodeRef nodeRef, Listener listener, long granted) throws IOException, InterruptedException {
+        if (threads == 0) {
+            try {
+                writeFile(file, data, compression);
+            } finally {
+                release(granted);
+            }
+            written(file);
+            return;
+        }
+
+        startWriters();
+        long start = System.nanoTime();
+        try {
+            synchronized (space) {
+                // a file larger than the queue goes alone
+                while (queuedBytes > 0 && queuedBytes + data.length > maxQueuedBytes) {
+                    space.wait();
+                }
+                queuedBytes += data.length;
+                queuedFiles++;
+            }
+        } catch (InterruptedException e) {
+            release(granted);
+            throw e;
+        }
+        try {
+            queue.put(new Write(file, data, compression, nodeRef, listener, granted));
+        } catch (InterruptedException e) {
+            synchronized (space) {
+                queuedBytes -= data.length;
+                queuedFiles--;
+                space.notifyAll();
+            }
+            release(granted);
+            throw e;
+        }
+        waitNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Apply the durability policy to a file written by a worker
+     *
+     * @param file the file, closed
+     * @throws IOException
+     */
+    public void written(File file) throws IOException {
+        files.incrementAndGet();
+        bytes.addAndGet(file.length());
+        if (FILE.equals(fsync)) {
+            sync(file);
+        } else if (BATCH.equals(fsync)) {
+            unsynced.add(file);
+            if (unsyncedCount.incrementAndGet() >= BATCH_SIZE) {
+                syncUnsynced();
+            }
+        } else if (END.equals(fsync)) {
+            unsynced.add(file);
+            if (unsyncedCount.incrementAndGet() >= MAX_UNSYNCED) {
+                spillUnsynced();
+            }
+        }
+    }
+
+    /**
+     * Wait until the files handed over so far are written, so that the
+     * listeners of the failed ones have been told
+     *
+     * @throws InterruptedException
+     */
+    public void flush() throws InterruptedException {
+        synchronized (space) {
+            while (queuedFiles > 0) {
+                space.wait();
+            }
+        }
+    }
+
+    /**
+     * @return files that could not be written or synced and were not handed to a listener
+     */
+    public long getUnhandledFailures() {
+        return failures.get() - handledFailures.get();
+    }
+
+    /**
+     * Write the files still waiting, stop the writers and force the files
+     * left to disk
+     *
+     * @throws IOException if a file without listener could not be written, or a file could not be synced
+     */
+    public void close() throws IOException {
+        closed = true;
+        List<Thread> started;
+        synchronized (this) {
+            started = writers;
+        }
+        if (started != null) {
+            for (Thread writer : started) {
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        syncUnsynced();
+        syncPending();
+        log.info("Write behind " + this);
+        if (getUnhandledFailures() > 0) {
+            throw new IOException(getUnhandledFailures() + " files could not be written or synced, see the log");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d writers, fsync %s: %d files, %d MB, %d batches, %d fsyncs, %d failed, workers waited %d ms",
+                threads, fsync, files.get(), bytes.get() / (1024 * 1024), batches.get(), syncs.get(), failures.get(),
+                TimeUnit.NANOSECONDS.toMillis(waitNanos.get()));
+    }
+
+    private synchronized void startWriters() {
+        if (writers != null) {
+            return;
+        }
+        writers = new ArrayList<Thread>();
+        for (int i = 1; i <= threads; i++) {
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, "bulkexport-writer-" + i);
+            writer.setDaemon(true);
+            writer.start();
+            writers.add(writer);
+        }
+    }
+
+    private void drain() {
+        List<Write> batch = new ArrayList<Write>(BATCH_SIZE);
+        while (true) {
+            Write first;
+            try {
+                first = queue.poll(IDLE_WAIT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (first == null) {
+                if (BATCH.equals(fsync)) {
+                    syncUnsynced();
+                }
+                if (closed && queue.isEmpty()) {
+                    break;
+                }
+                continue;
+            }
+
+            batch.add(first);
+            queue.drainTo(batch, BATCH_SIZE - 1);
+            long batchBytes = 0;
+            for (Write write : batch) {
+                try {
+                    writeFile(write.file, write.data, write.compression);
+                    written(write.file);
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                    log.error("Could not write " + write.file.getPath() + " of node " + write.nodeRef, e);
+                    if (write.listener != null) {
+                        handledFailures.incrementAndGet();
+                        try {
+                            write.listener.failed(write.nodeRef, write.file, e);
+                        } catch (RuntimeException listenerError) {
+                            log.error("Could not handle the failure of " + write.file.getPath(), listenerError);
+                        }
+                    }
+                }
+                batchBytes += write.data.length;
+                release(write.granted);
+            }
+            int batchFiles = batch.size();
+            batch.clear();
+            batches.incrementAndGet();
+            synchronized (space) {
+                queuedBytes -= batchBytes;
+                queuedFiles -= batchFiles;
+                space.notifyAll();
+            }
+            if (BATCH.equals(fsync)) {
+                syncUnsynced();
+            }
+        }
+    }
+
+    private void writeFile(File file, byte[] data, ContentCompression compression) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs() && !parent.exists()) {
+            throw new IOException("Could not create folder " + parent.getPath());
+        }
+        OutputStream out = new FileOutputStream(file);
+        if (compression != null) {
+            out = compression.wrap(out);
+        }
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Force the files written so far to disk, together
+     */
+    private void syncUnsynced() {
+        File file;
+        while ((file = unsynced.poll()) != null) {
+            unsyncedCount.decrementAndGet();
+            try {
+                sync(file);
+            } catch (IOException e) {
+                failures.incrementAndGet();
+                log.error("Could not sync " + file.getPath(), e);
+            }
+        }
+    }
+
+    /**
+     * Move the files waiting in memory to the pending file
+     */
+    private synchronized void spillUnsynced() throws IOException {
+        if (pending == null) {
+            if (pendingFile == null) {
+                pendingFile = File.createTempFile("bulkexport-unsynced", ".txt");
+            }
+            pending = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(pendingFile, true), "UTF-8"));
+        }
+        File file;
+        while ((file = unsynced.poll()) != null) {
+            unsyncedCount.decrementAndGet();
+            pending.write(file.getPath());
+            pending.write('\n');
+            pendingCount++;
+        }
+    }
+
+    /**
+     * Force the files of the pending file to disk, then delete it
+     */
+    private synchronized void syncPending() throws IOException {
+        if (pending == null) {
+            return;
+        }
+        pending.close();
+        pending = null;
+        log.info("Syncing " + pendingCount + " files listed in " + pendingFile.getPath());
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(pendingFile), "UTF-8"));
+        try {
+            String path;
+            while ((path = reader.readLine()) != null) {
+                try {
+                    sync(new File(path));
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                    log.error("Could not sync " + path, e);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (!pendingFile.delete()) {
+            log.warn("Could not delete " + pendingFile.getPath());
+        }
+        pendingCount = 0;
+    }
+
+    private void sync(File file) throws IOException {
+        // forcing any descriptor of the file writes all its data
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+        syncs.incrementAndGet();
+    }
+}
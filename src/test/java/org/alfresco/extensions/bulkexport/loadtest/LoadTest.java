@@ -0,0 +1,241 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.loadtest;
+
+import org.alfresco.extensions.bulkexport.controler.Engine;
+import org.alfresco.extensions.bulkexport.controler.ExportStatistics;
+import org.alfresco.extensions.bulkexport.model.FileFolder;
+import org.alfresco.extensions.bulkexport.model.WriteBehind;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Load test of the export engine on a synthetic repository.
+ *
+ * Runs a full export of a {@link SyntheticExportDao} tree for every
+ * combination of thread count and chunk size, and prints one line per run:
+ * nodes per second, bytes per second, heap peak and allocation rate. The
+ * arguments are name=value pairs, threads and chunk taking comma separated
+ * lists, e.g.
+ * <pre>
+ * LoadTest threads=1,2,4,8 chunk=10,100 depth=4 folders=5 documents=50 meanSize=65536 latencyMicros=200
+ * </pre>
+ * Other arguments: sizeSpread, versions, properties, seed, folderFirst,
+ * writeBehind (writer threads) and fsync (durability policy), runs
+ * (repetitions of each configuration) and dir (where the exports are
+ * written, deleted after each run). Only the allocations of live threads
+ * are sampled, every 50 ms, so the allocation rate is a lower bound.
+ */
+public class LoadTest {
+
+    private static final long MB = 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Arguments are name=value pairs: " + arg);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+
+        SyntheticExportDao.Shape shape = new SyntheticExportDao.Shape();
+        shape.depth = intOption(options, "depth", shape.depth);
+        shape.folders = intOption(options, "folders", shape.folders);
+        shape.documents = intOption(options, "documents", shape.documents);
+        shape.meanSize = longOption(options, "meanSize", shape.meanSize);
+        shape.versions = intOption(options, "versions", shape.versions);
+        shape.properties = intOption(options, "properties", shape.properties);
+        shape.latencyMicros = longOption(options, "latencyMicros", shape.latencyMicros);
+        shape.seed = longOption(options, "seed", shape.seed);
+        if (options.containsKey("sizeSpread")) {
+            shape.sizeSpread = Double.parseDouble(options.get("sizeSpread"));
+        }
+
+        List<Integer> threads = intList(options, "threads", "1,2,4,8");
+        List<Integer> chunks = intList(options, "chunk", "10");
+        int runs = intOption(options, "runs", 1);
+        boolean folderFirst = Boolean.parseBoolean(options.containsKey("folderFirst") ? options.get("folderFirst") : "false");
+        int writeBehind = intOption(options, "writeBehind", 0);
+        String fsync = options.containsKey("fsync") ? options.get("fsync") : WriteBehind.NONE;
+        File dir = new File(options.containsKey("dir") ? options.get("dir") : System.getProperty("java.io.tmpdir"));
+
+        SyntheticExportDao dao = new SyntheticExportDao(shape);
+        System.out.println("Synthetic repository: " + shape);
+        System.out.println(dao.getNodeCount() + " nodes, " + dao.getDocumentCount() + " documents, "
+                + dao.getTotalBytes() / MB + " MB of head contents, folderFirst=" + folderFirst
+                + ", writeBehind=" + writeBehind + ", fsync=" + fsync);
+        System.out.println();
+        System.out.println(String.format("%8s %8s %4s %10s %10s %12s %10s %14s %8s",
+                "threads", "chunk", "run", "nodes", "nodes/s", "MB/s", "heap MB", "alloc MB/s", "failed"));
+
+        for (int nbOfThreads : threads) {
+            for (int chunk : chunks) {
+                for (int run = 1; run <= runs; run++) {
+                    run(dao, dir, nbOfThreads, chunk, run, folderFirst, writeBehind, fsync);
+                }
+            }
+        }
+    }
+
+    private static void run(SyntheticExportDao dao, File dir, int nbOfThreads, int chunk, int run, boolean folderFirst,
+                            int writeBehind, String fsync) throws Exception {
+        File base = Files.createTempDirectory(dir.toPath(), "bulkexport-loadtest").toFile();
+        System.gc();
+        AllocationSampler sampler = new AllocationSampler();
+        sampler.start();
+        long start = System.nanoTime();
+        FileFolder fileFolder = new FileFolder(base.getPath(), false);
+        if (writeBehind > 0 || !WriteBehind.NONE.equals(fsync)) {
+            fileFolder.setWriteBehind(new WriteBehind(writeBehind, 64 * MB, MB, fsync));
+        }
+        Engine engine = new Engine(dao, fileFolder, false, false, false, nbOfThreads, chunk);
+        engine.setFolderFirst(folderFirst);
+        try {
+            engine.execute(dao.getRoot());
+        } finally {
+            sampler.stop();
+            delete(base);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        ExportStatistics statistics = engine.getStatistics();
+        System.out.println(String.format("%8d %8d %4d %10d %10.1f %12.1f %10d %14.1f %8d",
+                nbOfThreads, chunk, run, statistics.getNodesExported(),
+                statistics.getNodesExported() / seconds,
+                statistics.getBytesExported() / seconds / MB,
+                sampler.getHeapPeak() / MB,
+                sampler.getAllocatedBytes() / seconds / MB,
+                statistics.getNodesFailed()));
+    }
+
+    /**
+     * Samples the allocations of the live threads and the heap peak while a
+     * run goes on
+     */
+    private static class AllocationSampler implements Runnable {
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private final Map<Long, Long> allocated = new HashMap<Long, Long>();
+        private final Map<Long, Long> baseline = new HashMap<Long, Long>();
+        private volatile boolean running;
+        private Thread thread;
+
+        void start() {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    pool.resetPeakUsage();
+                }
+            }
+            // allocations made before the run are not counted
+            sample(baseline);
+            running = true;
+            thread = new Thread(this, "bulkexport-loadtest-sampler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            thread.join();
+            sample(allocated);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                sample(allocated);
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private synchronized void sample(Map<Long, Long> into) {
+            if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+                return;
+            }
+            com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+            for (long id : threads.getAllThreadIds()) {
+                long bytes = sunThreads.getThreadAllocatedBytes(id);
+                if (bytes >= 0) {
+                    into.put(id, bytes);
+                }
+            }
+        }
+
+        synchronized long getAllocatedBytes() {
+            long total = 0;
+            for (Map.Entry<Long, Long> entry : allocated.entrySet()) {
+                Long before = baseline.get(entry.getKey());
+                total += entry.getValue() - (before != null ? before : 0);
+            }
+            return total;
+        }
+
+        long getHeapPeak() {
+            long peak = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                    peak += pool.getPeakUsage().getUsed();
+                }
+            }
+            return peak;
+        }
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private static long longOption(Map<String, String> options, String name, long defaultValue) {
+        return options.containsKey(name) ? Long.parseLong(options.get(name)) : defaultValue;
+    }
+
+    private static List<Integer> intList(Map<String, String> options, String name, String defaultValue) {
+        List<Integer> values = new ArrayList<Integer>();
+        for (String value : (options.containsKey(name) ? options.get(name) : defaultValue).split(",")) {
+            values.add(Integer.parseInt(value.trim()));
+        }
+        return values;
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete() && file.exists()) {
+            throw new IOException("Could not delete " + file.getPath());
+        }
+    }
+}
@@ -0,0 +1,454 @@
+/**
+ * This file is part of Alfresco Bulk Export Tool.
+ * <p>
+ * Alfresco Bulk Export Tool is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * Alfresco Bulk Export Tool  is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along
+ * with Alfresco Bulk Export Tool. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.extensions.bulkexport.loadtest;
+
+import org.alfresco.extensions.bulkexport.dao.AlfrescoExportDao;
+import org.alfresco.extensions.bulkexport.dao.NodeAssociation;
+import org.alfresco.extensions.bulkexport.dao.NodeRefRevision;
+import org.alfresco.extensions.bulkexport.model.ExportScratch;
+import org.alfresco.repo.content.AbstractContentReader;
+import org.alfresco.repo.security.permissions.AccessControlList;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.namespace.QName;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * In memory {@link AlfrescoExportDao} serving a generated tree, to load test
+ * the engine without a repository.
+ *
+ * The tree is generated once from a seed: every folder above the last level
+ * has the configured number of sub folders and documents, the documents of
+ * the last level included. Document sizes follow a log-normal distribution
+ * around the mean size, contents are generated while read and never held in
+ * memory. Every call waits for the configured latency, as a repository call
+ * would.
+ */
+public class SyntheticExportDao implements AlfrescoExportDao {
+
+    private static final String NAMESPACE = "http://www.alfresco.org/model/content/1.0";
+    private static final StoreRef STORE = new StoreRef("workspace", "SpacesStore");
+
+    /**
+     * Shape of a generated repository
+     */
+    public static class Shape {
+        public int depth = 3;
+        public int folders = 5;
+        public int documents = 20;
+        public long meanSize = 64 * 1024;
+        public double sizeSpread = 1.0;
+        public int versions = 1;
+        public int properties = 10;
+        public long latencyMicros = 0;
+        public long seed = 42;
+
+        @Override
+        public String toString() {
+            return "depth=" + depth + " folders=" + folders + " documents=" + documents + " meanSize=" + meanSize
+                    + " sizeSpread=" + sizeSpread + " versions=" + versions + " properties=" + properties
+                    + " latencyMicros=" + latencyMicros;
+        }
+    }
+
+    private static class Node {
+        final long id;
+        final NodeRef nodeRef;
+        final Node parent;
+        final String name;
+        final String path;
+        final boolean folder;
+        final long size;
+        final List<NodeRef> children = new ArrayList<NodeRef>();
+        final Map<String, NodeRefRevision> versions = new LinkedHashMap<String, NodeRefRevision>();
+
+        Node(long id, Node parent, String name, boolean folder, long size) {
+            this.id = id;
+            this.nodeRef = new NodeRef(STORE, "synthetic-" + id);
+            this.parent = parent;
+            this.name = name;
+            this.path = (parent == null ? "" : parent.path) + "/" + name;
+            this.folder = folder;
+            this.size = size;
+        }
+    }
+
+    private final Shape shape;
+    private final Map<NodeRef, Node> nodes = new HashMap<NodeRef, Node>();
+    private final List<Node> byId = new ArrayList<Node>();
+    private final Node root;
+    private long documentCount;
+    private long totalBytes;
+
+    public SyntheticExportDao(Shape shape) {
+        this.shape = shape;
+        Random random = new Random(shape.seed);
+        this.root = add(null, "synthetic", true, 0);
+        generate(root, 1, random);
+    }
+
+    public NodeRef getRoot() {
+        return root.nodeRef;
+    }
+
+    public int getNodeCount() {
+        return nodes.size();
+    }
+
+    public long getDocumentCount() {
+        return documentCount;
+    }
+
+    /**
+     * @return size of the head contents, the versions excluded
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private void generate(Node folder, int level, Random random) {
+        for (int i = 0; i < shape.documents; i++) {
+            long size = documentSize(random);
+            Node document = add(folder, "document-" + i + ".bin", false, size);
+            documentCount++;
+            totalBytes += size;
+            for (int v = 1; v < shape.versions; v++) {
+                // versions have no parent, like the frozen nodes of the version store
+                Node version = add(null, document.name, false, documentSize(random));
+                NodeRefRevision revision = new NodeRefRevision();
+                revision.node = version.nodeRef;
+                revision.comment = "version " + v;
+                document.versions.put(v + ".0", revision);
+            }
+            if (shape.versions > 1) {
+                NodeRefRevision head = new NodeRefRevision();
+                head.node = document.nodeRef;
+                head.comment = "head";
+                document.versions.put(shape.versions + ".0", head);
+            }
+        }
+        if (level < shape.depth) {
+            for (int i = 0; i < shape.folders; i++) {
+                generate(add(folder, "folder-" + i, true, 0), level + 1, random);
+            }
+        }
+    }
+
+    private long documentSize(Random random) {
+        if (shape.sizeSpread <= 0) {
+            return shape.meanSize;
+        }
+        // log-normal with the configured mean
+        double mu = Math.log(shape.meanSize) - shape.sizeSpread * shape.sizeSpread / 2;
+        return Math.max(0, Math.round(Math.exp(mu + shape.sizeSpread * random.nextGaussian())));
+    }
+
+    private Node add(Node parent, String name, boolean folder, long size) {
+        Node node = new Node(byId.size(), parent, name, folder, size);
+        byId.add(node);
+        nodes.put(node.nodeRef, node);
+        if (parent != null) {
+            parent.children.add(node.nodeRef);
+        }
+        return node;
+    }
+
+    private Node node(NodeRef nodeRef) {
+        pause();
+        Node node = nodes.get(nodeRef);
+        if (node == null) {
+            throw new IllegalArgumentException("No synthetic node " + nodeRef);
+        }
+        return node;
+    }
+
+    private void pause() {
+        if (shape.latencyMicros > 0) {
+            LockSupport.parkNanos(shape.latencyMicros * 1000);
+        }
+    }
+
+    public boolean isNodeIgnored(String nodeRef) throws Exception {
+        node(new NodeRef(nodeRef));
+        return false;
+    }
+
+    public Map<QName, Serializable> getProperties(NodeRef nodeRef) throws Exception {
+        Node node = node(nodeRef);
+        Map<QName, Serializable> properties = new HashMap<QName, Serializable>();
+        for (int i = 0; i < shape.properties; i++) {
+            properties.put(QName.createQName(NAMESPACE, "property" + i), node.name + " value " + i);
+        }
+        return properties;
+    }
+
+    public Map<String, String> getPropertiesAsString(NodeRef nodeRef) throws Exception {
+        return putProperties(node(nodeRef), new HashMap<String, String>());
+    }
+
+    public Map<String, String> getPropertiesAsString(NodeRef nodeRef, ExportScratch scratch) throws Exception {
+        return putProperties(node(nodeRef), scratch.getProperties());
+    }
+
+    private Map<String, String> putProperties(Node node, Map<String, String> properties) {
+        properties.put("cm:name", node.name);
+        for (int i = 1; i < shape.properties; i++) {
+            properties.put("cm:property" + i, node.name + " value " + i);
+        }
+        return properties;
+    }
+
+    public List<NodeRef> getChildren(NodeRef nodeRef) throws Exception {
+        return new ArrayList<NodeRef>(node(nodeRef).children);
+    }
+
+    public String getPath(NodeRef nodeRef) throws Exception {
+        return node(nodeRef).path;
+    }
+
+    public ByteArrayOutputStream getContent(NodeRef nodeRef) throws Exception {
+        Node node = node(nodeRef);
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) node.size);
+        copy(new SyntheticInputStream(node.size, node.id), out);
+        return out;
+    }
+
+    public boolean getContentAndStoreInFile(NodeRef nodeRef, String outputFileName) throws Exception {
+        Node node = node(nodeRef);
+        OutputStream out = new FileOutputStream(outputFileName);
+        try {
+            copy(new SyntheticInputStream(node.size, node.id), out);
+        } finally {
+            out.close();
+        }
+        return true;
+    }
+
+    public ContentReader getContentReader(NodeRef nodeRef) throws Exception {
+        Node node = node(nodeRef);
+        if (node.folder) {
+            return null;
+        }
+        SyntheticContentReader reader = new SyntheticContentReader(node.size, node.id);
+        reader.setMimetype("application/octet-stream");
+        return reader;
+    }
+
+    public String getContentUrl(NodeRef nodeRef) throws Exception {
+        Node node = node(nodeRef);
+        return node.folder ? null : "synthetic://" + node.id + ".bin";
+    }
+
+    public Long getAclId(NodeRef nodeRef) throws Exception {
+        node(nodeRef);
+        return null;
+    }
+
+    public AccessControlList getAccessControlList(Long aclId) throws Exception {
+        pause();
+        return null;
+    }
+
+    public List<NodeAssociation> getAssociations(NodeRef nodeRef) throws Exception {
+        node(nodeRef);
+        return Collections.emptyList();
+    }
+
+    public Long getMinNodeId() throws Exception {
+        pause();
+        return 0L;
+    }
+
+    public Long getMaxNodeId() throws Exception {
+        pause();
+        return (long) byId.size() - 1;
+    }
+
+    public List<NodeRef> getNodesById(long firstId, long lastId) throws Exception {
+        pause();
+        List<NodeRef> found = new ArrayList<NodeRef>();
+        for (long id = Math.max(firstId, 0); id <= lastId && id < byId.size(); id++) {
+            found.add(byId.get((int) id).nodeRef);
+        }
+        return found;
+    }
+
+    public NodeRef getFollowedPrimaryParent(NodeRef nodeRef) throws Exception {
+        // every generated child is a cm:contains child
+        Node parent = node(nodeRef).parent;
+        return parent != null ? parent.nodeRef : null;
+    }
+
+    public void cacheNodes(List<NodeRef> nodeRefs) throws Exception {
+        pause();
+    }
+
+    public String getProperty(NodeRef nodeRef, QName propertyQName) throws Exception {
+        return node(nodeRef).name;
+    }
+
+    public String getType(NodeRef nodeRef) throws Exception {
+        return node(nodeRef).folder ? "cm:folder" : "cm:content";
+    }
+
+    public List<QName> getAspects(NodeRef nodeRef) throws Exception {
+        node(nodeRef);
+        List<QName> aspects = new ArrayList<QName>();
+        aspects.add(QName.createQName(NAMESPACE, "titled"));
+        aspects.add(QName.createQName(NAMESPACE, "auditable"));
+        return aspects;
+    }
+
+    public List<String> getAspectsAsString(NodeRef nodeRef) throws Exception {
+        return addAspects(node(nodeRef), new ArrayList<String>());
+    }
+
+    public List<String> getAspectsAsString(NodeRef nodeRef, ExportScratch scratch) throws Exception {
+        return addAspects(node(nodeRef), scratch.getAspects());
+    }
+
+    private List<String> addAspects(Node node, List<String> aspects) {
+        aspects.add("cm:titled");
+        aspects.add("cm:auditable");
+        if (node.versions.size() > 0) {
+            aspects.add("cm:versionable");
+        }
+        return aspects;
+    }
+
+    public boolean isFolder(NodeRef nodeRef) throws Exception {
+        return node(nodeRef).folder;
+    }
+
+    public NodeRef getNodeRef(String nodeRef) throws Exception {
+        return new NodeRef(nodeRef);
+    }
+
+    public List<NodeRef> findNodes(String language, String query, int skipCount, int pageSize) throws Exception {
+        pause();
+        List<NodeRef> page = new ArrayList<NodeRef>();
+        for (int i = skipCount; i < byId.size() && page.size() < pageSize; i++) {
+            Node node = byId.get(i);
+            if (node.parent != null || node == root) {
+                page.add(node.nodeRef);
+            }
+        }
+        return page;
+    }
+
+    public Map<String, NodeRefRevision> getNodeRefHistory(String nodeRef) throws Exception {
+        Node node = node(new NodeRef(nodeRef));
+        return node.versions.isEmpty() ? null : new HashMap<String, NodeRefRevision>(node.versions);
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    /**
+     * Content generated from the node id as it is read
+     */
+    static class SyntheticInputStream extends InputStream {
+        private final long size;
+        private final long seed;
+        private long position;
+
+        SyntheticInputStream(long size, long seed) {
+            this.size = size;
+            this.seed = seed;
+        }
+
+        @Override
+        public int read() {
+            if (position >= size) {
+                return -1;
+            }
+            return (int) ((position++ * 31 + seed) & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= size) {
+                return -1;
+            }
+            int count = (int) Math.min(len, size - position);
+            for (int i = 0; i < count; i++) {
+                b[off + i] = (byte) (position++ * 31 + seed);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Reader on a generated content
+     */
+    static class SyntheticContentReader extends AbstractContentReader {
+        private final long size;
+        private final long seed;
+
+        SyntheticContentReader(long size, long seed) {
+            super("synthetic://" + seed + ".bin");
+            this.size = size;
+            this.seed = seed;
+        }
+
+        @Override
+        protected ContentReader createReader() {
+            return new SyntheticContentReader(size, seed);
+        }
+
+        @Override
+        protected ReadableByteChannel getDirectReadableChannel() {
+            return Channels.newChannel(new SyntheticInputStream(size, seed));
+        }
+
+        public boolean exists() {
+            return true;
+        }
+
+        public long getLastModified() {
+            return 0L;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+    }
+}